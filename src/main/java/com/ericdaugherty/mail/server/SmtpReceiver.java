@@ -0,0 +1,343 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server;
+
+//Java imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.configuration.ConfigurationParameterContants;
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+import com.ericdaugherty.mail.server.server.info.User;
+import com.ericdaugherty.mail.server.server.services.general.ServiceListener;
+import com.ericdaugherty.mail.server.server.store.MailboxStore;
+import com.ericdaugherty.mail.server.server.store.UnstuffingChannel;
+import com.ericdaugherty.mail.server.services.smtp.DeliveryNotifier;
+import com.ericdaugherty.mail.server.services.smtp.SMTPProcessor;
+
+/**
+ * Runs the SMTP receiver inside another application, typically a test, with
+ * the messages kept in memory:
+ *
+ * <pre>
+ * SmtpReceiver receiver = SmtpReceiver.builder().build().start();
+ * // send mail to localhost:receiver.getPort()
+ * Message message = receiver.await(
+ * 		DeliveryNotifier.Predicate.recipient(&quot;user@example.com&quot;), 5000);
+ * String text = receiver.getMessageText(message);
+ * receiver.stop();
+ * </pre>
+ *
+ * Only SMTP is started. Messages are delivered to the in-memory mailbox as
+ * soon as they are received, so nothing is written to disk, and every start
+ * begins with an empty mailbox.
+ * <p>
+ * The configuration of the server is a singleton, so only one receiver can
+ * run in a JVM at a time. A receiver can not be used alongside a server
+ * started by Mail.main().
+ */
+public class SmtpReceiver implements ConfigurationParameterContants {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** The receiver that is running, if any */
+	private static SmtpReceiver running = null;
+
+	/** The configuration properties */
+	private Properties properties;
+
+	/** The SMTP listener, while started */
+	private ServiceListener listener;
+
+	/** The mailbox of the current run */
+	private User mailbox;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	private SmtpReceiver(Properties properties) {
+		this.properties = properties;
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Returns a builder for a receiver that listens on a free port of the
+	 * loopback address.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Starts listening for connections. Returns once the port is bound.
+	 *
+	 * @return this receiver.
+	 * @throws IllegalStateException
+	 *             if a receiver is already running in this JVM, or the port
+	 *             could not be bound.
+	 */
+	public synchronized SmtpReceiver start() {
+
+		synchronized (SmtpReceiver.class) {
+			if (running != null) {
+				throw new IllegalStateException(
+						"An SmtpReceiver is already running in this JVM.");
+			}
+			running = this;
+		}
+
+		try {
+			ConfigurationManager configurationManager = ConfigurationManager
+					.initialize(properties, System
+							.getProperty("java.io.tmpdir"));
+			listener = new ServiceListener(configurationManager.getSmtpPort(),
+					SMTPProcessor.class,
+					configurationManager.getExecuteThreadCount());
+
+			// Run the listener on a thread of its own so the processor
+			// threads are named after it.
+			Thread thread = new Thread(listener, "SMTP");
+			thread.start();
+			thread.join();
+
+			if (listener.getLocalPort() == -1) {
+				throw new IllegalStateException("Unable to listen on port "
+						+ configurationManager.getSmtpPort() + ".");
+			}
+			mailbox = configurationManager.getUser();
+		} catch (InterruptedException ie) {
+			release();
+			throw new IllegalStateException("Interrupted while starting.");
+		} catch (RuntimeException runtimeException) {
+			release();
+			throw runtimeException;
+		}
+		return this;
+	}
+
+	/**
+	 * Stops listening and waits for the connections in progress to finish.
+	 * The messages received are dropped.
+	 */
+	public synchronized void stop() {
+
+		if (listener == null) {
+			return;
+		}
+		listener.shutdown();
+		listener = null;
+		mailbox = null;
+		release();
+	}
+
+	/**
+	 * The port the receiver accepts connections on.
+	 */
+	public synchronized int getPort() {
+		return listener == null ? -1 : listener.getLocalPort();
+	}
+
+	/**
+	 * Returns the messages received so far, in the order they were
+	 * delivered.
+	 */
+	public Message[] getMessages() {
+
+		Maildrop maildrop = getStore().getMaildrop(null);
+		Message[] messages = new Message[maildrop.getMessageCount()];
+		for (int index = 0; index < messages.length; index++) {
+			messages[index] = maildrop.getMessage(index + 1);
+		}
+		return messages;
+	}
+
+	/**
+	 * Returns the messages that have the value in the header, in the order
+	 * they were delivered.
+	 */
+	public Message[] find(String headerName, String value) {
+		return getStore().find(headerName, value);
+	}
+
+	/**
+	 * Waits for a message that matches the predicate. A matching message
+	 * that was received before the call is returned at once.
+	 *
+	 * @return the message, or null if none was received in time.
+	 */
+	public Message await(DeliveryNotifier.Predicate predicate,
+			long timeoutMilliseconds) throws InterruptedException {
+		return DeliveryNotifier.getDeliveryNotifier().await(getMailbox(),
+				predicate, 0, timeoutMilliseconds);
+	}
+
+	/**
+	 * Returns the message as it was received, without the dot-stuffing used
+	 * on the wire. The X-DeliveredTo header added on delivery comes first.
+	 */
+	public byte[] getMessageData(Message message) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		getStore().transferMessage(message,
+				new UnstuffingChannel(Channels.newChannel(out)));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the message as getMessageData() does, decoded as UTF-8.
+	 */
+	public String getMessageText(Message message) throws IOException {
+		return new String(getMessageData(message), CHARSET);
+	}
+
+	/**
+	 * Removes all the messages received so far, at once however many there
+	 * are.
+	 */
+	public void clear() {
+		try {
+			getMailbox().purge();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Unable to purge the mailbox: "
+					+ ioe);
+		}
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private synchronized User getMailbox() {
+		if (mailbox == null) {
+			throw new IllegalStateException("The SmtpReceiver is not running.");
+		}
+		return mailbox;
+	}
+
+	private MailboxStore getStore() {
+		return getMailbox().getMailboxStore();
+	}
+
+	private static synchronized void release() {
+		running = null;
+	}
+
+	// ***************************************************************
+	// Builder
+	// ***************************************************************
+
+	/**
+	 * Collects the configuration of a receiver. Anything not set has the
+	 * value of the bundled mail.conf.
+	 */
+	public static class Builder {
+
+		private Properties properties = new Properties();
+
+		private Builder() {
+			properties.setProperty(SMTPPORT, "0");
+			properties.setProperty(LISTEN_ADDRESS, "127.0.0.1");
+		}
+
+		/**
+		 * The port to listen on. Defaults to 0, which picks a free port.
+		 */
+		public Builder port(int port) {
+			properties.setProperty(SMTPPORT, String.valueOf(port));
+			return this;
+		}
+
+		/**
+		 * The address to listen on. Defaults to 127.0.0.1.
+		 */
+		public Builder listenAddress(String address) {
+			properties.setProperty(LISTEN_ADDRESS, address);
+			return this;
+		}
+
+		/**
+		 * The number of connections handled at the same time.
+		 */
+		public Builder threads(int threads) {
+			properties.setProperty(EXECUTE_THREADS, String.valueOf(threads));
+			return this;
+		}
+
+		/**
+		 * The maximum size of a message in megabytes.
+		 */
+		public Builder maximumMessageSize(int megabytes) {
+			properties.setProperty(SMTP_MAX_MESSAGE_SIZE,
+					String.valueOf(megabytes));
+			return this;
+		}
+
+		/**
+		 * Sets any other property of mail.conf. The mailbox format is
+		 * 'memory' unless it is set to 'ring'.
+		 */
+		public Builder property(String name, String value) {
+			properties.setProperty(name, value);
+			return this;
+		}
+
+		public SmtpReceiver build() {
+			Properties copy = new Properties();
+			copy.putAll(properties);
+			if (!MAILBOX_FORMAT_RING.equals(copy.getProperty(MAILBOX_FORMAT))) {
+				copy.setProperty(MAILBOX_FORMAT, MAILBOX_FORMAT_MEMORY);
+			}
+			return new SmtpReceiver(copy);
+		}
+	}
+}
@@ -1,773 +1,1293 @@
-/******************************************************************************
- * This program is SMTP receiver which collect all mails to same inbox.
- * inbox is readable with pop protocol
- * NO mails are forwared.
- ******************************************************************************
- * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
- * All rights reserved.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- ******************************************************************************
- *
- * Refactored 2011 by Sampsa Sohlman for smtp receiver use
- *
- ******************************************************************************
- * For current versions and more information, please visit:
- * 
- * http://www.ericdaugherty.com/java/mail
- *
- * or contact the author at:
- * java@ericdaugherty.com
- *
- ******************************************************************************
- * This program is based on the CSRMail project written by Calvin Smith.
- * http://crsemail.sourceforge.net/
- *****************************************************************************/
-
-package com.ericdaugherty.mail.server.configuration;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Properties;
-import java.util.StringTokenizer;
-import java.util.Vector;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.ericdaugherty.mail.server.server.errors.InvalidAddressException;
-import com.ericdaugherty.mail.server.server.info.EmailAddress;
-import com.ericdaugherty.mail.server.server.info.User;
-
-/**
- * Provides a centralized repository for all configuration information.
- * <p>
- * All configuration information should be retrieved here for every use. The
- * ConfigurationManager will reload configuration changes dynamically.
- * <p>
- * Classes may cache the reference to the ConfigurationManager instance, as only
- * one will ever be created.
- * 
- * @author Eric Daugherty
- */
-public class ConfigurationManager implements ConfigurationParameterContants {
-
-	// ***************************************************************
-	// Variables
-	// ***************************************************************
-
-	private static ConfigurationManager instance;
-
-	/** The file reference to the mail.conf configuration file */
-	private File generalConfigurationFile;
-
-	/** The timestamp for the mail.conf file when it was last loaded */
-	private long generalConfigurationFileTimestamp;
-
-	/** The file reference to the user.conf configuration file */
-	private File userConfigurationFile;
-
-	/** The timestamp for the user.conf file when it was last loaded */
-	private long userConfigurationFileTimestamp;
-
-	/**
-	 * Tracks whether the user configuration properties were changed during
-	 * loading
-	 */
-	private boolean userConfModified = false;
-
-	/** Logger */
-	private Logger log = LoggerFactory.getLogger(this.getClass());
-
-	//
-	// Configuration Properties
-	//
-
-	/** The root directory used to store the incoming and outgoing messages. */
-	private String mailDirectory;
-
-	/** The number of threads to use for each listener */
-	private int executeThreadCount;
-
-	/** The local IP address to lisen on. Null for all addresses */
-	private InetAddress listenAddress;
-
-	/** The port the SMTP server listens on. */
-	private int smtpPort;
-
-	/** The port the POP3 server listens on */
-	private int pop3Port;
-
-	/** The timeout length for authenticated ip addresses */
-	private long authenticationTimeoutMilliseconds;
-
-	/** True if POP Before SMTP is enabled */
-	private boolean enablePOPBeforeSMTP;
-
-	/** IP Addresses that are allowed to relay mail. */
-	private String[] relayApprovedIpAddresses;
-
-	/** Email Addresses that are allowed to relay mail. */
-	private String[] relayApprovedEmailAddresses;
-
-	/** True if all outgoing mail should go though the default server */
-	private boolean defaultSmtpServerEnabled;
-
-	/** The servers to send all outgoing mail through */
-	private DefaultSmtpServer[] defaultSmtpServers;
-
-	/**
-	 * True if email to the local domain for a non-existent user should be
-	 * delivered to the default user.
-	 */
-	private boolean defaultUserEnabled;
-
-	/** The user to delivery default email to */
-	private EmailAddress defaultUser;
-
-	/** The number of seconds to wait between delivery attempts */
-	private long deliveryIntervalSeconds;
-
-	/**
-	 * The max number of delivery attempts before message is considered
-	 * 'undeliverable' and moved to 'failed' folder
-	 */
-	private int deliveryAttemptThreshold;
-
-	/** The maximum size (in megabytes) allowed for email attachments. */
-	private int maximumMessageSize;
-
-	/** A Map of Users keyed by their full username */
-	// private Map users;
-
-	private User user;
-
-	private String email;
-
-	// ***************************************************************
-	// Constructor
-	// ***************************************************************
-
-	/**
-	 * Initialize the file path. Enforces the Singleton pattern.
-	 * 
-	 * @param generalConfigurationFile
-	 *            the file to load the general configuration from.
-	 * @param userConfigurationFile
-	 *            the file to load the user configuration from.
-	 * @throws InvalidAddressException
-	 */
-	private ConfigurationManager(File generalConfigurationFile, String email) {
-		this.generalConfigurationFile = generalConfigurationFile;
-		this.email = email;
-	}
-
-	// ***************************************************************
-	// Static Methods
-	// ***************************************************************
-
-	/**
-	 * Initializes the ConfigurationManager to use the specified directory. This
-	 * method should only be called once during startup, and then never again.
-	 * The file path can not be re-initialized!
-	 * 
-	 * @param configurationDirectory
-	 *            the directory that contains mail.conf and user.conf
-	 * @return returns the singleton instance of the ConfigurationManager.
-	 * @throws RuntimeException
-	 *             thrown if called more than once, the file does not exist, or
-	 *             there is an error loading the file.
-	 */
-	public static synchronized ConfigurationManager initialize(
-			String configurationDirectory) throws RuntimeException {
-		String generalConfigFilename = "mail.conf";
-
-		// Make sure we are not already configured.
-		if (instance != null) {
-			throw new RuntimeException(
-					"Configurationmanager:initialize() called more than once!");
-		}
-
-		// Verify the General config file exists.
-		File generalConfigFile = new File(configurationDirectory,
-				generalConfigFilename);
-
-		// Go ahead and create the singleton instance.
-		instance = new ConfigurationManager(generalConfigFile,
-				"mailbox@mail.local");
-
-		instance.setMailDirectory(configurationDirectory);
-
-		// Load the properties from disk.
-		instance.loadProperties();
-
-		// Start the Watchdog Thread
-		instance.new ConfigurationFileWatcher().start();
-
-		return instance;
-	}
-
-	/**
-	 * Provides access to the singleton instance.
-	 * 
-	 * @return the singleton instance.
-	 */
-	public static synchronized ConfigurationManager getInstance() {
-		if (instance == null) {
-			throw new RuntimeException(
-					"ConfigurationManager can not be accessed before it is initialized!");
-		}
-		return instance;
-	}
-
-	// ***************************************************************
-	// Public Methods
-	// ***************************************************************
-
-	public void loadProperties() {
-		loadGeneralProperties();
-		loadUserProperties();
-	}
-
-	// ***************************************************************
-	// Parameter Access Methods
-	// ***************************************************************
-
-	/**
-	 * The root directory used to store the incoming and outgoing messages.
-	 * 
-	 * @return String
-	 */
-	public String getMailDirectory() {
-		return mailDirectory;
-	}
-
-	/**
-	 * Get the max number of delivvery attempts before message is considered
-	 * 'undeliverable' and moved to 'failed' folder
-	 * 
-	 * @return int
-	 */
-	public int getDeliveryAttemptThreshold() {
-		return deliveryAttemptThreshold;
-	}
-
-	/** The maximum size (in megabytes) allowed for email attachments. */
-	public int getMaximumMessageSize() {
-		return maximumMessageSize;
-	}
-
-	/**
-	 * The root directory used to store the incoming and outgoing messages.
-	 * 
-	 * @param mailDirectory
-	 *            String
-	 */
-	public void setMailDirectory(String mailDirectory) {
-		this.mailDirectory = mailDirectory;
-	}
-
-	/**
-	 * The number of threads to use for each listener.
-	 * 
-	 * @return int
-	 */
-	public int getExecuteThreadCount() {
-		return executeThreadCount;
-	}
-
-	/**
-	 * The number of threads to use for each listener.
-	 * 
-	 * @param executeThreadCount
-	 *            int
-	 */
-	public void setExecuteThreadCount(int executeThreadCount) {
-		this.executeThreadCount = executeThreadCount;
-	}
-
-	/**
-	 * The local IP address to lisen on. Null for all addresses
-	 * 
-	 * @return null for all addresses.
-	 */
-	public InetAddress getListenAddress() {
-		return listenAddress;
-	}
-
-	/**
-	 * The port the SMTP server listens on.
-	 * 
-	 * @return port number
-	 */
-	public int getSmtpPort() {
-		return smtpPort;
-	}
-
-	/**
-	 * The port the SMTP server listens on.
-	 * 
-	 * @param smtpPort
-	 *            port number
-	 */
-	public void setSmtpPort(int smtpPort) {
-		this.smtpPort = smtpPort;
-	}
-
-	/**
-	 * The port the POP3 server listens on.
-	 * 
-	 * @return port number
-	 */
-	public int getPop3Port() {
-		return pop3Port;
-	}
-
-	/**
-	 * The port the POP3 server listens on.
-	 * 
-	 * @param pop3Port
-	 *            port number
-	 */
-	public void setPop3Port(int pop3Port) {
-		this.pop3Port = pop3Port;
-	}
-
-	/**
-	 * Returns the specified user, or null if the user does not exist.
-	 * 
-	 * @param address
-	 *            the user's full email address.
-	 * @return null if the user does not exist.
-	 */
-	public User getUser() {
-		return this.user;
-	}
-
-	/** The timeout length for authenticated ip addresses */
-	public long getAuthenticationTimeoutMilliseconds() {
-		return authenticationTimeoutMilliseconds;
-	}
-
-	/** The timeout length for authenticated ip addresses */
-	public void setAuthenticationTimeoutMinutes(long minutes) {
-		this.authenticationTimeoutMilliseconds = minutes * 60 * 1000;
-	}
-
-	/** True if POP Before SMTP is a valid relay option */
-	public boolean isEnablePOPBeforeSMTP() {
-		return enablePOPBeforeSMTP;
-	}
-
-	/** True if POP Before SMTP is a valid relay option */
-	public void setEnablePOPBeforeSMTP(boolean enablePOPBeforeSMTP) {
-		this.enablePOPBeforeSMTP = enablePOPBeforeSMTP;
-	}
-
-	/** IP Addresses that are allowed to relay mail. */
-	public String[] getRelayApprovedIpAddresses() {
-		return relayApprovedIpAddresses;
-	}
-
-	/** IP Addresses that are allowed to relay mail. */
-	public void setRelayApprovedIpAddresses(String[] relayApprovedIpAddresses) {
-		this.relayApprovedIpAddresses = relayApprovedIpAddresses;
-	}
-
-	/** Email Addresses that are allowed to relay mail. */
-	public String[] getRelayApprovedEmailAddresses() {
-		return relayApprovedEmailAddresses;
-	}
-
-	/** Emails Addresses that are allowed to relay mail. */
-	public void setRelayApprovedEmailAddresses(
-			String[] relayApprovedEmailAddresses) {
-		this.relayApprovedEmailAddresses = relayApprovedEmailAddresses;
-	}
-
-	/** True if all outgoing mail should go though the default server */
-	public boolean isDefaultSmtpServerEnabled() {
-		return defaultSmtpServerEnabled;
-	}
-
-	/** True if all outgoing mail should go though the default server */
-	public void setDefaultSmtpServerEnabled(boolean defaultSmtpServerEnabled) {
-		this.defaultSmtpServerEnabled = defaultSmtpServerEnabled;
-	}
-
-	/** The servers to send all outoing mail through */
-	public DefaultSmtpServer[] getDefaultSmtpServers() {
-		return defaultSmtpServers;
-	}
-
-	/** The server to send all outoing mail through */
-	public void setDefaultSmtpServers(DefaultSmtpServer[] defaultSmtpServers) {
-		this.defaultSmtpServers = defaultSmtpServers;
-	}
-
-	public EmailAddress getDefaultUser() {
-		return defaultUser;
-	}
-
-	/** The number of seconds to wait between delivery attempts */
-	public long getDeliveryIntervalSeconds() {
-		return deliveryIntervalSeconds;
-	}
-
-	/** The number of milliseconds to wait between delivery attempts */
-	public long getDeliveryIntervealMilliseconds() {
-		return deliveryIntervalSeconds * 1000;
-	}
-
-	/** The number of seconds to wait between delivery attempts */
-	public void setDeliveryIntervalSeconds(long deliveryIntervalSeconds) {
-		this.deliveryIntervalSeconds = deliveryIntervalSeconds;
-	}
-
-	// ***************************************************************
-	// Private Methods
-	// ***************************************************************
-
-	/**
-	 * Loads the properties file into the local variables for quick access.
-	 */
-	private void loadGeneralProperties() {
-		Properties properties = new Properties();
-
-		if (generalConfigurationFile.exists()) {
-			try {
-				FileInputStream inputStream = new FileInputStream(
-						generalConfigurationFile);
-				properties.load(inputStream);
-				log.info("configuration read from {}", generalConfigurationFile);
-			} catch (IOException e) {
-				throw new RuntimeException(
-						"Error Loading Properties File!  Unable to continue Operation.");
-			}
-		} else {
-			log.info("mail.conf not found from configuration directory using default");
-			InputStream inputStream = getClass().getResourceAsStream(
-					"/mail.conf");
-			try {
-				
-				properties.load(inputStream);
-			} catch (IOException ioException) {
-				// All checks should be done before we get here, so there better
-				// not be any errors. If so, throw a RuntimeException.
-				throw new RuntimeException(
-						"Error Loading Properties File!  Unable to continue Operation.");
-			}
-		}
-
-		//
-		// Load the number of Execute Threads for each listener
-		//
-
-		// Load the number of execute threads to use for each ServiceListener.
-		String threadsString = properties.getProperty(EXECUTE_THREADS, "5");
-		try {
-			executeThreadCount = Integer.parseInt(threadsString);
-		} catch (NumberFormatException nfe) {
-			log.warn("Invalid value for property: " + EXECUTE_THREADS
-					+ ".  Using default value of 5.");
-			executeThreadCount = 5;
-		}
-
-		//
-		// Load the address port numbers
-		//
-
-		String listenAddressString = properties.getProperty(LISTEN_ADDRESS, "");
-		listenAddressString.trim();
-		// If not address is specified, default to null. ServiceListener can
-		// handle
-		// a null listenAddress.
-		if (listenAddressString.length() > 0) {
-			try {
-				listenAddress = InetAddress.getByName(listenAddressString);
-			} catch (UnknownHostException unknownHostException) {
-				throw new RuntimeException("Invalid value for property: "
-						+ LISTEN_ADDRESS
-						+ ".  Server will listen on all addresses.  "
-						+ unknownHostException);
-			}
-		} else {
-			listenAddress = null;
-		}
-
-		String smtpPortString = properties.getProperty(SMTPPORT);
-		String pop3PortString = properties.getProperty(POP3PORT);
-		smtpPort = parsePort(smtpPortString, 25);
-		pop3Port = parsePort(pop3PortString, 110);
-
-		//
-		// Load the SMTP Delivery Parameters
-
-		enablePOPBeforeSMTP = Boolean.valueOf(
-				properties.getProperty(RELAY_POP_BEFORE_SMTP, "false"))
-				.booleanValue();
-		// Initialize the timeout Minutes parameter
-		String timoutString = properties.getProperty(
-				RELAY_POP_BEFORE_SMTP_TIMEOUT, "10");
-		try {
-			setAuthenticationTimeoutMinutes(Long.parseLong(timoutString));
-		} catch (NumberFormatException nfe) {
-			log.warn("Invalid value for property: "
-					+ RELAY_POP_BEFORE_SMTP_TIMEOUT + ". Defaulting to 10.");
-			// Set the default to 10 minutes.
-			setAuthenticationTimeoutMinutes(10);
-		}
-
-		// Relay approved IP Addresses
-		String ipAddresses = properties.getProperty(RELAY_ADDRESSLIST, "");
-		setRelayApprovedIpAddresses(tokenize(ipAddresses));
-
-		// Relay approved email Addresses
-		String emailAddresses = properties.getProperty(RELAY_EMAILSLIST, "");
-		setRelayApprovedEmailAddresses(tokenize(emailAddresses));
-
-		// Load default Server info.
-
-		defaultSmtpServerEnabled = false;
-		defaultSmtpServers = new DefaultSmtpServer[0];
-
-		String deliveryIntervalString = properties.getProperty(
-				SMTP_DELIVERY_INTERVAL, "10");
-		try {
-			// Convert to number and then convert to ms.
-			setDeliveryIntervalSeconds(Long.parseLong(deliveryIntervalString));
-		} catch (NumberFormatException nfe) {
-			setDeliveryIntervalSeconds(10);
-		}
-
-		// Set the Delivery Attempt Threshold.
-		try {
-			deliveryAttemptThreshold = Integer.parseInt(properties.getProperty(
-					SMTP_DELIVERY_THRESHOLD, "10"));
-		} catch (NumberFormatException numberFormatException) {
-			log.warn("Invalid value for property: " + SMTP_DELIVERY_THRESHOLD
-					+ ". Defaulting to 10.");
-			deliveryAttemptThreshold = 10;
-		}
-
-		// Set the Maximum message Size
-		try {
-			maximumMessageSize = Integer.parseInt(properties.getProperty(
-					SMTP_MAX_MESSAGE_SIZE, "5"));
-		} catch (NumberFormatException numberFormatException) {
-			log.warn("Invalid value for property: " + SMTP_MAX_MESSAGE_SIZE
-					+ ". Defaulting to 5.");
-			deliveryAttemptThreshold = 5;
-		}
-
-		// Update the 'last loaded' timestamp.
-		generalConfigurationFileTimestamp = generalConfigurationFile
-				.lastModified();
-	}
-
-	private void loadUserProperties() {
-		try {
-			this.defaultUser = new EmailAddress(this.email);
-			this.user = new User(this.defaultUser);
-		} catch (InvalidAddressException e) {
-			// ignore
-		}
-	}
-
-	/**
-	 * Loads the values of the specified key from the configuration file. This
-	 * method parses the value into a String array using the comma (,) as a
-	 * delimiter. This method returns an array of size 0 if the the value string
-	 * was null or empty.
-	 * 
-	 * @param value
-	 *            the string to tokenize into an array.
-	 * @return a String[] of the values, or an empty array if the key could not
-	 *         be found.
-	 */
-	public static String[] tokenize(String value) {
-
-		if (value == null || value.trim().equals("")) {
-			return new String[0];
-		} else {
-			StringTokenizer stringTokenizer = new StringTokenizer(value, ",");
-			Vector tokenVector = new Vector();
-			while (stringTokenizer.hasMoreTokens()) {
-				tokenVector.addElement(stringTokenizer.nextToken().trim());
-			}
-
-			String[] values = new String[tokenVector.size()];
-			return (String[]) tokenVector.toArray(values);
-		}
-	}
-
-	/**
-	 * Converts the string into a valid port number.
-	 * 
-	 * @param stringValue
-	 *            the string value to parse
-	 * @param defaultValue
-	 *            the default value to return if parsing fails.
-	 * @return a valid int.
-	 */
-	private int parsePort(String stringValue, int defaultValue) {
-		int value = defaultValue;
-		if (stringValue != null && stringValue.length() > 0) {
-			try {
-				value = Integer.parseInt(stringValue);
-			} catch (NumberFormatException e) {
-				log.warn("Error parsing port string: " + stringValue
-						+ " using default value: " + defaultValue);
-			}
-		}
-		return value;
-	}
-
-	/**
-	 * Creates a new User instance for the specified username using the
-	 * specified properties.
-	 * 
-	 * @param fullAddress
-	 *            full username (me@mydomain.com)
-	 * @param properties
-	 *            the properties that contain the user parameters.
-	 * @return a new User instance.
-	 */
-	private User loadUser(String fullAddress, Properties properties)
-			throws InvalidAddressException {
-		EmailAddress address = new EmailAddress(fullAddress);
-		User user = new User(address);
-
-		// Load the password
-		String password = properties.getProperty(USER_DEF_PREFIX + fullAddress);
-		// If the password is not hashed, hash it now.
-		if (password.length() != 60) {
-			password = PasswordManager.encryptPassword(password);
-			properties.setProperty(USER_DEF_PREFIX + fullAddress, password);
-			if (password == null) {
-				log.error("Error encrypting plaintext password from user.conf for user "
-						+ fullAddress);
-				throw new RuntimeException(
-						"Error encrypting password for user: " + fullAddress);
-			}
-			userConfModified = true;
-		}
-		user.setPassword(password);
-
-		// Load the 'forward' addresses.
-		String forwardAddressesString = properties
-				.getProperty(USER_PROPERTY_PREFIX + fullAddress
-						+ USER_FILE_FORWARDS);
-		String[] forwardAddresses = new String[0];
-		if (forwardAddressesString != null
-				&& forwardAddressesString.trim().length() >= 0) {
-			forwardAddresses = tokenize(forwardAddressesString);
-		}
-		ArrayList addressList = new ArrayList(forwardAddresses.length);
-		for (int index = 0; index < forwardAddresses.length; index++) {
-			try {
-				addressList.add(new EmailAddress(forwardAddresses[index]));
-			} catch (InvalidAddressException e) {
-				log.warn("Forward address: " + forwardAddresses[index]
-						+ " for user " + user.getFullUsername()
-						+ " is invalid and will be ignored.");
-			}
-		}
-
-		EmailAddress[] emailAddresses = new EmailAddress[addressList.size()];
-		emailAddresses = (EmailAddress[]) addressList.toArray(emailAddresses);
-
-		if (log.isDebugEnabled())
-			log.debug(emailAddresses.length
-					+ " forward addresses load for user: "
-					+ user.getFullUsername());
-		user.setForwardAddresses(emailAddresses);
-
-		return user;
-	}
-
-	// ***************************************************************
-	// Watchdog Inner Class
-	// ***************************************************************
-
-	/**
-	 * Checks the user configuration file and reloads it if it is new.
-	 */
-	class ConfigurationFileWatcher extends Thread {
-
-		/**
-		 * Initialize the thread.
-		 */
-		public ConfigurationFileWatcher() {
-			super("User Config Watchdog");
-			setDaemon(true);
-		}
-
-		/**
-		 * Check the timestamp on the file to see if it has been updated.
-		 */
-		public void run() {
-			long sleepTime = 10 * 1000;
-			while (true) {
-				try {
-					Thread.sleep(sleepTime);
-					if (generalConfigurationFile.lastModified() > generalConfigurationFileTimestamp) {
-						log.info("General Configuration File Changed, reloading...");
-						loadGeneralProperties();
-					}
-				} catch (Throwable throwable) {
-					log.error(
-							"Error in ConfigurationWatcher thread.  Thread will continue to execute. "
-									+ throwable, throwable);
-				}
-			}
-		}
-	}
-
-	private static final String LF = "\r\n";
-
-	private static final String USER_PROPERTIES_HEADER = "# Java Email Server (JES) User Configuration"
-			+ LF
-			+ "#"
-			+ LF
-			+ "# All users are defined in this file.  To add a user, follow"
-			+ LF
-			+ "# the following pattern:"
-			+ LF
-			+ "# user.<username@domain>=<plain text password>"
-			+ LF
-			+ "#"
-			+ LF
-			+ "# The plain text password will be converted to a hash when the file"
-			+ LF
-			+ "# is first loaded by the server."
-			+ LF
-			+ "#"
-			+ LF
-			+ "# Additional configuration such as forward addresses can be specified as:"
-			+ LF
-			+ "# userprop.<username@domain>.forwardAddresses=<Comma list of forward addresses>"
-			+ LF
-			+ "#"
-			+ LF
-			+ "# When a message is received for a local user, the user's address will be replaced"
-			+ LF
-			+ "# with the addresses in the forwardAddresses property.  If you also wish to have"
-			+ LF
-			+ "# a copy delivered to the local user, you may add the user's local address to"
-			+ LF + "# the forwardAddresses property" + LF + "";
-}
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * 
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.configuration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.errors.InvalidAddressException;
+import com.ericdaugherty.mail.server.server.info.EmailAddress;
+import com.ericdaugherty.mail.server.server.info.User;
+
+/**
+ * Provides a centralized repository for all configuration information.
+ * <p>
+ * All configuration information should be retrieved here for every use. The
+ * ConfigurationManager will reload configuration changes dynamically.
+ * <p>
+ * Classes may cache the reference to the ConfigurationManager instance, as only
+ * one will ever be created.
+ * 
+ * @author Eric Daugherty
+ */
+public class ConfigurationManager implements ConfigurationParameterContants {
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	private static ConfigurationManager instance;
+
+	/** The file reference to the mail.conf configuration file */
+	private File generalConfigurationFile;
+
+	/** The timestamp for the mail.conf file when it was last loaded */
+	private long generalConfigurationFileTimestamp;
+
+	/** The file reference to the user.conf configuration file */
+	private File userConfigurationFile;
+
+	/** The timestamp for the user.conf file when it was last loaded */
+	private long userConfigurationFileTimestamp;
+
+	/**
+	 * Tracks whether the user configuration properties were changed during
+	 * loading
+	 */
+	private boolean userConfModified = false;
+
+	/** Logger */
+	private Logger log = LoggerFactory.getLogger(this.getClass());
+
+	//
+	// Configuration Properties
+	//
+
+	/** The root directory used to store the incoming and outgoing messages. */
+	private String mailDirectory;
+
+	/** The number of threads to use for each listener */
+	private int executeThreadCount;
+
+	/** The local IP address to lisen on. Null for all addresses */
+	private InetAddress listenAddress;
+
+	/** The port the SMTP server listens on. */
+	private int smtpPort;
+
+	/** The port the POP3 server listens on */
+	private int pop3Port;
+
+	/** The port the HTTP API listens on, 0 if it is disabled */
+	private int httpPort;
+
+	/** The timeout length for authenticated ip addresses */
+	private long authenticationTimeoutMilliseconds;
+
+	/** True if POP Before SMTP is enabled */
+	private boolean enablePOPBeforeSMTP;
+
+	/** IP Addresses that are allowed to relay mail. */
+	private String[] relayApprovedIpAddresses;
+
+	/** Email Addresses that are allowed to relay mail. */
+	private String[] relayApprovedEmailAddresses;
+
+	/** True if all outgoing mail should go though the default server */
+	private boolean defaultSmtpServerEnabled;
+
+	/** The servers to send all outgoing mail through */
+	private DefaultSmtpServer[] defaultSmtpServers;
+
+	/**
+	 * True if email to the local domain for a non-existent user should be
+	 * delivered to the default user.
+	 */
+	private boolean defaultUserEnabled;
+
+	/** The user to delivery default email to */
+	private EmailAddress defaultUser;
+
+	/** The number of seconds to wait between delivery attempts */
+	private long deliveryIntervalSeconds;
+
+	/** The maximum number of seconds to wait between delivery attempts */
+	private long deliveryMaximumBackoffSeconds;
+
+	/** The number of threads delivering messages to the mailboxes */
+	private int deliveryThreadCount;
+
+	/**
+	 * The max number of delivery attempts before message is considered
+	 * 'undeliverable' and moved to 'failed' folder
+	 */
+	private int deliveryAttemptThreshold;
+
+	/** The maximum size (in megabytes) allowed for email attachments. */
+	private int maximumMessageSize;
+
+	/** The format the mailboxes are stored in */
+	private String mailboxFormat;
+
+	/** The size (in megabytes) of the segments of packed mailboxes */
+	private int mailboxSegmentSize;
+
+	/** The size (in megabytes) of the buffer of ring mailboxes */
+	private int mailboxRingSize;
+
+	/** The maximum number of messages in a ring mailbox */
+	private int mailboxRingMessages;
+
+	/** The size (in megabytes) of the message cache */
+	private int mailboxCacheSize;
+
+	/** The headers indexed on delivery */
+	private String[] mailboxIndexedHeaders;
+
+	/** True if the text of the messages is indexed on delivery */
+	private boolean mailboxTextIndex;
+
+	/** The minutes an unused mailbox stays open */
+	private int mailboxIdleTimeout;
+
+	/** The number of mailboxes kept open at most */
+	private int mailboxOpenLimit;
+
+	/** How recipients are mapped to mailboxes */
+	private String mailboxRouting;
+
+	/** The compiled routing rules, replaced as a whole on reload */
+	private volatile RoutingTable routingTable;
+
+	/**
+	 * The Users of the routed mailboxes keyed by their full username. A user
+	 * is removed when its idle mailbox is closed, so the map is bounded by
+	 * mailbox.openlimit.
+	 */
+	private ConcurrentMap<String, User> users;
+
+	private User user;
+
+	private String email;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Initialize the file path. Enforces the Singleton pattern.
+	 * 
+	 * @param generalConfigurationFile
+	 *            the file to load the general configuration from.
+	 * @param userConfigurationFile
+	 *            the file to load the user configuration from.
+	 * @throws InvalidAddressException
+	 */
+	private ConfigurationManager(File generalConfigurationFile, String email) {
+		this.generalConfigurationFile = generalConfigurationFile;
+		this.email = email;
+	}
+
+	// ***************************************************************
+	// Static Methods
+	// ***************************************************************
+
+	/**
+	 * Initializes the ConfigurationManager to use the specified directory. This
+	 * method should only be called once during startup, and then never again.
+	 * The file path can not be re-initialized!
+	 * 
+	 * @param configurationDirectory
+	 *            the directory that contains mail.conf and user.conf
+	 * @return returns the singleton instance of the ConfigurationManager.
+	 * @throws RuntimeException
+	 *             thrown if called more than once, the file does not exist, or
+	 *             there is an error loading the file.
+	 */
+	public static synchronized ConfigurationManager initialize(
+			String configurationDirectory) throws RuntimeException {
+		String generalConfigFilename = "mail.conf";
+
+		// Make sure we are not already configured.
+		if (instance != null) {
+			throw new RuntimeException(
+					"Configurationmanager:initialize() called more than once!");
+		}
+
+		// Verify the General config file exists.
+		File generalConfigFile = new File(configurationDirectory,
+				generalConfigFilename);
+
+		// Go ahead and create the singleton instance.
+		instance = new ConfigurationManager(generalConfigFile,
+				"mailbox@mail.local");
+
+		instance.setMailDirectory(configurationDirectory);
+
+		// Load the properties from disk.
+		instance.loadProperties();
+
+		// Start the Watchdog Thread
+		instance.new ConfigurationFileWatcher().start();
+
+		return instance;
+	}
+
+	/**
+	 * Initializes the ConfigurationManager from properties instead of a
+	 * configuration directory, for a server embedded in another application.
+	 * Properties that are not given have the values of the bundled mail.conf.
+	 * Unlike initialize(String), this may be called again after the server
+	 * using the configuration was stopped: the new properties then replace
+	 * the old ones, and the user gets a new mailbox.
+	 * 
+	 * @param properties
+	 *            the general configuration properties.
+	 * @param mailDirectory
+	 *            the directory for the files of the server, which is not
+	 *            used by the 'memory' mailbox format.
+	 * @return returns the singleton instance of the ConfigurationManager.
+	 * @throws RuntimeException
+	 *             thrown if initialize(String) was called before.
+	 */
+	public static synchronized ConfigurationManager initialize(
+			Properties properties, String mailDirectory)
+			throws RuntimeException {
+
+		if (instance == null) {
+			instance = new ConfigurationManager(null, "mailbox@mail.local");
+		} else if (instance.generalConfigurationFile != null) {
+			throw new RuntimeException(
+					"Configurationmanager already initialized from a configuration directory!");
+		}
+
+		instance.setMailDirectory(mailDirectory);
+
+		Properties merged = instance.loadDefaultProperties();
+		merged.putAll(properties);
+		instance.loadGeneralProperties(merged);
+		instance.loadUserProperties();
+
+		return instance;
+	}
+
+	/**
+	 * Provides access to the singleton instance.
+	 * 
+	 * @return the singleton instance.
+	 */
+	public static synchronized ConfigurationManager getInstance() {
+		if (instance == null) {
+			throw new RuntimeException(
+					"ConfigurationManager can not be accessed before it is initialized!");
+		}
+		return instance;
+	}
+
+	// ***************************************************************
+	// Public Methods
+	// ***************************************************************
+
+	public void loadProperties() {
+		loadGeneralProperties();
+		loadUserProperties();
+	}
+
+	// ***************************************************************
+	// Parameter Access Methods
+	// ***************************************************************
+
+	/**
+	 * The root directory used to store the incoming and outgoing messages.
+	 * 
+	 * @return String
+	 */
+	public String getMailDirectory() {
+		return mailDirectory;
+	}
+
+	/**
+	 * Get the max number of delivvery attempts before message is considered
+	 * 'undeliverable' and moved to 'failed' folder
+	 * 
+	 * @return int
+	 */
+	public int getDeliveryAttemptThreshold() {
+		return deliveryAttemptThreshold;
+	}
+
+	/** The maximum size (in megabytes) allowed for email attachments. */
+	public int getMaximumMessageSize() {
+		return maximumMessageSize;
+	}
+
+	/**
+	 * The format the mailboxes are stored in, 'flat', 'maildir', 'packed',
+	 * 'memory' or 'ring'.
+	 */
+	public String getMailboxFormat() {
+		return mailboxFormat;
+	}
+
+	/**
+	 * True if the mailboxes are kept in memory, in which case messages are
+	 * delivered when they are received instead of being spooled.
+	 */
+	public boolean isMailboxInMemory() {
+		return MAILBOX_FORMAT_MEMORY.equals(mailboxFormat)
+				|| MAILBOX_FORMAT_RING.equals(mailboxFormat);
+	}
+
+	/** The size (in bytes) of the segments of packed mailboxes. */
+	public long getMailboxSegmentSizeBytes() {
+		return mailboxSegmentSize * 1024L * 1024L;
+	}
+
+	/** The size (in bytes) of the buffer of ring mailboxes. */
+	public int getMailboxRingSizeBytes() {
+		return mailboxRingSize * 1024 * 1024;
+	}
+
+	/** The maximum number of messages in a ring mailbox. */
+	public int getMailboxRingMessages() {
+		return mailboxRingMessages;
+	}
+
+	/** The size (in bytes) of the message cache, 0 if it is disabled. */
+	public long getMailboxCacheSizeBytes() {
+		return mailboxCacheSize * 1024L * 1024L;
+	}
+
+	/** The headers indexed on delivery, an empty array if none are. */
+	public String[] getMailboxIndexedHeaders() {
+		return mailboxIndexedHeaders;
+	}
+
+	/** True if the text of the messages is indexed on delivery. */
+	public boolean isMailboxTextIndex() {
+		return mailboxTextIndex;
+	}
+
+	/** The time an unused mailbox stays open, 0 if it is not closed. */
+	public long getMailboxIdleTimeoutMilliseconds() {
+		return mailboxIdleTimeout * 60 * 1000L;
+	}
+
+	/** The number of mailboxes kept open at most, 0 if there is no limit. */
+	public int getMailboxOpenLimit() {
+		return mailboxOpenLimit;
+	}
+
+	/**
+	 * How recipients are mapped to mailboxes, 'single', 'recipient', 'domain'
+	 * or 'plustag'.
+	 */
+	public String getMailboxRouting() {
+		return mailboxRouting;
+	}
+
+	/** True if the recipients are mapped to mailboxes of their own. */
+	public boolean isMailboxRouted() {
+		return !MAILBOX_ROUTING_SINGLE.equals(mailboxRouting)
+				|| routingTable.size() > 0;
+	}
+
+	/**
+	 * The root directory used to store the incoming and outgoing messages.
+	 * 
+	 * @param mailDirectory
+	 *            String
+	 */
+	public void setMailDirectory(String mailDirectory) {
+		this.mailDirectory = mailDirectory;
+	}
+
+	/**
+	 * The number of threads to use for each listener.
+	 * 
+	 * @return int
+	 */
+	public int getExecuteThreadCount() {
+		return executeThreadCount;
+	}
+
+	/**
+	 * The number of threads to use for each listener.
+	 * 
+	 * @param executeThreadCount
+	 *            int
+	 */
+	public void setExecuteThreadCount(int executeThreadCount) {
+		this.executeThreadCount = executeThreadCount;
+	}
+
+	/**
+	 * The local IP address to lisen on. Null for all addresses
+	 * 
+	 * @return null for all addresses.
+	 */
+	public InetAddress getListenAddress() {
+		return listenAddress;
+	}
+
+	/**
+	 * The port the SMTP server listens on.
+	 * 
+	 * @return port number
+	 */
+	public int getSmtpPort() {
+		return smtpPort;
+	}
+
+	/**
+	 * The port the SMTP server listens on.
+	 * 
+	 * @param smtpPort
+	 *            port number
+	 */
+	public void setSmtpPort(int smtpPort) {
+		this.smtpPort = smtpPort;
+	}
+
+	/**
+	 * The port the POP3 server listens on.
+	 * 
+	 * @return port number
+	 */
+	public int getPop3Port() {
+		return pop3Port;
+	}
+
+	/**
+	 * The port the POP3 server listens on.
+	 * 
+	 * @param pop3Port
+	 *            port number
+	 */
+	public void setPop3Port(int pop3Port) {
+		this.pop3Port = pop3Port;
+	}
+
+	/**
+	 * The port the HTTP API listens on.
+	 * 
+	 * @return port number, 0 if the API is disabled
+	 */
+	public int getHttpPort() {
+		return httpPort;
+	}
+
+	/**
+	 * Returns the specified user, or null if the user does not exist.
+	 * 
+	 * @param address
+	 *            the user's full email address.
+	 * @return null if the user does not exist.
+	 */
+	public User getUser() {
+		return this.user;
+	}
+
+	/**
+	 * Returns the user whose mailbox mail to the address is delivered to,
+	 * creating the mailbox if it does not exist. The same user is returned
+	 * for all the addresses of a mailbox, so it has a single store.
+	 * 
+	 * @param address
+	 *            a recipient.
+	 */
+	public User getUser(EmailAddress address) {
+
+		EmailAddress mailbox = getMailboxAddress(address);
+		if (mailbox.getAddress().equalsIgnoreCase(user.getFullUsername())) {
+			return user;
+		}
+		return getMailboxUser(mailbox);
+	}
+
+	/**
+	 * Returns the user of the mailbox the address maps to, or null if that
+	 * mailbox does not exist because no mail was delivered to it. Reading a
+	 * mailbox through POP3 or HTTP uses this, so it does not create one for
+	 * every address that is looked at.
+	 * 
+	 * @param address
+	 *            the address a client asks for.
+	 */
+	public User findUser(EmailAddress address) {
+
+		EmailAddress mailbox = getMailboxAddress(address);
+		if (mailbox.getAddress().equalsIgnoreCase(user.getFullUsername())) {
+			return user;
+		}
+		if (!users.containsKey(mailbox.getAddress())
+				&& !new User(mailbox, this).isMailboxCreated()) {
+			return null;
+		}
+		return getMailboxUser(mailbox);
+	}
+
+	/**
+	 * Returns the user that replaced a user whose mailbox was closed after
+	 * it was looked up, so the mailbox can be opened again.
+	 */
+	public User getReplacement(User mailboxUser) {
+
+		if (mailboxUser == user) {
+			return user;
+		}
+		return getMailboxUser(new EmailAddress(mailboxUser.getUsername(),
+				mailboxUser.getDomain()));
+	}
+
+	/**
+	 * Removes the user of a routed mailbox whose store was closed, so the
+	 * next lookup creates a new one.
+	 * 
+	 * @return true if the user was removed, false if it is the user of the
+	 *         single mailbox or was already replaced.
+	 */
+	public boolean removeUser(User mailboxUser) {
+		return users.remove(mailboxUser.getFullUsername(), mailboxUser);
+	}
+
+	/**
+	 * Returns the address of the mailbox mail to the address is delivered
+	 * to, as the mailbox.route rules or else the mailbox.routing property map
+	 * it. Addresses that can not name a mailbox directory go to the single
+	 * mailbox.
+	 */
+	public EmailAddress getMailboxAddress(EmailAddress address) {
+
+		String username = address.getUsername().trim().toLowerCase();
+		String domain = address.getDomain().trim().toLowerCase();
+		String routed = routingTable.route(username + "@" + domain);
+		if (routed != null) {
+			int at = routed.lastIndexOf('@');
+			username = routed.substring(0, at);
+			domain = routed.substring(at + 1);
+		} else if (MAILBOX_ROUTING_DOMAIN.equals(mailboxRouting)) {
+			username = defaultUser.getUsername();
+		} else if (MAILBOX_ROUTING_PLUSTAG.equals(mailboxRouting)) {
+			int plus = username.indexOf('+');
+			if (plus == -1 || plus == username.length() - 1) {
+				return defaultUser;
+			}
+			username = defaultUser.getUsername() + username.substring(plus);
+			domain = defaultUser.getDomain();
+		} else if (!MAILBOX_ROUTING_RECIPIENT.equals(mailboxRouting)) {
+			return defaultUser;
+		}
+		if (!isMailboxName(username) || !isMailboxName(domain)) {
+			return defaultUser;
+		}
+		return new EmailAddress(username, domain);
+	}
+
+	/** The timeout length for authenticated ip addresses */
+	public long getAuthenticationTimeoutMilliseconds() {
+		return authenticationTimeoutMilliseconds;
+	}
+
+	/** The timeout length for authenticated ip addresses */
+	public void setAuthenticationTimeoutMinutes(long minutes) {
+		this.authenticationTimeoutMilliseconds = minutes * 60 * 1000;
+	}
+
+	/** True if POP Before SMTP is a valid relay option */
+	public boolean isEnablePOPBeforeSMTP() {
+		return enablePOPBeforeSMTP;
+	}
+
+	/** True if POP Before SMTP is a valid relay option */
+	public void setEnablePOPBeforeSMTP(boolean enablePOPBeforeSMTP) {
+		this.enablePOPBeforeSMTP = enablePOPBeforeSMTP;
+	}
+
+	/** IP Addresses that are allowed to relay mail. */
+	public String[] getRelayApprovedIpAddresses() {
+		return relayApprovedIpAddresses;
+	}
+
+	/** IP Addresses that are allowed to relay mail. */
+	public void setRelayApprovedIpAddresses(String[] relayApprovedIpAddresses) {
+		this.relayApprovedIpAddresses = relayApprovedIpAddresses;
+	}
+
+	/** Email Addresses that are allowed to relay mail. */
+	public String[] getRelayApprovedEmailAddresses() {
+		return relayApprovedEmailAddresses;
+	}
+
+	/** Emails Addresses that are allowed to relay mail. */
+	public void setRelayApprovedEmailAddresses(
+			String[] relayApprovedEmailAddresses) {
+		this.relayApprovedEmailAddresses = relayApprovedEmailAddresses;
+	}
+
+	/** True if all outgoing mail should go though the default server */
+	public boolean isDefaultSmtpServerEnabled() {
+		return defaultSmtpServerEnabled;
+	}
+
+	/** True if all outgoing mail should go though the default server */
+	public void setDefaultSmtpServerEnabled(boolean defaultSmtpServerEnabled) {
+		this.defaultSmtpServerEnabled = defaultSmtpServerEnabled;
+	}
+
+	/** The servers to send all outoing mail through */
+	public DefaultSmtpServer[] getDefaultSmtpServers() {
+		return defaultSmtpServers;
+	}
+
+	/** The server to send all outoing mail through */
+	public void setDefaultSmtpServers(DefaultSmtpServer[] defaultSmtpServers) {
+		this.defaultSmtpServers = defaultSmtpServers;
+	}
+
+	public EmailAddress getDefaultUser() {
+		return defaultUser;
+	}
+
+	/** The number of seconds to wait between delivery attempts */
+	public long getDeliveryIntervalSeconds() {
+		return deliveryIntervalSeconds;
+	}
+
+	/** The number of milliseconds to wait between delivery attempts */
+	public long getDeliveryIntervealMilliseconds() {
+		return deliveryIntervalSeconds * 1000;
+	}
+
+	/** The number of seconds to wait between delivery attempts */
+	public void setDeliveryIntervalSeconds(long deliveryIntervalSeconds) {
+		this.deliveryIntervalSeconds = deliveryIntervalSeconds;
+	}
+
+	/** The maximum number of milliseconds to wait between delivery attempts */
+	public long getDeliveryMaximumBackoffMilliseconds() {
+		return deliveryMaximumBackoffSeconds * 1000;
+	}
+
+	/** The number of threads delivering messages to the mailboxes */
+	public int getDeliveryThreadCount() {
+		return deliveryThreadCount;
+	}
+
+	/** The number of threads delivering messages to the mailboxes */
+	public void setDeliveryThreadCount(int deliveryThreadCount) {
+		this.deliveryThreadCount = deliveryThreadCount;
+	}
+
+	/** The maximum number of seconds to wait between delivery attempts */
+	public void setDeliveryMaximumBackoffSeconds(
+			long deliveryMaximumBackoffSeconds) {
+		this.deliveryMaximumBackoffSeconds = deliveryMaximumBackoffSeconds;
+	}
+
+	// ***************************************************************
+	// Private Methods
+	// ***************************************************************
+
+	/**
+	 * Loads the properties file into the local variables for quick access.
+	 */
+	private void loadGeneralProperties() {
+		Properties properties = new Properties();
+
+		if (generalConfigurationFile.exists()) {
+			try {
+				FileInputStream inputStream = new FileInputStream(
+						generalConfigurationFile);
+				properties.load(inputStream);
+				log.info("configuration read from {}", generalConfigurationFile);
+			} catch (IOException e) {
+				throw new RuntimeException(
+						"Error Loading Properties File!  Unable to continue Operation.");
+			}
+		} else {
+			log.info("mail.conf not found from configuration directory using default");
+			properties = loadDefaultProperties();
+		}
+
+		loadGeneralProperties(properties);
+
+		// Update the 'last loaded' timestamp.
+		generalConfigurationFileTimestamp = generalConfigurationFile
+				.lastModified();
+	}
+
+	/**
+	 * Loads the default properties bundled as the mail.conf resource.
+	 */
+	private Properties loadDefaultProperties() {
+		Properties properties = new Properties();
+		InputStream inputStream = getClass().getResourceAsStream("/mail.conf");
+		try {
+			properties.load(inputStream);
+		} catch (IOException ioException) {
+			// All checks should be done before we get here, so there better
+			// not be any errors. If so, throw a RuntimeException.
+			throw new RuntimeException(
+					"Error Loading Properties File!  Unable to continue Operation.");
+		}
+		return properties;
+	}
+
+	/**
+	 * Parses the properties into the local variables for quick access.
+	 */
+	private void loadGeneralProperties(Properties properties) {
+
+		//
+		// Load the number of Execute Threads for each listener
+		//
+
+		// Load the number of execute threads to use for each ServiceListener.
+		String threadsString = properties.getProperty(EXECUTE_THREADS, "5");
+		try {
+			executeThreadCount = Integer.parseInt(threadsString);
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid value for property: " + EXECUTE_THREADS
+					+ ".  Using default value of 5.");
+			executeThreadCount = 5;
+		}
+
+		//
+		// Load the address port numbers
+		//
+
+		String listenAddressString = properties.getProperty(LISTEN_ADDRESS, "");
+		listenAddressString.trim();
+		// If not address is specified, default to null. ServiceListener can
+		// handle
+		// a null listenAddress.
+		if (listenAddressString.length() > 0) {
+			try {
+				listenAddress = InetAddress.getByName(listenAddressString);
+			} catch (UnknownHostException unknownHostException) {
+				throw new RuntimeException("Invalid value for property: "
+						+ LISTEN_ADDRESS
+						+ ".  Server will listen on all addresses.  "
+						+ unknownHostException);
+			}
+		} else {
+			listenAddress = null;
+		}
+
+		String smtpPortString = properties.getProperty(SMTPPORT);
+		String pop3PortString = properties.getProperty(POP3PORT);
+		smtpPort = parsePort(smtpPortString, 25);
+		pop3Port = parsePort(pop3PortString, 110);
+		httpPort = parsePort(properties.getProperty(HTTPPORT), 0);
+
+		//
+		// Load the SMTP Delivery Parameters
+
+		enablePOPBeforeSMTP = Boolean.valueOf(
+				properties.getProperty(RELAY_POP_BEFORE_SMTP, "false"))
+				.booleanValue();
+		// Initialize the timeout Minutes parameter
+		String timoutString = properties.getProperty(
+				RELAY_POP_BEFORE_SMTP_TIMEOUT, "10");
+		try {
+			setAuthenticationTimeoutMinutes(Long.parseLong(timoutString));
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid value for property: "
+					+ RELAY_POP_BEFORE_SMTP_TIMEOUT + ". Defaulting to 10.");
+			// Set the default to 10 minutes.
+			setAuthenticationTimeoutMinutes(10);
+		}
+
+		// Relay approved IP Addresses
+		String ipAddresses = properties.getProperty(RELAY_ADDRESSLIST, "");
+		setRelayApprovedIpAddresses(tokenize(ipAddresses));
+
+		// Relay approved email Addresses
+		String emailAddresses = properties.getProperty(RELAY_EMAILSLIST, "");
+		setRelayApprovedEmailAddresses(tokenize(emailAddresses));
+
+		// Load default Server info.
+
+		defaultSmtpServerEnabled = false;
+		defaultSmtpServers = new DefaultSmtpServer[0];
+
+		String deliveryIntervalString = properties.getProperty(
+				SMTP_DELIVERY_INTERVAL, "10");
+		try {
+			// Convert to number and then convert to ms.
+			setDeliveryIntervalSeconds(Long.parseLong(deliveryIntervalString));
+		} catch (NumberFormatException nfe) {
+			setDeliveryIntervalSeconds(10);
+		}
+
+		String maximumBackoffString = properties.getProperty(
+				SMTP_DELIVERY_MAX_BACKOFF, "3600");
+		try {
+			setDeliveryMaximumBackoffSeconds(Long
+					.parseLong(maximumBackoffString));
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid value for property: " + SMTP_DELIVERY_MAX_BACKOFF
+					+ ". Defaulting to 3600.");
+			setDeliveryMaximumBackoffSeconds(3600);
+		}
+
+		// Set the number of delivery threads.
+		try {
+			setDeliveryThreadCount(Integer.parseInt(properties.getProperty(
+					SMTP_DELIVERY_THREADS, "4")));
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + SMTP_DELIVERY_THREADS
+					+ ". Defaulting to 4.");
+			setDeliveryThreadCount(4);
+		}
+
+		// Set the Delivery Attempt Threshold.
+		try {
+			deliveryAttemptThreshold = Integer.parseInt(properties.getProperty(
+					SMTP_DELIVERY_THRESHOLD, "10"));
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + SMTP_DELIVERY_THRESHOLD
+					+ ". Defaulting to 10.");
+			deliveryAttemptThreshold = 10;
+		}
+
+		// Set the Maximum message Size
+		try {
+			maximumMessageSize = Integer.parseInt(properties.getProperty(
+					SMTP_MAX_MESSAGE_SIZE, "5"));
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + SMTP_MAX_MESSAGE_SIZE
+					+ ". Defaulting to 5.");
+			deliveryAttemptThreshold = 5;
+		}
+
+		// Set the mailbox format
+		mailboxFormat = properties.getProperty(MAILBOX_FORMAT,
+				MAILBOX_FORMAT_FLAT).trim().toLowerCase();
+		if (!MAILBOX_FORMAT_FLAT.equals(mailboxFormat)
+				&& !MAILBOX_FORMAT_MAILDIR.equals(mailboxFormat)
+				&& !MAILBOX_FORMAT_PACKED.equals(mailboxFormat)
+				&& !MAILBOX_FORMAT_MEMORY.equals(mailboxFormat)
+				&& !MAILBOX_FORMAT_RING.equals(mailboxFormat)) {
+			log.warn("Invalid value for property: " + MAILBOX_FORMAT
+					+ ". Defaulting to " + MAILBOX_FORMAT_FLAT + ".");
+			mailboxFormat = MAILBOX_FORMAT_FLAT;
+		}
+
+		// Set the segment size of packed mailboxes
+		try {
+			mailboxSegmentSize = Integer.parseInt(properties.getProperty(
+					MAILBOX_SEGMENT_SIZE, "64"));
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + MAILBOX_SEGMENT_SIZE
+					+ ". Defaulting to 64.");
+			mailboxSegmentSize = 64;
+		}
+
+		// Set the size of ring mailboxes, which must fit an int.
+		try {
+			mailboxRingSize = Integer.parseInt(properties.getProperty(
+					MAILBOX_RING_SIZE, "64"));
+			if (mailboxRingSize < 1 || mailboxRingSize > 2047) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + MAILBOX_RING_SIZE
+					+ ". Defaulting to 64.");
+			mailboxRingSize = 64;
+		}
+		try {
+			mailboxRingMessages = Integer.parseInt(properties.getProperty(
+					MAILBOX_RING_MESSAGES, "10000"));
+			if (mailboxRingMessages < 1) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + MAILBOX_RING_MESSAGES
+					+ ". Defaulting to 10000.");
+			mailboxRingMessages = 10000;
+		}
+
+		// Set the size of the message cache
+		try {
+			mailboxCacheSize = Integer.parseInt(properties.getProperty(
+					MAILBOX_CACHE_SIZE, "16"));
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + MAILBOX_CACHE_SIZE
+					+ ". Defaulting to 16.");
+			mailboxCacheSize = 16;
+		}
+
+		// Set the headers to index
+		mailboxIndexedHeaders = tokenize(properties.getProperty(
+				MAILBOX_HEADER_INDEX, "Message-ID,From,To,Cc,Subject,Date"));
+
+		mailboxTextIndex = Boolean.valueOf(
+				properties.getProperty(MAILBOX_TEXT_INDEX, "true"))
+				.booleanValue();
+
+		// Set when unused mailboxes are closed
+		try {
+			mailboxIdleTimeout = Integer.parseInt(properties.getProperty(
+					MAILBOX_IDLE_TIMEOUT, "10"));
+			if (mailboxIdleTimeout < 0) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + MAILBOX_IDLE_TIMEOUT
+					+ ". Defaulting to 10.");
+			mailboxIdleTimeout = 10;
+		}
+
+		try {
+			mailboxOpenLimit = Integer.parseInt(properties.getProperty(
+					MAILBOX_OPEN_LIMIT, "100"));
+			if (mailboxOpenLimit < 0) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException numberFormatException) {
+			log.warn("Invalid value for property: " + MAILBOX_OPEN_LIMIT
+					+ ". Defaulting to 100.");
+			mailboxOpenLimit = 100;
+		}
+
+		// Set how recipients are mapped to mailboxes
+		mailboxRouting = properties.getProperty(MAILBOX_ROUTING,
+				MAILBOX_ROUTING_SINGLE).trim().toLowerCase();
+		if (!MAILBOX_ROUTING_SINGLE.equals(mailboxRouting)
+				&& !MAILBOX_ROUTING_RECIPIENT.equals(mailboxRouting)
+				&& !MAILBOX_ROUTING_DOMAIN.equals(mailboxRouting)
+				&& !MAILBOX_ROUTING_PLUSTAG.equals(mailboxRouting)) {
+			log.warn("Invalid value for property: " + MAILBOX_ROUTING
+					+ ". Defaulting to " + MAILBOX_ROUTING_SINGLE + ".");
+			mailboxRouting = MAILBOX_ROUTING_SINGLE;
+		}
+
+		routingTable = loadRoutingTable(properties);
+	}
+
+	/**
+	 * Compiles the mailbox.route rules, in the order of their names, numbers
+	 * first. Invalid rules are left out with a warning.
+	 */
+	private RoutingTable loadRoutingTable(Properties properties) {
+
+		List<String> names = new ArrayList<String>();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(MAILBOX_ROUTE_PREFIX)) {
+				names.add(name.substring(MAILBOX_ROUTE_PREFIX.length()));
+			}
+		}
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String first, String second) {
+				boolean firstNumber = first.matches("\\d{1,9}");
+				boolean secondNumber = second.matches("\\d{1,9}");
+				if (firstNumber && secondNumber) {
+					return Integer.parseInt(first) - Integer.parseInt(second);
+				} else if (firstNumber != secondNumber) {
+					return firstNumber ? -1 : 1;
+				}
+				return first.compareTo(second);
+			}
+		});
+
+		List<String> patterns = new ArrayList<String>();
+		List<String> mailboxes = new ArrayList<String>();
+		for (String name : names) {
+			String[] rule = properties.getProperty(MAILBOX_ROUTE_PREFIX + name)
+					.trim().toLowerCase().split("\\s+");
+			int patternAt = rule[0].lastIndexOf('@');
+			int mailboxAt = rule.length == 2 ? rule[1].lastIndexOf('@') : -1;
+			if (patternAt <= 0 || patternAt == rule[0].length() - 1
+					|| mailboxAt <= 0
+					|| !isMailboxName(rule[1].substring(0, mailboxAt))
+					|| !isMailboxName(rule[1].substring(mailboxAt + 1))) {
+				log.warn("Invalid value for property: " + MAILBOX_ROUTE_PREFIX
+						+ name + ". The rule is ignored.");
+				continue;
+			}
+			patterns.add(rule[0]);
+			mailboxes.add(rule[1]);
+		}
+		if (log.isInfoEnabled() && patterns.size() > 0)
+			log.info("Loaded " + patterns.size() + " mailbox routing rules.");
+		return new RoutingTable(patterns.toArray(new String[patterns.size()]),
+				mailboxes.toArray(new String[mailboxes.size()]));
+	}
+
+	private void loadUserProperties() {
+		try {
+			this.defaultUser = new EmailAddress(this.email);
+			this.user = new User(this.defaultUser);
+			this.users = new ConcurrentHashMap<String, User>();
+		} catch (InvalidAddressException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Loads the values of the specified key from the configuration file. This
+	 * method parses the value into a String array using the comma (,) as a
+	 * delimiter. This method returns an array of size 0 if the the value string
+	 * was null or empty.
+	 * 
+	 * @param value
+	 *            the string to tokenize into an array.
+	 * @return a String[] of the values, or an empty array if the key could not
+	 *         be found.
+	 */
+	public static String[] tokenize(String value) {
+
+		if (value == null || value.trim().equals("")) {
+			return new String[0];
+		} else {
+			StringTokenizer stringTokenizer = new StringTokenizer(value, ",");
+			Vector tokenVector = new Vector();
+			while (stringTokenizer.hasMoreTokens()) {
+				tokenVector.addElement(stringTokenizer.nextToken().trim());
+			}
+
+			String[] values = new String[tokenVector.size()];
+			return (String[]) tokenVector.toArray(values);
+		}
+	}
+
+	/**
+	 * Returns the user of a routed mailbox, creating it if there is none.
+	 */
+	private User getMailboxUser(EmailAddress mailbox) {
+
+		while (true) {
+			User mailboxUser = users.get(mailbox.getAddress());
+			if (mailboxUser == null) {
+				mailboxUser = new User(mailbox);
+				User existing = users.putIfAbsent(mailbox.getAddress(),
+						mailboxUser);
+				if (existing != null) {
+					mailboxUser = existing;
+				}
+			}
+			if (mailboxUser.use()) {
+				return mailboxUser;
+			}
+			// Its mailbox was closed meanwhile, a new user opens it again.
+			users.remove(mailbox.getAddress(), mailboxUser);
+		}
+	}
+
+	/**
+	 * True if the part of an address can be used in the name of a mailbox
+	 * directory.
+	 */
+	private static boolean isMailboxName(String name) {
+
+		if (name.length() == 0 || name.length() > 128 || name.charAt(0) == '.') {
+			return false;
+		}
+		for (int index = 0; index < name.length(); index++) {
+			char character = name.charAt(index);
+			if (!(character >= 'a' && character <= 'z')
+					&& !(character >= '0' && character <= '9')
+					&& ".-_+".indexOf(character) == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Converts the string into a valid port number.
+	 * 
+	 * @param stringValue
+	 *            the string value to parse
+	 * @param defaultValue
+	 *            the default value to return if parsing fails.
+	 * @return a valid int.
+	 */
+	private int parsePort(String stringValue, int defaultValue) {
+		int value = defaultValue;
+		if (stringValue != null && stringValue.length() > 0) {
+			try {
+				value = Integer.parseInt(stringValue);
+			} catch (NumberFormatException e) {
+				log.warn("Error parsing port string: " + stringValue
+						+ " using default value: " + defaultValue);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Creates a new User instance for the specified username using the
+	 * specified properties.
+	 * 
+	 * @param fullAddress
+	 *            full username (me@mydomain.com)
+	 * @param properties
+	 *            the properties that contain the user parameters.
+	 * @return a new User instance.
+	 */
+	private User loadUser(String fullAddress, Properties properties)
+			throws InvalidAddressException {
+		EmailAddress address = new EmailAddress(fullAddress);
+		User user = new User(address);
+
+		// Load the password
+		String password = properties.getProperty(USER_DEF_PREFIX + fullAddress);
+		// If the password is not hashed, hash it now.
+		if (password.length() != 60) {
+			password = PasswordManager.encryptPassword(password);
+			properties.setProperty(USER_DEF_PREFIX + fullAddress, password);
+			if (password == null) {
+				log.error("Error encrypting plaintext password from user.conf for user "
+						+ fullAddress);
+				throw new RuntimeException(
+						"Error encrypting password for user: " + fullAddress);
+			}
+			userConfModified = true;
+		}
+		user.setPassword(password);
+
+		// Load the 'forward' addresses.
+		String forwardAddressesString = properties
+				.getProperty(USER_PROPERTY_PREFIX + fullAddress
+						+ USER_FILE_FORWARDS);
+		String[] forwardAddresses = new String[0];
+		if (forwardAddressesString != null
+				&& forwardAddressesString.trim().length() >= 0) {
+			forwardAddresses = tokenize(forwardAddressesString);
+		}
+		ArrayList addressList = new ArrayList(forwardAddresses.length);
+		for (int index = 0; index < forwardAddresses.length; index++) {
+			try {
+				addressList.add(new EmailAddress(forwardAddresses[index]));
+			} catch (InvalidAddressException e) {
+				log.warn("Forward address: " + forwardAddresses[index]
+						+ " for user " + user.getFullUsername()
+						+ " is invalid and will be ignored.");
+			}
+		}
+
+		EmailAddress[] emailAddresses = new EmailAddress[addressList.size()];
+		emailAddresses = (EmailAddress[]) addressList.toArray(emailAddresses);
+
+		if (log.isDebugEnabled())
+			log.debug(emailAddresses.length
+					+ " forward addresses load for user: "
+					+ user.getFullUsername());
+		user.setForwardAddresses(emailAddresses);
+
+		return user;
+	}
+
+	// ***************************************************************
+	// Watchdog Inner Class
+	// ***************************************************************
+
+	/**
+	 * Checks the user configuration file and reloads it if it is new.
+	 */
+	class ConfigurationFileWatcher extends Thread {
+
+		/**
+		 * Initialize the thread.
+		 */
+		public ConfigurationFileWatcher() {
+			super("User Config Watchdog");
+			setDaemon(true);
+		}
+
+		/**
+		 * Check the timestamp on the file to see if it has been updated.
+		 */
+		public void run() {
+			long sleepTime = 10 * 1000;
+			while (true) {
+				try {
+					Thread.sleep(sleepTime);
+					if (generalConfigurationFile.lastModified() > generalConfigurationFileTimestamp) {
+						log.info("General Configuration File Changed, reloading...");
+						loadGeneralProperties();
+					}
+				} catch (Throwable throwable) {
+					log.error(
+							"Error in ConfigurationWatcher thread.  Thread will continue to execute. "
+									+ throwable, throwable);
+				}
+			}
+		}
+	}
+
+	private static final String LF = "\r\n";
+
+	private static final String USER_PROPERTIES_HEADER = "# Java Email Server (JES) User Configuration"
+			+ LF
+			+ "#"
+			+ LF
+			+ "# All users are defined in this file.  To add a user, follow"
+			+ LF
+			+ "# the following pattern:"
+			+ LF
+			+ "# user.<username@domain>=<plain text password>"
+			+ LF
+			+ "#"
+			+ LF
+			+ "# The plain text password will be converted to a hash when the file"
+			+ LF
+			+ "# is first loaded by the server."
+			+ LF
+			+ "#"
+			+ LF
+			+ "# Additional configuration such as forward addresses can be specified as:"
+			+ LF
+			+ "# userprop.<username@domain>.forwardAddresses=<Comma list of forward addresses>"
+			+ LF
+			+ "#"
+			+ LF
+			+ "# When a message is received for a local user, the user's address will be replaced"
+			+ LF
+			+ "# with the addresses in the forwardAddresses property.  If you also wish to have"
+			+ LF
+			+ "# a copy delivered to the local user, you may add the user's local address to"
+			+ LF + "# the forwardAddresses property" + LF + "";
+}
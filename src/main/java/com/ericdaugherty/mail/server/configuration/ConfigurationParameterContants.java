@@ -1,174 +1,310 @@
-/******************************************************************************
- * This program is SMTP receiver which collect all mails to same inbox.
- * inbox is readable with pop protocol
- * NO mails are forwared.
- ******************************************************************************
- * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
- * All rights reserved.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- ******************************************************************************
- *
- * Refactored 2011 by Sampsa Sohlman for smtp receiver use
- *
- ******************************************************************************
- * For current versions and more information, please visit:
- * 
- * http://www.ericdaugherty.com/java/mail
- *
- * or contact the author at:
- * java@ericdaugherty.com
- *
- ******************************************************************************
- * This program is based on the CSRMail project written by Calvin Smith.
- * http://crsemail.sourceforge.net/
- *****************************************************************************/
-
-package com.ericdaugherty.mail.server.configuration;
-
-/**
- * This interface defines the names for all configuration properties
- * loaded from the configuration file.  This interface also serves as
- * documentation for the possible paramters and their expected values.
- * <p>
- * Descriptions of the paratmers are also available in the ConfigurationTool
- * java application included with this distribution.
- *
- * @author Eric Daugherty
- */
-public interface ConfigurationParameterContants {
-
-    //***************************************************************
-    // General Paramters
-    //***************************************************************
-
-    /**
-     * The local IP address that the server will listen on.  If this
-     * property is not set, or is invalid, the server will listen on all
-     * addresses.
-     */
-    public static final String LISTEN_ADDRESS ="listen.address";
-
-    /**
-     * The pop3port parameter defines the port to listen to incoming
-     * Pop3 connection on.  By default, this value should be 110.
-     */
-    public static final String POP3PORT = "pop3port";
-
-    /**
-     * The smtpport parameter defines the port to listen to incoming
-     * SMTP connection on.  By default, this value should be 25.
-     */
-    public static final String SMTPPORT = "smtpport";
-
-    /**
-     * The domains parameter defines the domain names that this server
-     * will accept mail for.  All domains not listed here will will either
-     * be relayed or ignored.  To configure mulitiple domains, just seperate
-     * each domain with a comma.
-     */
-    public static final String DOMAINS = "domains";
-
-    /**
-     * The number of threads that will be allocated to each connection listener
-     * for each port.
-     */
-    public static final String EXECUTE_THREADS = "threads";
-
-    //***************************************************************
-    // Mail Delivery Paramters
-    //***************************************************************
-
-    /**
-     * Enables the POP3 login as a valid address for SMTP Relaying.
-     */
-    public static final String RELAY_POP_BEFORE_SMTP = "relay.popbeforesmtp";
-
-    /**
-     * This setting only applies when RELAY_POP_BEFORE_SMTP is set to true.
-     * This setting defines the timeout period (in minutes) between when a
-     * user (ip address) last authenticated with the POP3 server and when they will
-     * no longer be able to send SMTP mail to remote domains. This option defaults
-     * to 10 minutes.
-     */
-    public static final String RELAY_POP_BEFORE_SMTP_TIMEOUT = "relay.popbeforesmtp.timeout";
-
-    /**
-     * This is the label for the UI
-     */
-    public static final String RELAY_ADDRESSLIST = "relay.ipaddresses";
-
-    /**
-     * Enables some email addresses for SMTP Relaying.
-     */
-    public static final String RELAY_EMAILSLIST = "relay.emailaddresses";
-
-    /**
-     * The server stores incoming SMTP messages on disk before attempting to deliver them.  This
-     * setting determines how often (in seconds) the server checks the disk for new messages to deliver.  The
-     * smaller the number, the faster message will be processed.  However, a smaller number will cause
-     * the server to use more of your system's resources.
-     */
-    public static final String SMTP_DELIVERY_INTERVAL = "smtpdelivery.interval";
-
-    /**
-     * The server picks the messages from the disk in order to deliver them.  If some message
-     * cannot be delivered to remote SMTP server at that moment, because of some error, then the message
-     * will be kept on the disk for later delivery attempt. However server can't retry delivery
-     * indefinitely, therefore following config entry will set maximum number of retries before the server
-     * gives up on the message and moves it from smtp spool directory to failed directory.
-     */
-    public static final String SMTP_DELIVERY_THRESHOLD = "smtpdelivery.threshold";
-
-    /**
-     * This setting limits the size of incoming SMTP messages.  This setting
-     * (in megabytes) will cause emails over the max size to be rejected.
-     */
-    public static final String SMTP_MAX_MESSAGE_SIZE = "smtp.messagesize";
-
-    //***************************************************************
-    // User Parameters
-    //***************************************************************
-
-    /**
-     * Defines the prefix to usernames stored in the properties file.
-     * A username should be stored as:
-     * USER_DEF_PREFIX&lt;user@domain.com&gt;=&lt;password&gt;
-     */
-    public static final String USER_DEF_PREFIX = "user.";
-
-    /**
-     * Defines the prefix for user properties usernames stored in the
-     * properties file.
-     * A user property should be stored as:
-     * USER_PROPERTY_PREFIX&lt;user@domain.com&gt;.&lt;property name&gt;=&lt;value&gt;
-     */
-    public static final String USER_PROPERTY_PREFIX = "userprop.";
-
-   /**
-    * The USER_PROPERTY_PREFIX&lt;user@domain.com&gt;.&lt;forwardAddresses&gt;=&lt;value&gt;
-    * property defines a comma separated
-    * list of addresses that mail to this user will be forwarded to.
-    */
-    public static final String USER_FILE_FORWARDS = ".forwardAddresses";
-
-    //***************************************************************
-    // Logging Paramters
-    //***************************************************************
-
-    /**
-     * Defines the default log threshold to use if log4j is not enabled.
-     */
-    public static final String LOGGING_DEFAULT_THRESHOLD = "defaultthreshold";
-
-}
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * 
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.configuration;
+
+/**
+ * This interface defines the names for all configuration properties
+ * loaded from the configuration file.  This interface also serves as
+ * documentation for the possible paramters and their expected values.
+ * <p>
+ * Descriptions of the paratmers are also available in the ConfigurationTool
+ * java application included with this distribution.
+ *
+ * @author Eric Daugherty
+ */
+public interface ConfigurationParameterContants {
+
+    //***************************************************************
+    // General Paramters
+    //***************************************************************
+
+    /**
+     * The local IP address that the server will listen on.  If this
+     * property is not set, or is invalid, the server will listen on all
+     * addresses.
+     */
+    public static final String LISTEN_ADDRESS ="listen.address";
+
+    /**
+     * The pop3port parameter defines the port to listen to incoming
+     * Pop3 connection on.  By default, this value should be 110.
+     */
+    public static final String POP3PORT = "pop3port";
+
+    /**
+     * The smtpport parameter defines the port to listen to incoming
+     * SMTP connection on.  By default, this value should be 25.
+     */
+    public static final String SMTPPORT = "smtpport";
+
+    /**
+     * The httpport parameter defines the port the HTTP API listens to.
+     * The API is disabled if this value is not set or 0.
+     */
+    public static final String HTTPPORT = "httpport";
+
+    /**
+     * The domains parameter defines the domain names that this server
+     * will accept mail for.  All domains not listed here will will either
+     * be relayed or ignored.  To configure mulitiple domains, just seperate
+     * each domain with a comma.
+     */
+    public static final String DOMAINS = "domains";
+
+    /**
+     * The number of threads that will be allocated to each connection listener
+     * for each port.
+     */
+    public static final String EXECUTE_THREADS = "threads";
+
+    //***************************************************************
+    // Mail Delivery Paramters
+    //***************************************************************
+
+    /**
+     * Enables the POP3 login as a valid address for SMTP Relaying.
+     */
+    public static final String RELAY_POP_BEFORE_SMTP = "relay.popbeforesmtp";
+
+    /**
+     * This setting only applies when RELAY_POP_BEFORE_SMTP is set to true.
+     * This setting defines the timeout period (in minutes) between when a
+     * user (ip address) last authenticated with the POP3 server and when they will
+     * no longer be able to send SMTP mail to remote domains. This option defaults
+     * to 10 minutes.
+     */
+    public static final String RELAY_POP_BEFORE_SMTP_TIMEOUT = "relay.popbeforesmtp.timeout";
+
+    /**
+     * This is the label for the UI
+     */
+    public static final String RELAY_ADDRESSLIST = "relay.ipaddresses";
+
+    /**
+     * Enables some email addresses for SMTP Relaying.
+     */
+    public static final String RELAY_EMAILSLIST = "relay.emailaddresses";
+
+    /**
+     * The server stores incoming SMTP messages on disk before attempting to deliver them.  New
+     * messages are delivered as soon as they are received.  If a delivery attempt fails, this
+     * setting determines how long (in seconds) the server waits before the first retry.  Every
+     * further failure doubles the wait, up to SMTP_DELIVERY_MAX_BACKOFF.
+     */
+    public static final String SMTP_DELIVERY_INTERVAL = "smtpdelivery.interval";
+
+    /**
+     * The number of threads that deliver the received messages to the mailboxes.  All
+     * messages to the same mailbox are delivered by the same thread, in the order they
+     * were received.
+     */
+    public static final String SMTP_DELIVERY_THREADS = "smtpdelivery.threads";
+
+    /**
+     * The longest time (in seconds) the server waits between two delivery attempts of the
+     * same message.  This option defaults to 3600 seconds.
+     */
+    public static final String SMTP_DELIVERY_MAX_BACKOFF = "smtpdelivery.maxbackoff";
+
+    /**
+     * The server picks the messages from the disk in order to deliver them.  If some message
+     * cannot be delivered to remote SMTP server at that moment, because of some error, then the message
+     * will be kept on the disk for later delivery attempt. However server can't retry delivery
+     * indefinitely, therefore following config entry will set maximum number of retries before the server
+     * gives up on the message and moves it from smtp spool directory to failed directory.
+     */
+    public static final String SMTP_DELIVERY_THRESHOLD = "smtpdelivery.threshold";
+
+    /**
+     * This setting limits the size of incoming SMTP messages.  This setting
+     * (in megabytes) will cause emails over the max size to be rejected.
+     */
+    public static final String SMTP_MAX_MESSAGE_SIZE = "smtp.messagesize";
+
+    //***************************************************************
+    // Mailbox Paramters
+    //***************************************************************
+
+    /**
+     * The format the mailboxes are stored in.  'flat' stores every message as a
+     * pop*.jmsg file in the user's directory.  'maildir' stores the messages in
+     * the tmp, new and cur directories of a Maildir below the user's directory.
+     * 'packed' stores the messages in a few large segment files with an index.
+     * 'memory' keeps the messages in the heap, where they are lost when the
+     * server stops, and delivers them as soon as they are received instead of
+     * spooling them first.  'ring' keeps the most recent messages in a buffer
+     * of fixed size in the heap, dropping the oldest ones to make room, and
+     * delivers them as 'memory' does.  This option defaults to 'flat'.
+     */
+    public static final String MAILBOX_FORMAT = "mailbox.format";
+
+    /** The value of MAILBOX_FORMAT for the pop*.jmsg format. */
+    public static final String MAILBOX_FORMAT_FLAT = "flat";
+
+    /** The value of MAILBOX_FORMAT for the Maildir format. */
+    public static final String MAILBOX_FORMAT_MAILDIR = "maildir";
+
+    /** The value of MAILBOX_FORMAT for the packed segment format. */
+    public static final String MAILBOX_FORMAT_PACKED = "packed";
+
+    /** The value of MAILBOX_FORMAT for the in-memory store. */
+    public static final String MAILBOX_FORMAT_MEMORY = "memory";
+
+    /** The value of MAILBOX_FORMAT for the fixed size in-memory buffer. */
+    public static final String MAILBOX_FORMAT_RING = "ring";
+
+    /**
+     * The size (in megabytes) a segment file of a packed mailbox may grow to
+     * before a new segment is started.  This option defaults to 64.
+     */
+    public static final String MAILBOX_SEGMENT_SIZE = "mailbox.segmentsize";
+
+    /**
+     * The size (in megabytes) of the buffer of a 'ring' mailbox.  This option
+     * defaults to 64.
+     */
+    public static final String MAILBOX_RING_SIZE = "mailbox.ring.size";
+
+    /**
+     * The number of messages a 'ring' mailbox holds at most, however small
+     * they are.  This option defaults to 10000.
+     */
+    public static final String MAILBOX_RING_MESSAGES = "mailbox.ring.messages";
+
+    /**
+     * The size (in megabytes) of the memory outside the Java heap used to
+     * cache recently delivered and retrieved messages.  0 disables the cache.
+     * This option defaults to 16.
+     */
+    public static final String MAILBOX_CACHE_SIZE = "mailbox.cachesize";
+
+    /**
+     * The headers that are indexed when a message is delivered, so messages
+     * can be found by their values, separated by commas.  An empty value
+     * disables the index.  This option defaults to
+     * 'Message-ID,From,To,Cc,Subject,Date'.
+     */
+    public static final String MAILBOX_HEADER_INDEX = "mailbox.headerindex";
+
+    /**
+     * True if the text of the messages is indexed when they are delivered,
+     * so they can be searched by the words they contain.  This option
+     * defaults to true.
+     */
+    public static final String MAILBOX_TEXT_INDEX = "mailbox.textindex";
+
+    /**
+     * The minutes a mailbox on disk stays open after it was last used.  Its
+     * store, indexes and listing are then closed until it is needed again.
+     * 0 keeps mailboxes open.  This option defaults to 10.
+     */
+    public static final String MAILBOX_IDLE_TIMEOUT = "mailbox.idletimeout";
+
+    /**
+     * The number of mailboxes on disk kept open at most, the least recently
+     * used are closed first.  0 removes the limit.  This option defaults to
+     * 100.
+     */
+    public static final String MAILBOX_OPEN_LIMIT = "mailbox.openlimit";
+
+    /**
+     * How the recipients of a message are mapped to mailboxes.  'single'
+     * delivers all mail to the one mailbox of mailbox@mail.local.  'recipient'
+     * gives every recipient address a mailbox of its own, 'domain' every
+     * recipient domain, and 'plustag' every tag of a user+tag@domain address,
+     * untagged addresses going to the single mailbox.  A mailbox is read over
+     * POP3 by logging in with an address that maps to it.  This option
+     * defaults to 'single'.
+     */
+    public static final String MAILBOX_ROUTING = "mailbox.routing";
+
+    /** The value of MAILBOX_ROUTING for the one shared mailbox. */
+    public static final String MAILBOX_ROUTING_SINGLE = "single";
+
+    /** The value of MAILBOX_ROUTING for a mailbox per recipient address. */
+    public static final String MAILBOX_ROUTING_RECIPIENT = "recipient";
+
+    /** The value of MAILBOX_ROUTING for a mailbox per recipient domain. */
+    public static final String MAILBOX_ROUTING_DOMAIN = "domain";
+
+    /** The value of MAILBOX_ROUTING for a mailbox per plus address tag. */
+    public static final String MAILBOX_ROUTING_PLUSTAG = "plustag";
+
+    /**
+     * The prefix of the routing rules.  A rule mailbox.route.&lt;name&gt; has an
+     * address pattern and the mailbox address mail that matches it is
+     * delivered to, separated by white space.  The rules are tried before
+     * mailbox.routing, which maps the addresses no rule matches.
+     */
+    public static final String MAILBOX_ROUTE_PREFIX = "mailbox.route.";
+
+    //***************************************************************
+    // User Parameters
+    //***************************************************************
+
+    /**
+     * Defines the prefix to usernames stored in the properties file.
+     * A username should be stored as:
+     * USER_DEF_PREFIX&lt;user@domain.com&gt;=&lt;password&gt;
+     */
+    public static final String USER_DEF_PREFIX = "user.";
+
+    /**
+     * Defines the prefix for user properties usernames stored in the
+     * properties file.
+     * A user property should be stored as:
+     * USER_PROPERTY_PREFIX&lt;user@domain.com&gt;.&lt;property name&gt;=&lt;value&gt;
+     */
+    public static final String USER_PROPERTY_PREFIX = "userprop.";
+
+   /**
+    * The USER_PROPERTY_PREFIX&lt;user@domain.com&gt;.&lt;forwardAddresses&gt;=&lt;value&gt;
+    * property defines a comma separated
+    * list of addresses that mail to this user will be forwarded to.
+    */
+    public static final String USER_FILE_FORWARDS = ".forwardAddresses";
+
+    //***************************************************************
+    // Logging Paramters
+    //***************************************************************
+
+    /**
+     * Defines the default log threshold to use if log4j is not enabled.
+     */
+    public static final String LOGGING_DEFAULT_THRESHOLD = "defaultthreshold";
+
+}
 //EOF
\ No newline at end of file
@@ -0,0 +1,472 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.configuration;
+
+//Java imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps recipient addresses to the addresses of their mailboxes by the
+ * mailbox.route rules of mail.conf. A rule is a pattern and a mailbox:
+ * <ul>
+ * <li><code>alice@example.com</code> matches the address,</li>
+ * <li><code>alice+*@example.com</code> the address with any plus tag,</li>
+ * <li><code>*@example.com</code> any address at the domain,</li>
+ * <li><code>*@*.example.com</code> any address at a subdomain of the
+ * domain,</li>
+ * <li>any other pattern is matched against the whole address, where
+ * <code>*</code> stands for any characters and <code>?</code> for one.</li>
+ * </ul>
+ * An address is looked up in that order, so the most specific rule wins:
+ * the deepest domain, and the first pattern in the order of the rule names.
+ * The mailbox addresses themselves go to their mailboxes, so they can be
+ * used to log in to them.
+ * <p>
+ * The rules are compiled so a lookup costs the same however many there
+ * are: addresses and plus tags go to hash tables, domains to a trie of
+ * their labels from the top level down, and the other patterns to a single
+ * automaton that reads the address once. The automaton is built as
+ * addresses are looked up, a state for every set of pattern positions
+ * reached, so patterns that never compete cost nothing.
+ * <p>
+ * A table is not changed once compiled. A reloaded configuration compiles a
+ * new one and replaces the old one.
+ */
+public class RoutingTable {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The most automaton states kept before the automaton is rebuilt */
+	private static final int MAX_STATES = 100000;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** The mailboxes of the addresses */
+	private Map<String, String> addresses = new HashMap<String, String>();
+
+	/** The mailboxes of the tagged forms of the addresses */
+	private Map<String, String> tagged = new HashMap<String, String>();
+
+	/** The root of the trie of domains */
+	private DomainNode domains = new DomainNode();
+
+	/** The other patterns and their mailboxes, in rule order */
+	private String[] patterns;
+	private String[] patternMailboxes;
+
+	/** The first global position of every pattern */
+	private int[] patternStarts;
+
+	/** The pattern of every global position */
+	private int[] positionPatterns;
+
+	/** The states of the automaton, keyed by their position sets */
+	private Map<PositionSet, State> states = new HashMap<PositionSet, State>();
+
+	private State start;
+
+	private int ruleCount = 0;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Compiles the rules.
+	 *
+	 * @param rulePatterns
+	 *            the patterns, in the order of their rules.
+	 * @param mailboxes
+	 *            the mailbox address of every pattern.
+	 * @throws IllegalArgumentException
+	 *             if a pattern is not an address pattern.
+	 */
+	public RoutingTable(String[] rulePatterns, String[] mailboxes) {
+
+		List<String> globs = new ArrayList<String>();
+		List<String> globMailboxes = new ArrayList<String>();
+		for (int index = 0; index < rulePatterns.length; index++) {
+			String pattern = rulePatterns[index].trim().toLowerCase();
+			String mailbox = mailboxes[index].trim().toLowerCase();
+			int at = pattern.lastIndexOf('@');
+			if (at <= 0 || at == pattern.length() - 1) {
+				throw new IllegalArgumentException("Invalid address pattern: "
+						+ rulePatterns[index]);
+			}
+			String local = pattern.substring(0, at);
+			String domain = pattern.substring(at + 1);
+
+			if (isLiteral(domain) && isLiteral(local)) {
+				putFirst(addresses, pattern, mailbox);
+			} else if (isLiteral(domain) && local.endsWith("+*")
+					&& isLiteral(local.substring(0, local.length() - 2))) {
+				putFirst(tagged, local.substring(0, local.length() - 2) + "@"
+						+ domain, mailbox);
+			} else if (local.equals("*") && isLiteral(domain)) {
+				domains.add(domain, false, mailbox);
+			} else if (local.equals("*") && domain.startsWith("*.")
+					&& isLiteral(domain.substring(2))) {
+				domains.add(domain.substring(2), true, mailbox);
+			} else {
+				globs.add(pattern);
+				globMailboxes.add(mailbox);
+			}
+			ruleCount++;
+		}
+		for (int index = 0; index < mailboxes.length; index++) {
+			String mailbox = mailboxes[index].trim().toLowerCase();
+			putFirst(addresses, mailbox, mailbox);
+		}
+
+		patterns = globs.toArray(new String[globs.size()]);
+		patternMailboxes = globMailboxes.toArray(new String[globs.size()]);
+		patternStarts = new int[patterns.length];
+		int positions = 0;
+		for (int index = 0; index < patterns.length; index++) {
+			patternStarts[index] = positions;
+			positions += patterns[index].length() + 1;
+		}
+		positionPatterns = new int[positions];
+		for (int index = 0; index < patterns.length; index++) {
+			Arrays.fill(positionPatterns, patternStarts[index],
+					patternStarts[index] + patterns[index].length() + 1, index);
+		}
+		start = createStart();
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Returns the mailbox address of the recipient, or null if no rule
+	 * matches it.
+	 *
+	 * @param address
+	 *            the recipient address in lower case.
+	 */
+	public String route(String address) {
+
+		String mailbox = addresses.get(address);
+		if (mailbox != null) {
+			return mailbox;
+		}
+
+		int at = address.lastIndexOf('@');
+		if (at <= 0) {
+			return null;
+		}
+		int plus = address.indexOf('+');
+		if (plus > 0 && plus < at && !tagged.isEmpty()) {
+			mailbox = tagged.get(address.substring(0, plus)
+					+ address.substring(at));
+			if (mailbox != null) {
+				return mailbox;
+			}
+		}
+
+		mailbox = domains.find(address.substring(at + 1));
+		if (mailbox != null) {
+			return mailbox;
+		}
+
+		if (patterns.length == 0) {
+			return null;
+		}
+		int pattern = match(address);
+		return pattern == -1 ? null : patternMailboxes[pattern];
+	}
+
+	/** The number of rules in the table. */
+	public int size() {
+		return ruleCount;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private static boolean isLiteral(String value) {
+		return value.indexOf('*') == -1 && value.indexOf('?') == -1;
+	}
+
+	private static void putFirst(Map<String, String> map, String key,
+			String value) {
+		if (!map.containsKey(key)) {
+			map.put(key, value);
+		}
+	}
+
+	/**
+	 * Runs the automaton over the address.
+	 *
+	 * @return the first pattern that matches the whole address, or -1.
+	 */
+	private synchronized int match(String address) {
+
+		if (states.size() > MAX_STATES) {
+			states.clear();
+			start = createStart();
+		}
+		State state = start;
+		for (int index = 0; index < address.length()
+				&& state.positions.length > 0; index++) {
+			state = step(state, address.charAt(index));
+		}
+		return state.accepted;
+	}
+
+	private State createStart() {
+		int[] positions = new int[patterns.length];
+		for (int index = 0; index < patterns.length; index++) {
+			positions[index] = patternStarts[index];
+		}
+		return getState(closure(positions, positions.length));
+	}
+
+	/**
+	 * Returns the state the automaton goes to from the state on the
+	 * character, creating it the first time.
+	 */
+	private State step(State state, char character) {
+
+		for (int index = 0; index < state.transitionCount; index++) {
+			if (state.characters[index] == character) {
+				return state.targets[index];
+			}
+		}
+
+		int[] positions = new int[state.positions.length * 2];
+		int count = 0;
+		for (int index = 0; index < state.positions.length; index++) {
+			int position = state.positions[index];
+			char expected = getPatternChar(position);
+			if (expected == '*') {
+				positions[count++] = position;
+			} else if (expected == '?' || expected == character) {
+				positions[count++] = position + 1;
+			}
+		}
+		State next = getState(closure(positions, count));
+
+		if (state.transitionCount == state.characters.length) {
+			int length = state.characters.length * 2;
+			state.characters = Arrays.copyOf(state.characters, length);
+			state.targets = Arrays.copyOf(state.targets, length);
+		}
+		state.characters[state.transitionCount] = character;
+		state.targets[state.transitionCount++] = next;
+		return next;
+	}
+
+	/**
+	 * Adds the positions after the stars a position is at, as a star may
+	 * match nothing, and returns the positions sorted without duplicates.
+	 */
+	private int[] closure(int[] positions, int count) {
+
+		int[] closed = new int[count * 2 + 1];
+		int closedCount = 0;
+		for (int index = 0; index < count; index++) {
+			int position = positions[index];
+			if (closedCount + 2 > closed.length) {
+				closed = Arrays.copyOf(closed, closed.length * 2);
+			}
+			closed[closedCount++] = position;
+			while (getPatternChar(position) == '*') {
+				position++;
+				if (closedCount == closed.length) {
+					closed = Arrays.copyOf(closed, closed.length * 2);
+				}
+				closed[closedCount++] = position;
+			}
+		}
+		Arrays.sort(closed, 0, closedCount);
+		int unique = 0;
+		for (int index = 0; index < closedCount; index++) {
+			if (unique == 0 || closed[unique - 1] != closed[index]) {
+				closed[unique++] = closed[index];
+			}
+		}
+		return Arrays.copyOf(closed, unique);
+	}
+
+	/**
+	 * Returns the state of the positions, creating it the first time.
+	 */
+	private State getState(int[] positions) {
+
+		PositionSet key = new PositionSet(positions);
+		State state = states.get(key);
+		if (state == null) {
+			state = new State(positions);
+			for (int index = 0; index < positions.length; index++) {
+				if (getPatternChar(positions[index]) == 0) {
+					state.accepted = positionPatterns[positions[index]];
+					break;
+				}
+			}
+			states.put(key, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the character of the pattern at the global position, or 0 at
+	 * the end of the pattern.
+	 */
+	private char getPatternChar(int position) {
+		int pattern = positionPatterns[position];
+		int offset = position - patternStarts[pattern];
+		String value = patterns[pattern];
+		return offset == value.length() ? 0 : value.charAt(offset);
+	}
+
+	// ***************************************************************
+	// Automaton State and Domain Trie
+	// ***************************************************************
+
+	/**
+	 * A set of pattern positions the automaton can be at. The positions are
+	 * sorted, so the first end of a pattern is of the first pattern. Most
+	 * states are left on few characters, so the transitions are kept in a
+	 * short list rather than a table.
+	 */
+	private static class State {
+
+		private int[] positions;
+		private char[] characters = new char[2];
+		private State[] targets = new State[2];
+		private int transitionCount = 0;
+
+		/** The first pattern that ends here, or -1 */
+		private int accepted = -1;
+
+		public State(int[] positions) {
+			this.positions = positions;
+		}
+	}
+
+	/** The sorted positions of a state as a map key. */
+	private static class PositionSet {
+
+		private int[] positions;
+		private int hash;
+
+		public PositionSet(int[] positions) {
+			this.positions = positions;
+			this.hash = Arrays.hashCode(positions);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object object) {
+			return object instanceof PositionSet
+					&& Arrays.equals(positions, ((PositionSet) object).positions);
+		}
+	}
+
+	/**
+	 * A domain label in the trie, with the mailboxes of the domain it ends
+	 * and of its subdomains.
+	 */
+	private static class DomainNode {
+
+		private Map<String, DomainNode> children;
+		private String domainMailbox;
+		private String subdomainMailbox;
+
+		public void add(String domain, boolean subdomains, String mailbox) {
+
+			DomainNode node = this;
+			String[] labels = domain.split("\\.");
+			for (int index = labels.length - 1; index >= 0; index--) {
+				if (node.children == null) {
+					node.children = new HashMap<String, DomainNode>();
+				}
+				DomainNode child = node.children.get(labels[index]);
+				if (child == null) {
+					child = new DomainNode();
+					node.children.put(labels[index], child);
+				}
+				node = child;
+			}
+			if (subdomains && node.subdomainMailbox == null) {
+				node.subdomainMailbox = mailbox;
+			} else if (!subdomains && node.domainMailbox == null) {
+				node.domainMailbox = mailbox;
+			}
+		}
+
+		/**
+		 * Walks the labels of the domain from the last one, and returns the
+		 * mailbox of the domain, or of the deepest domain it is a subdomain
+		 * of.
+		 */
+		public String find(String domain) {
+
+			DomainNode node = this;
+			String found = null;
+			int end = domain.length();
+			while (end > 0 && node.children != null) {
+				if (node.subdomainMailbox != null) {
+					found = node.subdomainMailbox;
+				}
+				int dot = domain.lastIndexOf('.', end - 1);
+				node = node.children.get(domain.substring(dot + 1, end));
+				if (node == null) {
+					return found;
+				}
+				end = dot;
+			}
+			if (end > 0) {
+				return node.subdomainMailbox != null ? node.subdomainMailbox
+						: found;
+			}
+			return node.domainMailbox != null ? node.domainMailbox : found;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.info;
+
+//Java imports
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+
+/**
+ * Closes the mailboxes that are not used in the background, so the number
+ * of open stores, with their mapped indexes and cached listings, stays
+ * bounded. A mailbox is closed when it was not used for the
+ * mailbox.idletimeout, and the least recently used mailboxes are closed
+ * when more than mailbox.openlimit are open. A closed mailbox is opened
+ * again by the next delivery or session. The thread is started by the
+ * first mailbox that is opened.
+ */
+public class MailboxEvictor implements Runnable {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** How often the mailboxes are checked */
+	private static final long CHECK_INTERVAL = 60 * 1000;
+
+	/** A mailbox used this recently is not closed to make room for another */
+	private static final long MIN_IDLE_TIME = 1000;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(MailboxEvictor.class);
+
+	/** Singleton Instance */
+	private static MailboxEvictor instance = null;
+
+	/** The users whose store is open */
+	private Set<User> users = new LinkedHashSet<User>();
+
+	/** True if a mailbox was opened while too many were open */
+	private boolean overLimit = false;
+
+	private Thread thread = null;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized MailboxEvictor getMailboxEvictor() {
+		if (instance == null) {
+			instance = new MailboxEvictor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Adds a user whose store was opened. When this makes too many open
+	 * mailboxes, the thread is woken to close some.
+	 */
+	public synchronized void opened(User user) {
+		users.add(user);
+		if (thread == null) {
+			thread = new Thread(this, "MailboxEvictor");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		if (isOverLimit()) {
+			overLimit = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Removes a user whose store was closed.
+	 */
+	public synchronized void closed(User user) {
+		users.remove(user);
+	}
+
+	/** The number of open mailboxes. */
+	public synchronized int getOpenCount() {
+		return users.size();
+	}
+
+	public void run() {
+
+		while (true) {
+			User[] open;
+			synchronized (this) {
+				try {
+					// Mailboxes that were too recently used to be closed are
+					// tried again shortly.
+					if (!overLimit) {
+						wait(isOverLimit() ? MIN_IDLE_TIME : CHECK_INTERVAL);
+					}
+				} catch (InterruptedException ie) {
+					return;
+				}
+				overLimit = false;
+				open = users.toArray(new User[users.size()]);
+			}
+
+			try {
+				evict(open);
+			} catch (Throwable throwable) {
+				log.error("Unable to close idle mailboxes: " + throwable,
+						throwable);
+			}
+		}
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private boolean isOverLimit() {
+		int limit = ConfigurationManager.getInstance().getMailboxOpenLimit();
+		return limit > 0 && users.size() > limit;
+	}
+
+	/**
+	 * Closes the idle mailboxes, and the least recently used ones while too
+	 * many are open. The users decide themselves whether they can be closed,
+	 * without the lock of the evictor held.
+	 */
+	private void evict(User[] open) {
+
+		ConfigurationManager configurationManager = ConfigurationManager
+				.getInstance();
+		long now = System.currentTimeMillis();
+		long timeout = configurationManager.getMailboxIdleTimeoutMilliseconds();
+		int limit = configurationManager.getMailboxOpenLimit();
+		int excess = limit > 0 ? open.length - limit : 0;
+
+		final long[] lastUsed = new long[open.length];
+		Integer[] order = new Integer[open.length];
+		for (int index = 0; index < open.length; index++) {
+			lastUsed[index] = open[index].getLastUsed();
+			order[index] = Integer.valueOf(index);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer first, Integer second) {
+				long difference = lastUsed[first.intValue()]
+						- lastUsed[second.intValue()];
+				return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+			}
+		});
+
+		int closed = 0;
+		for (int index = 0; index < order.length; index++) {
+			long idleSince;
+			if (excess > 0) {
+				idleSince = now - MIN_IDLE_TIME;
+			} else if (timeout > 0) {
+				idleSince = now - timeout;
+			} else {
+				break;
+			}
+			if (lastUsed[order[index].intValue()] >= idleSince) {
+				// The others were used more recently.
+				break;
+			}
+			if (open[order[index].intValue()].close(idleSince)) {
+				excess--;
+				closed++;
+			}
+		}
+		if (closed > 0 && log.isDebugEnabled()) {
+			log.debug("Closed " + closed + " unused mailboxes, "
+					+ getOpenCount() + " are open.");
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.info;
+
+/**
+ * The messages of a mailbox as they were at one generation of its store.
+ * A maildrop never changes: messages delivered later are not added to it,
+ * and messages deleted later stay listed, so a POP3 session keeps the same
+ * message numbers while other sessions and deliveries change the mailbox.
+ * <p>
+ * Sessions opened while the mailbox did not change share a single maildrop.
+ * Messages marked as deleted during a session are tracked by the session
+ * itself.
+ * <p>
+ * Only the unique id and the size of every message are kept, in two arrays,
+ * so a maildrop takes 16 bytes per message. The Message passed to the store
+ * is created when it is needed.
+ */
+public class Maildrop {
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** The generation of the store the messages were listed at */
+	private long generation;
+
+	/** The unique ids of the messages, in delivery order */
+	private long[] uids;
+
+	/** The sizes of the messages in bytes */
+	private long[] sizes;
+
+	/** The total size of the messages */
+	private long size;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Creates a maildrop of the messages with the unique ids and sizes. The
+	 * arrays are kept, not copied.
+	 */
+	public Maildrop(long generation, long[] uids, long[] sizes) {
+		this.generation = generation;
+		this.uids = uids;
+		this.sizes = sizes;
+		for (int index = 0; index < sizes.length; index++) {
+			size += sizes[index];
+		}
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int getMessageCount() {
+		return uids.length;
+	}
+
+	/** The total size of the messages in bytes. */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the size of the specified message. Message numbers are 1 based.
+	 */
+	public long getMessageSize(int messageNumber) {
+		return sizes[messageNumber - 1];
+	}
+
+	/**
+	 * Gets the unique id of the specified message. Message numbers are 1
+	 * based.
+	 */
+	public String getUniqueId(int messageNumber) {
+		return String.valueOf(getUid(messageNumber));
+	}
+
+	/**
+	 * Gets the unique id of the specified message as the store numbers it.
+	 */
+	public long getUid(int messageNumber) {
+		return uids[messageNumber - 1];
+	}
+
+	/**
+	 * Returns a maildrop with the messages of this one followed by the
+	 * messages with the unique ids and sizes. This maildrop is not changed.
+	 */
+	public Maildrop append(long generation, long[] newUids, long[] newSizes) {
+		long[] allUids = new long[uids.length + newUids.length];
+		long[] allSizes = new long[allUids.length];
+		System.arraycopy(uids, 0, allUids, 0, uids.length);
+		System.arraycopy(newUids, 0, allUids, uids.length, newUids.length);
+		System.arraycopy(sizes, 0, allSizes, 0, sizes.length);
+		System.arraycopy(newSizes, 0, allSizes, sizes.length, newSizes.length);
+		return new Maildrop(generation, allUids, allSizes);
+	}
+
+	/**
+	 * Gets the specified message. Message numbers are 1 based. This method
+	 * counts on the calling method to verify that the messageNumber actually
+	 * exists.
+	 */
+	public Message getMessage(int messageNumber) {
+		Message message = new Message();
+		message.setUniqueId(getUniqueId(messageNumber));
+		message.setMessageSize(getMessageSize(messageNumber));
+		return message;
+	}
+}
+// EOF
@@ -1,261 +1,680 @@
-/******************************************************************************
- * This program is SMTP receiver which collect all mails to same inbox.
- * inbox is readable with pop protocol
- * NO mails are forwared.
- ******************************************************************************
- * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
- * All rights reserved.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- ******************************************************************************
- *
- * Refactored 2011 by Sampsa Sohlman for smtp receiver use
- *
- ******************************************************************************
- * For current versions and more information, please visit:
- * 
- * http://www.ericdaugherty.com/java/mail
- *
- * or contact the author at:
- * java@ericdaugherty.com
- *
- ******************************************************************************
- * This program is based on the CSRMail project written by Calvin Smith.
- * http://crsemail.sourceforge.net/
- *****************************************************************************/
-
-package com.ericdaugherty.mail.server.server.info;
-
-//Java imports
-import java.io.File;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
-import com.ericdaugherty.mail.server.configuration.PasswordManager;
-
-
-
-/**
- * Represents a user object.  This class is responsible for providing all
- * information about a specific user and their mailbox.
- * 
- * @author Eric Daugherty
- */
-public class User {
-
-    //***************************************************************
-    // Variables
-    //***************************************************************
-
-    private String username;
-    private String domain;
-    private String password;
-    private EmailAddress[] forwardAddresses;
-
-    private Message[] messages = null;
-
-    private ConfigurationManager configurationManager = null;
-
-    /** Logger */
-    private Logger log = LoggerFactory.getLogger( this.getClass() );
-
-    //***************************************************************
-    // Constructor
-    //***************************************************************
-
-    /**
-     * Creates a new user with the full username (user and domain).
-     *
-     * @param address User's full email address
-     * @param configurationManager Reference to the ConfigurationManager
-     */
-    public User( EmailAddress address, ConfigurationManager configurationManager )
-    {
-        username = address.getUsername().trim().toLowerCase();
-        domain = address.getDomain().trim().toLowerCase();
-
-        this.configurationManager = configurationManager;
-    }
-
-    /**
-     * Creates a new user with the full username (user and domain).
-     *
-     * @param address User's full email address
-     */
-    public User( EmailAddress address )
-    {
-        this( address, ConfigurationManager.getInstance() );
-    }
-
-    //***************************************************************
-    // Public Interface
-    //***************************************************************
-
-    /**
-     * Returns true if and only if the specified plain text password's hash
-     * value matches the hashed password for this user.
-     *
-     * @param plainTextPassword the password to validate.
-     * @return true if it matches.
-     */
-    public boolean isPasswordValid( String plainTextPassword )
-    {
-       return true;
-    }
-
-    //***************************************************************
-    //JavaBean Methods
-    
-    public String getUsername(){ return username; }
-
-    public void setUsername(String username){ this.username = username; }
-    
-    public String getFullUsername() { return getFullUsername( username, domain ); }
-
-    public String getDomain(){ return domain; }
-
-    public void setDomain(String domain){ this.domain = domain; }
-
-    public String getPassword(){ return password; }
-
-    public void setPassword(String password){ this.password = password; }
-
-    public EmailAddress[] getForwardAddresses(){ return forwardAddresses; }
-
-    public void setForwardAddresses(EmailAddress[] forwardAddresses){ this.forwardAddresses = forwardAddresses; }
-
-    /**
-     * Returns an array of Strings that represent email addresses to deliver
-     * email to this user to.  If the forwardAddresses is not null or empty,
-     * this will return the forwardAddresses array.  Otherwise, this will return
-     * the user's email address.
-     *
-     * @return array of strings that represent email addresses.
-     */
-    public EmailAddress[] getDeliveryAddresses() {
-
-        if( forwardAddresses != null && forwardAddresses.length > 0 ) {
-            return forwardAddresses;
-        }
-        else {
-            return new EmailAddress[] { new EmailAddress( getUsername(),  getDomain() ) };
-        }
-    }
-
-    /**
-     * Returns an array of Message objects that represents all messaged
-     * stored for this user.
-     */
-    public Message[] getMessages() {
-        
-        if( messages == null ) {
-            
-            File directory = getUserDirectory();
-            
-            String[] fileNames = directory.list();
-            
-            int numMessage = fileNames.length;
-            
-            messages = new Message[numMessage];
-            Message currentMessage;
-            
-            for( int index = 0; index < numMessage; index++ ) {
-                currentMessage = new Message();
-                currentMessage.setMessageLocation( new File( directory, fileNames[index] ) );
-                messages[index ] = currentMessage;
-            }
-        }
-        return messages;
-    }
-    
-    /**
-     * Gets the specified message.  Message numbers are 1 based.  
-     * This method counts on the calling method to verify that the
-     * messageNumber actually exists.
-     */
-    public Message getMessage( int messageNumber ) {
-        
-        return getMessages()[messageNumber - 1];
-    }
-         
-    /**
-     * Gets the total number of messages currently stored for this user.
-     */
-    public long getNumberOfMessage() {
-        
-        return getMessages().length;
-    }
-    
-    /**
-     * Gets the total size of the messages currently stored for this user.
-     */
-    public long getSizeOfAllMessage() {
-        
-        Message[] message = getMessages();
-        
-        long totalSize = 0;
-        
-        for ( int index = 0; index < message.length; index++) {
-            totalSize += message[index].getMessageLocation().length();
-        }
-        
-        return totalSize;
-    }
-    
-    /**
-     * Gets the user's directory as a file.  This method also verifies
-     * that that directory exists.
-     */
-    public File getUserDirectory() {
-
-        String mailDirectory = configurationManager.getMailDirectory();
-        File directory = new File( mailDirectory + File.separator + "users" + File.separator + getFullUsername() );
-
-        if ( !directory.exists() ) { 
-            if( log.isInfoEnabled() ) log.info( "Directory for user: " + getFullUsername() + "does not exist, creating..." );
-            directory.mkdirs();
-        }
-
-        if( !directory.isDirectory() ) {
-            log.error( "User Directory: " + directory.getAbsolutePath() + " for user: " + getFullUsername() + " does not exist." );
-            throw new RuntimeException( "User's Directory path: " + directory.getAbsolutePath() + " is not a directory!" );
-        }
-        
-        return directory;
-    }
-    
-    /**
-     * This method removes any cached message information this user may have stored
-     */
-    public void reset() {
-
-        messages = null;
-    }
-    
-    //***************************************************************
-    // Private Interface
-    //***************************************************************
-        
-    /**
-     * Converts a username and domaing to the combined username.
-     */
-    private static String getFullUsername( String username, String domain ) {
-
-        return username + "@" + domain;
-    }
-
-    
-
-
-}
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * 
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.info;
+
+//Java imports
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.configuration.ConfigurationParameterContants;
+import com.ericdaugherty.mail.server.configuration.PasswordManager;
+import com.ericdaugherty.mail.server.server.store.FlatMailboxStore;
+import com.ericdaugherty.mail.server.server.store.MailboxReclaimer;
+import com.ericdaugherty.mail.server.server.store.MailboxStore;
+import com.ericdaugherty.mail.server.server.store.MaildirMailboxStore;
+import com.ericdaugherty.mail.server.server.store.MemoryMailboxStore;
+import com.ericdaugherty.mail.server.server.store.PackedMailboxStore;
+import com.ericdaugherty.mail.server.server.store.RingMailboxStore;
+
+
+
+/**
+ * Represents a user object.  This class is responsible for providing all
+ * information about a specific user and their mailbox.
+ * 
+ * @author Eric Daugherty
+ */
+public class User implements ConfigurationParameterContants {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The prefix of the directories of the stores that replaced the first one */
+    private static final String GENERATION_PREFIX = "generation.";
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    private String username;
+    private String domain;
+    private String password;
+    private EmailAddress[] forwardAddresses;
+
+    /** The last maildrop listed, shared while the mailbox does not change */
+    private Maildrop maildrop = null;
+
+    private MailboxStore mailboxStore = null;
+
+    /** The number of purges of the mailbox store, which names its directory */
+    private int generation = 0;
+
+    /** The number of POP3 sessions that opened the current store */
+    private int sessions = 0;
+
+    /** The number of deliveries writing to the current store */
+    private int deliveries = 0;
+
+    /** True while the mailbox is purged, new deliveries wait for the new store */
+    private boolean purging = false;
+
+    /** The purged stores that sessions still read */
+    private List<PurgedStore> purgedStores = new ArrayList<PurgedStore>();
+
+    /** When the mailbox was last used, to close it when it is idle */
+    private volatile long lastUsed = 0;
+
+    /** True once the mailbox was closed and this user was replaced */
+    private boolean evicted = false;
+
+    private ConfigurationManager configurationManager = null;
+
+    /** Logger */
+    private Logger log = LoggerFactory.getLogger( this.getClass() );
+
+    //***************************************************************
+    // Constructor
+    //***************************************************************
+
+    /**
+     * Creates a new user with the full username (user and domain).
+     *
+     * @param address User's full email address
+     * @param configurationManager Reference to the ConfigurationManager
+     */
+    public User( EmailAddress address, ConfigurationManager configurationManager )
+    {
+        username = address.getUsername().trim().toLowerCase();
+        domain = address.getDomain().trim().toLowerCase();
+
+        this.configurationManager = configurationManager;
+    }
+
+    /**
+     * Creates a new user with the full username (user and domain).
+     *
+     * @param address User's full email address
+     */
+    public User( EmailAddress address )
+    {
+        this( address, ConfigurationManager.getInstance() );
+    }
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    /**
+     * Returns true if and only if the specified plain text password's hash
+     * value matches the hashed password for this user.
+     *
+     * @param plainTextPassword the password to validate.
+     * @return true if it matches.
+     */
+    public boolean isPasswordValid( String plainTextPassword )
+    {
+       return true;
+    }
+
+    //***************************************************************
+    //JavaBean Methods
+    
+    public String getUsername(){ return username; }
+
+    public void setUsername(String username){ this.username = username; }
+    
+    public String getFullUsername() { return getFullUsername( username, domain ); }
+
+    public String getDomain(){ return domain; }
+
+    public void setDomain(String domain){ this.domain = domain; }
+
+    public String getPassword(){ return password; }
+
+    public void setPassword(String password){ this.password = password; }
+
+    public EmailAddress[] getForwardAddresses(){ return forwardAddresses; }
+
+    public void setForwardAddresses(EmailAddress[] forwardAddresses){ this.forwardAddresses = forwardAddresses; }
+
+    /**
+     * Returns an array of Strings that represent email addresses to deliver
+     * email to this user to.  If the forwardAddresses is not null or empty,
+     * this will return the forwardAddresses array.  Otherwise, this will return
+     * the user's email address.
+     *
+     * @return array of strings that represent email addresses.
+     */
+    public EmailAddress[] getDeliveryAddresses() {
+
+        if( forwardAddresses != null && forwardAddresses.length > 0 ) {
+            return forwardAddresses;
+        }
+        else {
+            return new EmailAddress[] { new EmailAddress( getUsername(),  getDomain() ) };
+        }
+    }
+
+    /**
+     * Returns the messages currently stored for this user.  The maildrop
+     * does not change once it is returned, so a POP3 session keeps its view
+     * of the mailbox while messages are delivered and deleted.  The same
+     * maildrop is returned until the mailbox changes, and messages that are
+     * only delivered are added to a copy of it without listing the mailbox
+     * again, so a client polling an idle mailbox causes no disk reads.
+     */
+    public synchronized Maildrop getMaildrop() {
+
+        MailboxStore store = getMailboxStore();
+        if( maildrop == null || maildrop.getGeneration() != store.getGeneration() ) {
+            maildrop = store.getMaildrop( maildrop );
+        }
+        return maildrop;
+    }
+
+    /**
+     * Returns the messages of a store returned by openMailbox(), which may
+     * have been purged since.
+     */
+    public synchronized Maildrop getMaildrop( MailboxStore store ) {
+
+        if( store == mailboxStore ) {
+            return getMaildrop();
+        }
+        return store.getMaildrop( null );
+    }
+
+    /**
+     * Returns the current store for a session that reads the mailbox, a POP3
+     * session or an HTTP request.  The store stays open until the session
+     * passes it to closeMailbox(), even if the mailbox is purged meanwhile,
+     * so the session keeps its view of the mailbox.
+     *
+     * @return the store, or null if the mailbox was closed and this user
+     * replaced, the session must then open the mailbox of the replacement
+     * the ConfigurationManager returns.
+     */
+    public synchronized MailboxStore openMailbox() {
+
+        if( evicted ) {
+            return null;
+        }
+        MailboxStore store = getMailboxStore();
+        sessions++;
+        return store;
+    }
+
+    /**
+     * Tells that a session no longer reads a store returned by openMailbox().
+     * A purged store is reclaimed once no session reads it.
+     */
+    public synchronized void closeMailbox( MailboxStore store ) {
+
+        lastUsed = System.currentTimeMillis();
+        if( store == mailboxStore ) {
+            sessions--;
+            return;
+        }
+        for( int index = 0; index < purgedStores.size(); index++ ) {
+            PurgedStore purged = purgedStores.get( index );
+            if( purged.store == store ) {
+                if( --purged.sessions == 0 ) {
+                    purgedStores.remove( index );
+                    MailboxReclaimer.getMailboxReclaimer().schedule( purged.store, purged.directory, purged.files );
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the current store for a delivery, which passes it to
+     * closeDelivery() once the message is stored.  The message is written
+     * without holding the lock of this user, so sessions that read the
+     * mailbox are not held up by a large delivery.  While the mailbox is
+     * purged, the delivery waits for the new store.
+     *
+     * @return the store, or null if the mailbox was closed and this user
+     * replaced, the user must then be looked up again.
+     */
+    public synchronized MailboxStore openDelivery() throws IOException {
+
+        while( purging ) {
+            waitForMailbox();
+        }
+        if( evicted ) {
+            return null;
+        }
+        MailboxStore store = getMailboxStore();
+        deliveries++;
+        return store;
+    }
+
+    /**
+     * Tells that a delivery to the store returned by openDelivery() is
+     * done.
+     */
+    public synchronized void closeDelivery() {
+
+        lastUsed = System.currentTimeMillis();
+        if( --deliveries == 0 ) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Empties the mailbox by replacing its store with a new, empty one, so
+     * the time taken does not depend on the number of messages.  The old
+     * store is closed and its files are removed in the background once no
+     * POP3 session reads it.  The unique ids of the new store follow those
+     * of the old one, so clients do not mistake new messages for old ones.
+     * The purge waits for the deliveries to the old store to finish, and
+     * new deliveries wait until the new store is in place, so a message is
+     * either purged with the old store or delivered to the new one.
+     */
+    public synchronized void purge() throws IOException {
+
+        while( purging ) {
+            waitForMailbox();
+        }
+        purging = true;
+        try {
+            while( deliveries > 0 ) {
+                waitForMailbox();
+            }
+            replaceMailboxStore();
+        }
+        finally {
+            purging = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes the store of the mailbox if it was not used since the time given
+     * and no POP3 session reads it or delivery writes to it, releasing its
+     * indexes and listing.  The store is opened again when the mailbox is
+     * used.  Mailboxes kept in memory are never closed, as their messages
+     * would be lost.
+     *
+     * @return true if the store is closed.
+     */
+    public synchronized boolean close( long idleSince ) {
+
+        if( mailboxStore == null ) {
+            return true;
+        }
+        if( lastUsed >= idleSince || sessions > 0 || deliveries > 0 || purging || !purgedStores.isEmpty() || configurationManager.isMailboxInMemory() ) {
+            return false;
+        }
+        mailboxStore.close();
+        mailboxStore = null;
+        maildrop = null;
+        MailboxEvictor.getMailboxEvictor().closed( this );
+        // A routed mailbox gets a new user when it is used again, so the
+        // users of idle mailboxes do not pile up.
+        evicted = configurationManager.removeUser( this );
+        if( log.isDebugEnabled() ) log.debug( "Closed the idle mailbox of user: " + getFullUsername() );
+        return true;
+    }
+
+    /**
+     * Returns when the mailbox was last used.
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Marks the mailbox as used, so it is not closed right after it was
+     * looked up.
+     *
+     * @return false if the mailbox was closed and this user replaced, the
+     * user must then be looked up again.
+     */
+    public synchronized boolean use() {
+
+        if( evicted ) {
+            return false;
+        }
+        lastUsed = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Returns true if the mailbox exists: its store is open or, for the
+     * formats on disk, its directory was created.  Unlike the other methods
+     * this does not create the mailbox.
+     */
+    public synchronized boolean isMailboxCreated() {
+
+        if( mailboxStore != null ) {
+            return true;
+        }
+        return !configurationManager.isMailboxInMemory() && getUserDirectoryFile().isDirectory();
+    }
+
+    /**
+     * Gets the user's directory as a file.  This method also verifies
+     * that that directory exists.
+     */
+    public File getUserDirectory() {
+
+        File directory = getUserDirectoryFile();
+
+        if ( !directory.exists() ) { 
+            if( log.isInfoEnabled() ) log.info( "Directory for user: " + getFullUsername() + "does not exist, creating..." );
+            directory.mkdirs();
+        }
+
+        if( !directory.isDirectory() ) {
+            log.error( "User Directory: " + directory.getAbsolutePath() + " for user: " + getFullUsername() + " does not exist." );
+            throw new RuntimeException( "User's Directory path: " + directory.getAbsolutePath() + " is not a directory!" );
+        }
+        
+        return directory;
+    }
+    
+    /**
+     * Returns the store that holds this user's messages, in the format
+     * configured by the mailbox.format property.  A store that was closed
+     * while it was idle is opened again.
+     */
+    public synchronized MailboxStore getMailboxStore() {
+
+        if( evicted ) {
+            throw new IllegalStateException( "The mailbox of user " + getFullUsername() + " was closed, the user must be looked up again." );
+        }
+        lastUsed = System.currentTimeMillis();
+        if( mailboxStore == null ) {
+            File directory = null;
+            if( !configurationManager.isMailboxInMemory() ) {
+                // The files of stores purged before a restart are removed
+                // now.
+                String[] names = getUserDirectory().list();
+                generation = findGeneration( names );
+                directory = getGenerationDirectory( generation );
+                GenerationFilter stale = new GenerationFilter( generation, true );
+                for( int index = 0; names != null && index < names.length; index++ ) {
+                    if( stale.accept( names[index] ) ) {
+                        MailboxReclaimer.getMailboxReclaimer().schedule( null, getUserDirectory(), stale );
+                        break;
+                    }
+                }
+            }
+            try {
+                mailboxStore = createMailboxStore( directory );
+            }
+            catch( IOException ioe ) {
+                log.error( "Unable to open the mailbox of user: " + getFullUsername(), ioe );
+                throw new RuntimeException( "Unable to open mailbox " + ( directory == null ? getFullUsername() : directory.getAbsolutePath() ) + ": " + ioe );
+            }
+            if( !configurationManager.isMailboxInMemory() ) {
+                MailboxEvictor.getMailboxEvictor().opened( this );
+            }
+        }
+        return mailboxStore;
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Replaces the store by a new, empty one for purge(), once no delivery
+     * writes to it.
+     */
+    private void replaceMailboxStore() throws IOException {
+
+        MailboxStore old = getMailboxStore();
+        long nextUid = old.getNextUid();
+        int number = generation + 1;
+        MailboxStore store;
+        File userDirectory = null;
+        GenerationFilter files = new GenerationFilter( generation, false );
+        if( configurationManager.isMailboxInMemory() ) {
+            store = createMailboxStore( null );
+            store.setNextUid( nextUid );
+        }
+        else {
+            userDirectory = getUserDirectory();
+            // The new store is set up under a temporary name and renamed
+            // when it is complete, so a crash leaves the old one current.
+            File directory = getGenerationDirectory( number );
+            File prepared = new File( directory.getPath() + "." + System.currentTimeMillis() + ".new" );
+            if( !prepared.mkdirs() ) {
+                throw new IOException( "Unable to create mailbox directory " + prepared.getAbsolutePath() );
+            }
+            store = createMailboxStore( prepared );
+            try {
+                store.setNextUid( nextUid );
+            }
+            finally {
+                store.close();
+            }
+            if( !prepared.renameTo( directory ) ) {
+                MailboxReclaimer.getMailboxReclaimer().schedule( null, prepared, null );
+                throw new IOException( "Unable to rename " + prepared.getAbsolutePath() + " to " + directory.getAbsolutePath() );
+            }
+            store = createMailboxStore( directory );
+        }
+
+        if( sessions == 0 ) {
+            MailboxReclaimer.getMailboxReclaimer().schedule( old, userDirectory, files );
+        }
+        else {
+            purgedStores.add( new PurgedStore( old, sessions, userDirectory, files ) );
+        }
+        mailboxStore = store;
+        generation = number;
+        sessions = 0;
+        maildrop = null;
+        if( log.isInfoEnabled() ) log.info( "Purged the mailbox of user: " + getFullUsername() );
+    }
+
+    /**
+     * Waits for a delivery or a purge of the mailbox to finish.
+     */
+    private void waitForMailbox() throws InterruptedIOException {
+
+        try {
+            wait();
+        }
+        catch( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for the mailbox of user " + getFullUsername() );
+        }
+    }
+        
+    /**
+     * Creates a store in the format configured by the mailbox.format
+     * property.
+     *
+     * @param directory the directory of the store, null for the formats
+     * kept in memory.
+     */
+    private MailboxStore createMailboxStore( File directory ) throws IOException {
+
+        String format = configurationManager.getMailboxFormat();
+        String[] indexedHeaders = configurationManager.getMailboxIndexedHeaders();
+        boolean indexText = configurationManager.isMailboxTextIndex();
+        if( MAILBOX_FORMAT_MEMORY.equals( format ) ) {
+            return new MemoryMailboxStore();
+        }
+        else if( MAILBOX_FORMAT_RING.equals( format ) ) {
+            return new RingMailboxStore( configurationManager.getMailboxRingSizeBytes(), configurationManager.getMailboxRingMessages() );
+        }
+        else if( MAILBOX_FORMAT_MAILDIR.equals( format ) ) {
+            return new MaildirMailboxStore( directory, indexedHeaders, indexText );
+        }
+        else if( MAILBOX_FORMAT_PACKED.equals( format ) ) {
+            return new PackedMailboxStore( new File( directory, "packed" ), configurationManager.getMailboxSegmentSizeBytes(), indexedHeaders, indexText );
+        }
+        else {
+            return new FlatMailboxStore( directory, indexedHeaders, indexText );
+        }
+    }
+
+    /**
+     * Returns the user's directory, which may not exist.
+     */
+    private File getUserDirectoryFile() {
+
+        String mailDirectory = configurationManager.getMailDirectory();
+        return new File( mailDirectory + File.separator + "users" + File.separator + getFullUsername() );
+    }
+
+    /**
+     * Returns the directory of the store of a generation.  The first store
+     * is in the user directory itself, and every purge starts a new one in
+     * a directory of its own.
+     */
+    private File getGenerationDirectory( int number ) {
+
+        File directory = getUserDirectory();
+        return number == 0 ? directory : new File( directory, GENERATION_PREFIX + number );
+    }
+
+    /**
+     * Returns the number of the last generation in the user directory.
+     */
+    private static int findGeneration( String[] names ) {
+
+        int number = 0;
+        for( int index = 0; names != null && index < names.length; index++ ) {
+            number = Math.max( number, parseGeneration( names[index] ) );
+        }
+        return number;
+    }
+
+    /**
+     * Returns the number of the generation the directory name is of, or 0
+     * if it is not the name of a complete generation.
+     */
+    private static int parseGeneration( String name ) {
+
+        String number = name.substring( name.startsWith( GENERATION_PREFIX ) ? GENERATION_PREFIX.length() : name.length() );
+        if( number.length() == 0 || number.length() > 9 ) {
+            return 0;
+        }
+        for( int index = 0; index < number.length(); index++ ) {
+            if( !Character.isDigit( number.charAt( index ) ) ) {
+                return 0;
+            }
+        }
+        return Integer.parseInt( number );
+    }
+
+    /**
+     * Converts a username and domaing to the combined username.
+     */
+    private static String getFullUsername( String username, String domain ) {
+
+        return username + "@" + domain;
+    }
+
+    //***************************************************************
+    // Purged Store
+    //***************************************************************
+
+    /**
+     * A purged store, with the number of sessions that still read it and
+     * the files to remove when they are done.
+     */
+    private static class PurgedStore {
+
+        private MailboxStore store;
+        private int sessions;
+
+        /** The user directory, null if the store is kept in memory */
+        private File directory;
+
+        /** The files of the store in the user directory */
+        private FileFilter files;
+
+        public PurgedStore( MailboxStore store, int sessions, File directory, FileFilter files ) {
+            this.store = store;
+            this.sessions = sessions;
+            this.directory = directory;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Accepts the files in the user directory that are of a generation, or
+     * those that are not.  The files of the first generation are the ones
+     * that are not of a later one.
+     */
+    private static class GenerationFilter implements FileFilter {
+
+        private int number;
+        private boolean others;
+
+        public GenerationFilter( int number, boolean others ) {
+            this.number = number;
+            this.others = others;
+        }
+
+        public boolean accept( File file ) {
+            return accept( file.getName() );
+        }
+
+        public boolean accept( String name ) {
+
+            boolean member;
+            if( name.startsWith( GENERATION_PREFIX ) ) {
+                member = number > 0 && parseGeneration( name ) == number;
+            }
+            else {
+                member = number == 0;
+            }
+            return member != others;
+        }
+    }
+
+    
+
+
+}
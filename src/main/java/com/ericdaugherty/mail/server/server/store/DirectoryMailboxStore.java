@@ -0,0 +1,670 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * Base class of the stores that keep every message in a file of its own. A
+ * {@link MailboxIndex} records the unique id and size of every message, so
+ * listing the mailbox reads the index instead of the directory, and the
+ * message count and size are read from its header.
+ * <p>
+ * The index is updated on every delivery and deletion. When the store is
+ * opened it is compared with the message files once: files missing from the
+ * index are added, and messages whose file is gone are flagged deleted.
+ * <p>
+ * Deleting a message only flags it in the index; its file is removed later
+ * by the {@link MailboxExpunger}, or when the store is opened again. Once
+ * the files are removed and the deleted records outnumber the others, the
+ * index is rewritten without them.
+ */
+public abstract class DirectoryMailboxStore implements MailboxStore {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	protected static final String INDEX_NAME = "mailbox.index";
+
+	protected static final String HEADER_INDEX_NAME = "headers.index";
+
+	protected static final String TEXT_INDEX_NAME = "text";
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory
+			.getLogger(DirectoryMailboxStore.class);
+
+	private MailboxIndex index;
+
+	/** The index of the header values, null if no headers are indexed */
+	private HeaderIndex headerIndex;
+
+	/** The index of the words of the messages, null if it is disabled */
+	private TextIndex textIndex;
+
+	/** The unique ids of deleted messages whose files are not removed yet */
+	private ArrayDeque<Long> expunged = new ArrayDeque<Long>();
+
+	/**
+	 * The unique ids of deleted messages whose files could not be removed.
+	 * Their records are kept, so the files are not taken for new messages
+	 * when the store is opened again.
+	 */
+	private Set<Long> unremoved = new HashSet<Long>();
+
+	private boolean closed;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public synchronized Maildrop getMaildrop(Maildrop previous) {
+
+		return index.list(previous);
+	}
+
+	public synchronized long getGeneration() {
+		return index.getGeneration();
+	}
+
+	public synchronized boolean contains(Message message) {
+		int record = index.find(Long.parseLong(message.getUniqueId()));
+		return record != -1 && !index.isDeleted(record);
+	}
+
+	public synchronized Message[] find(String headerName, String value) {
+		if (headerIndex == null || !headerIndex.isIndexed(headerName)) {
+			return null;
+		}
+		return headerIndex.find(headerName, value, index);
+	}
+
+	public synchronized String[][] getListedHeaders(Message[] messages) {
+
+		String[][] listed = new String[messages.length][];
+		if (headerIndex == null) {
+			return listed;
+		}
+		for (int index = 0; index < messages.length; index++) {
+			long uid = Long.parseLong(messages[index].getUniqueId());
+			try {
+				listed[index] = headerIndex.getListedValues(uid);
+			} catch (IOException ioe) {
+				log.warn("Unable to read the listed headers of message " + uid
+						+ ": " + ioe);
+			}
+		}
+		return listed;
+	}
+
+	public Message[] search(String text, boolean substring) {
+		if (textIndex == null) {
+			return null;
+		}
+		long[] uids = textIndex.search(text, substring);
+		synchronized (this) {
+			return index.getMessages(uids);
+		}
+	}
+
+	public synchronized int getMessageCount() {
+		return index.getLiveCount();
+	}
+
+	public synchronized long getMessagesSize() {
+		return index.getLiveBytes();
+	}
+
+	public InputStream openMessage(Message message) throws IOException {
+		return new FileInputStream(getMessageFile(getUid(message)));
+	}
+
+	public long transferMessage(Message message, WritableByteChannel target)
+			throws IOException {
+		return transfer(getUid(message), -1, target);
+	}
+
+	public long transferTop(Message message, int lines,
+			WritableByteChannel target) throws IOException {
+		return transfer(getUid(message), lines, target);
+	}
+
+	/**
+	 * Flags the messages deleted in the index and returns. Their files are
+	 * removed in the background, and a deletion interrupted by a crash is
+	 * finished when the store is opened again.
+	 */
+	public void delete(Message[] messages) {
+
+		synchronized (this) {
+			for (int index = 0; index < messages.length; index++) {
+				long uid = getUid(messages[index]);
+				int record = this.index.find(uid);
+				if (record == -1 || this.index.isDeleted(record)) {
+					continue;
+				}
+				this.index.setFlags(record, this.index.getFlags(record)
+						| MailboxIndex.FLAG_DELETED);
+				expunged.add(Long.valueOf(uid));
+				MessageCache.getMessageCache().remove(this, uid);
+			}
+			index.sync();
+		}
+		MailboxExpunger.getMailboxExpunger().schedule(this);
+		if (textIndex != null) {
+			textIndex.scheduleMerge();
+		}
+	}
+
+	public synchronized long getNextUid() {
+		return index.getNextUid();
+	}
+
+	public synchronized void setNextUid(long uid) throws IOException {
+		index.reserve(uid);
+		index.sync();
+	}
+
+	/**
+	 * Closes the indexes. The files of deleted messages that were not
+	 * removed yet are left to whoever removes the directory.
+	 */
+	public void close() {
+
+		synchronized (this) {
+			closed = true;
+			expunged.clear();
+			try {
+				index.close();
+				if (headerIndex != null) {
+					headerIndex.close();
+				}
+			} catch (IOException ioe) {
+				log.warn("Unable to close the indexes of the mailbox in "
+						+ index.getIndexFile().getParent() + ": " + ioe);
+			}
+			if (textIndex != null) {
+				textIndex.close();
+			}
+		}
+		MessageCache.getMessageCache().removeAll(this);
+	}
+
+	/**
+	 * Removes the files of up to limit deleted messages. The files are
+	 * removed without holding the lock of the store. When the last file is
+	 * removed, the index is compacted if enough of its records are deleted.
+	 *
+	 * @return the number of files still to remove.
+	 */
+	int expunge(int limit) throws IOException {
+
+		List<Long> batch = new ArrayList<Long>();
+		int remaining;
+		synchronized (this) {
+			while (batch.size() < limit && !expunged.isEmpty()) {
+				batch.add(expunged.poll());
+			}
+			remaining = expunged.size();
+		}
+
+		List<Long> failed = new ArrayList<Long>();
+		for (Long uid : batch) {
+			try {
+				if (!removeMessageFile(getMessageFile(uid.longValue()))) {
+					log.warn("Unable to delete message " + uid);
+					failed.add(uid);
+				}
+			} catch (FileNotFoundException fnfe) {
+				log.warn("Message " + uid + " was already removed.");
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Expunged " + batch.size() + " messages, " + remaining
+					+ " remaining.");
+		}
+
+		synchronized (this) {
+			if (closed) {
+				return 0;
+			}
+			unremoved.addAll(failed);
+			if (expunged.isEmpty()
+					&& index.getRecordCount() - unremoved.size() > 2 * index
+							.getLiveCount()) {
+				compactIndex();
+			}
+			return expunged.size();
+		}
+	}
+
+	// ***************************************************************
+	// Subclass Interface
+	// ***************************************************************
+
+	/**
+	 * Opens the index and brings it up to date with the message files, and
+	 * opens the header and text indexes next to it. Called by the
+	 * constructor of the subclass once its directories exist.
+	 *
+	 * @param indexedHeaders
+	 *            the headers to index, none to disable the header index.
+	 * @param indexText
+	 *            true if the words of the messages are indexed.
+	 */
+	protected void openIndex(File indexFile, String[] indexedHeaders,
+			boolean indexText) throws IOException {
+		index = new MailboxIndex(indexFile);
+		reconcile();
+		if (indexedHeaders.length > 0) {
+			headerIndex = new HeaderIndex(new File(indexFile.getParentFile(),
+					HEADER_INDEX_NAME), indexedHeaders);
+			indexNewHeaders();
+		}
+		if (indexText) {
+			textIndex = new TextIndex(new File(indexFile.getParentFile(),
+					TEXT_INDEX_NAME), this);
+			indexNewText();
+		}
+	}
+
+	/**
+	 * Adds a message whose file has been written to the index.
+	 *
+	 * @param layout
+	 *            the layout of the message file, or null if it is not known.
+	 */
+	protected synchronized Message addMessage(long uid, long size,
+			MessageLayout layout) throws IOException {
+
+		index.append(uid, 0, size, layout, 0);
+		index.sync();
+		if (headerIndex != null) {
+			indexHeaders(uid, layout == null ? 0 : layout.getHeaderLength());
+			headerIndex.sync();
+		}
+		if (textIndex != null) {
+			indexText(uid);
+		}
+		cache(uid);
+
+		Message message = new Message();
+		message.setUniqueId(String.valueOf(uid));
+		message.setMessageSize(size);
+		return message;
+	}
+
+	/**
+	 * Returns the layout of a message written with the prefix.
+	 */
+	protected static MessageLayout getLayout(byte[] prefix,
+			MessageSource source) {
+		MessageLayout layout = source.getLayout();
+		return layout == null ? null : layout.shift(prefix.length);
+	}
+
+	/**
+	 * Lists the message files in the store, keyed by their unique id.
+	 */
+	protected abstract SortedMap<Long, File> scanMessageFiles()
+			throws IOException;
+
+	/**
+	 * Returns the file of the message with the unique id.
+	 */
+	protected abstract File getMessageFile(long uid)
+			throws FileNotFoundException;
+
+	/**
+	 * Returns the size of a message file found by scanMessageFiles().
+	 */
+	protected long getMessageFileSize(File file) {
+		return file.length();
+	}
+
+	/**
+	 * Removes the file of a deleted message.
+	 */
+	protected abstract boolean removeMessageFile(File file);
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private static long getUid(Message message) {
+		return Long.parseLong(message.getUniqueId());
+	}
+
+	/**
+	 * Writes a message, or its header and first body lines if lines is not
+	 * negative, to the target. A message in the MessageCache is sent from
+	 * memory, and a message that is retrieved from disk is added to it.
+	 */
+	private long transfer(long uid, int lines, WritableByteChannel target)
+			throws IOException {
+
+		MessageLayout layout = null;
+		if (lines >= 0) {
+			synchronized (this) {
+				int record = index.find(uid);
+				layout = record == -1 ? null : index.getLayout(record);
+			}
+		}
+
+		MessageCache cache = MessageCache.getMessageCache();
+		MessageCache.Entry entry = cache.get(this, uid);
+		if (entry != null) {
+			try {
+				long length = entry.getLength();
+				if (lines >= 0) {
+					length = MessageLayout.getTopLength(layout,
+							entry.getChannel(), 0, length, lines);
+				}
+				return entry.transfer(0, length, target);
+			} finally {
+				cache.release(entry);
+			}
+		}
+
+		FileInputStream in = new FileInputStream(getMessageFile(uid));
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			if (lines >= 0) {
+				length = MessageLayout.getTopLength(layout, channel, 0,
+						length, lines);
+			} else {
+				cache.put(this, uid, channel, 0, length);
+			}
+			return FileTransfer.transfer(channel, 0, length, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds the messages delivered since the header index was last updated
+	 * to it.
+	 */
+	private void indexNewHeaders() {
+
+		long lastUid = headerIndex.getLastUid();
+		int count = index.getRecordCount();
+		int added = 0;
+		for (int record = 0; record < count; record++) {
+			if (index.getUid(record) > lastUid && !index.isDeleted(record)) {
+				indexHeaders(index.getUid(record),
+						index.getHeaderLength(record));
+				added++;
+			}
+		}
+		headerIndex.sync();
+		if (added > 0 && log.isInfoEnabled()) {
+			log.info("Added " + added + " messages in "
+					+ index.getIndexFile().getParent()
+					+ " to the header index.");
+		}
+	}
+
+	/**
+	 * Adds the header values of a message to the header index. A failure
+	 * only means the message can not be found by them.
+	 */
+	private void indexHeaders(long uid, int headerLength) {
+
+		try {
+			FileInputStream in = new FileInputStream(getMessageFile(uid));
+			try {
+				headerIndex.add(uid, in.getChannel(), 0, headerLength, index);
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			log.warn("Unable to index the headers of message " + uid + ": "
+					+ ioe);
+		}
+	}
+
+	/**
+	 * Adds the messages delivered since the text index was last written to
+	 * it.
+	 */
+	private void indexNewText() {
+
+		long lastUid = textIndex.getLastUid();
+		int count = index.getRecordCount();
+		int added = 0;
+		for (int record = 0; record < count; record++) {
+			if (index.getUid(record) > lastUid && !index.isDeleted(record)) {
+				indexText(index.getUid(record));
+				added++;
+			}
+		}
+		if (added > 0 && log.isInfoEnabled()) {
+			log.info("Added " + added + " messages in "
+					+ index.getIndexFile().getParent() + " to the text index.");
+		}
+	}
+
+	/**
+	 * Adds the words of a message to the text index. A failure only means
+	 * the message can not be found by them.
+	 */
+	private void indexText(long uid) {
+
+		try {
+			FileInputStream in = new FileInputStream(getMessageFile(uid));
+			try {
+				FileChannel channel = in.getChannel();
+				textIndex.add(uid, channel, 0, channel.size());
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			log.warn("Unable to index the text of message " + uid + ": "
+					+ ioe);
+		}
+	}
+
+	/**
+	 * Adds a newly delivered message to the MessageCache. A failure only
+	 * means the message is read from disk when it is retrieved.
+	 */
+	private void cache(long uid) {
+
+		MessageCache cache = MessageCache.getMessageCache();
+		if (!cache.isEnabled()) {
+			return;
+		}
+		try {
+			FileInputStream in = new FileInputStream(getMessageFile(uid));
+			try {
+				FileChannel channel = in.getChannel();
+				cache.put(this, uid, channel, 0, channel.size());
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			log.debug("Unable to cache message " + uid + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Compares the index with the message files. If files were added with
+	 * unique ids lower than the last one in the index, the index is rebuilt.
+	 */
+	private void reconcile() throws IOException {
+
+		SortedMap<Long, File> unknown = scanMessageFiles();
+		int count = index.getRecordCount();
+		for (int record = 0; record < count; record++) {
+			File file = unknown.remove(Long.valueOf(index.getUid(record)));
+			if (index.isDeleted(record)) {
+				if (file != null && !removeMessageFile(file)) {
+					log.warn("Unable to delete message " + index.getUid(record));
+				}
+			} else if (file == null) {
+				log.warn("Message " + index.getUid(record) + " in "
+						+ index.getIndexFile().getParent()
+						+ " is missing, removing it from the index.");
+				index.setFlags(record, index.getFlags(record)
+						| MailboxIndex.FLAG_DELETED);
+			}
+		}
+
+		if (!unknown.isEmpty()) {
+			if (count > 0
+					&& unknown.firstKey().longValue() <= index.getUid(count - 1)) {
+				rebuild();
+				return;
+			}
+			if (log.isInfoEnabled()) {
+				log.info("Adding " + unknown.size() + " messages in "
+						+ index.getIndexFile().getParent() + " to the index.");
+			}
+			append(unknown);
+		}
+		index.sync();
+	}
+
+	/**
+	 * Replaces the index with one listing the message files.
+	 */
+	private void rebuild() throws IOException {
+
+		File indexFile = index.getIndexFile();
+		if (log.isInfoEnabled()) {
+			log.info("Rebuilding mailbox index " + indexFile.getAbsolutePath());
+		}
+
+		File rebuiltFile = new File(indexFile.getPath() + ".new");
+		MailboxIndex.delete(rebuiltFile);
+		MailboxIndex rebuilt = new MailboxIndex(rebuiltFile);
+		MailboxIndex old = index;
+		index = rebuilt;
+		try {
+			append(scanMessageFiles());
+			rebuilt.setGeneration(old.getGeneration() + 1);
+			rebuilt.sync();
+		} finally {
+			rebuilt.close();
+			old.close();
+		}
+		if (!MailboxIndex.rename(rebuiltFile, indexFile)) {
+			throw new IOException("Unable to replace mailbox index "
+					+ indexFile.getAbsolutePath());
+		}
+		index = new MailboxIndex(indexFile);
+	}
+
+	/**
+	 * Replaces the index with one without the records of deleted messages
+	 * whose files are removed. A deleted last record is kept, as it holds
+	 * the next unique id.
+	 */
+	private void compactIndex() throws IOException {
+
+		File indexFile = index.getIndexFile();
+		File compactedFile = new File(indexFile.getPath() + ".new");
+		MailboxIndex.delete(compactedFile);
+		MailboxIndex compacted = new MailboxIndex(compactedFile);
+		int count = index.getRecordCount();
+		try {
+			for (int record = 0; record < count; record++) {
+				long uid = index.getUid(record);
+				if (!index.isDeleted(record) || record == count - 1
+						|| unremoved.contains(Long.valueOf(uid))) {
+					compacted.append(uid, index.getOffset(record),
+							index.getLength(record), index.getLayout(record),
+							index.getFlags(record));
+				}
+			}
+			compacted.setGeneration(index.getGeneration() + 1);
+			compacted.sync();
+		} finally {
+			compacted.close();
+		}
+
+		index.close();
+		if (!MailboxIndex.rename(compactedFile, indexFile)) {
+			MailboxIndex.delete(compactedFile);
+			index = new MailboxIndex(indexFile);
+			throw new IOException("Unable to replace mailbox index "
+					+ indexFile.getAbsolutePath());
+		}
+		index = new MailboxIndex(indexFile);
+		if (log.isInfoEnabled()) {
+			log.info("Compacted mailbox index " + indexFile.getAbsolutePath()
+					+ " from " + count + " to " + index.getRecordCount()
+					+ " records.");
+		}
+	}
+
+	private void append(Map<Long, File> files) throws IOException {
+		Iterator<Map.Entry<Long, File>> entries = files.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Long, File> entry = entries.next();
+			index.append(entry.getKey().longValue(), 0,
+					getMessageFileSize(entry.getValue()), null, 0);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies a region of a file to a channel with
+ * <code>FileChannel.transferTo</code>, so the operating system can move the
+ * bytes without copying them through the heap.
+ */
+class FileTransfer {
+
+	/**
+	 * Writes the region of the file to the target.
+	 *
+	 * @return the number of bytes written.
+	 */
+	static long transfer(FileChannel source, long position, long length,
+			WritableByteChannel target) throws IOException {
+
+		long transferred = 0;
+		while (transferred < length) {
+			long count = source.transferTo(position + transferred, length
+					- transferred, target);
+			if (count <= 0) {
+				throw new IOException("Unexpected end of file after "
+						+ transferred + " of " + length + " bytes.");
+			}
+			transferred += count;
+		}
+		return transferred;
+	}
+}
@@ -0,0 +1,192 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * The original mailbox format: every message is a pop*.jmsg file directly in
+ * the user's directory. The unique id of a message is the number in its file
+ * name, so the file of a message is known from the index alone.
+ */
+public class FlatMailboxStore extends DirectoryMailboxStore {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	private static final String PREFIX = "pop";
+
+	private static final String SUFFIX = ".jmsg";
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(FlatMailboxStore.class);
+
+	/** The directory the messages are stored in */
+	private File directory;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Opens the store in the directory.
+	 *
+	 * @param indexedHeaders
+	 *            the headers to index on delivery.
+	 * @param indexText
+	 *            true if the words of the messages are indexed on delivery.
+	 */
+	public FlatMailboxStore(File directory, String[] indexedHeaders,
+			boolean indexText) throws IOException {
+		this.directory = directory;
+		openIndex(new File(directory, INDEX_NAME), indexedHeaders, indexText);
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public synchronized Message deliver(byte[] prefix, MessageSource source)
+			throws IOException {
+
+		long uid = getNextUid();
+		File messageFile = getMessageFile(uid);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Delivering to: " + messageFile.getAbsolutePath());
+		}
+
+		FileOutputStream out = new FileOutputStream(messageFile);
+		long size;
+		try {
+			out.write(prefix);
+			size = prefix.length + source.transferData(out.getChannel());
+		} catch (IOException ioe) {
+			out.close();
+			// The message was not fully written, so delete it.
+			messageFile.delete();
+			throw ioe;
+		}
+		out.close();
+
+		return addMessage(uid, size, getLayout(prefix, source));
+	}
+
+	// ***************************************************************
+	// Subclass Interface
+	// ***************************************************************
+
+	/**
+	 * Lists the pop*.jmsg files. Files whose name is not a valid unique id,
+	 * as written by older versions, are renumbered after the others.
+	 */
+	protected SortedMap<Long, File> scanMessageFiles() throws IOException {
+
+		SortedMap<Long, File> files = new TreeMap<Long, File>();
+		String[] names = directory.list();
+		if (names == null) {
+			throw new IOException("Unable to list mailbox directory "
+					+ directory.getAbsolutePath());
+		}
+
+		long lastUid = 0;
+		String[] unnumbered = new String[names.length];
+		int unnumberedCount = 0;
+		for (int index = 0; index < names.length; index++) {
+			String name = names[index];
+			if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+				continue;
+			}
+			long uid = parseUid(name);
+			if (uid > 0) {
+				files.put(Long.valueOf(uid), new File(directory, name));
+				lastUid = Math.max(lastUid, uid);
+			} else {
+				unnumbered[unnumberedCount++] = name;
+			}
+		}
+
+		for (int index = 0; index < unnumberedCount; index++) {
+			long uid = ++lastUid;
+			File file = getMessageFile(uid);
+			if (new File(directory, unnumbered[index]).renameTo(file)) {
+				files.put(Long.valueOf(uid), file);
+			} else {
+				log.warn("Unable to renumber message " + unnumbered[index]);
+			}
+		}
+		return files;
+	}
+
+	protected File getMessageFile(long uid) {
+		return new File(directory, PREFIX + uid + SUFFIX);
+	}
+
+	protected boolean removeMessageFile(File file) {
+		return file.delete();
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Returns the unique id in the file name, or -1 if it has none.
+	 */
+	private static long parseUid(String name) {
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length()
+					- SUFFIX.length()));
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,741 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * A hash table on disk from header values to the unique ids of the messages
+ * that have them, so a message can be found by its Message-ID, or by a
+ * header a test sets, without reading the mailbox.
+ * <p>
+ * The headers configured by the mailbox.headerindex property are extracted
+ * once, when a message is delivered. Every value is stored as a 64 bit hash
+ * of the lower case header name and value, in a slot of an open addressing
+ * table that is memory mapped. Address headers are also indexed by every
+ * address they contain, and Message-IDs without their angle brackets.
+ * <p>
+ * The values of the listed headers, Subject, From and Date, are also kept
+ * for every message in a file next to the table, so the messages can be
+ * listed without reading them. The values of a message are appended to the
+ * file when it is indexed, and the positions of the records are kept in
+ * memory. The file is not forced to disk, a message whose record was lost
+ * is listed by reading its header.
+ * <p>
+ * Deleted messages are not removed from the table. Lookups return the
+ * candidates and the store drops the deleted ones, and the entries and
+ * listed values of deleted messages are dropped when the table grows. The
+ * header records the last unique id indexed, so messages delivered while
+ * the index was not updated are added when the store is opened. A table
+ * that was being rebuilt when the server stopped, or that indexed other
+ * headers, is cleared and built again from the messages.
+ * <p>
+ * This class is not thread safe, the owner of the index must synchronize
+ * access to it.
+ */
+public class HeaderIndex {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** Identifies a header index file: "HIDX" */
+	private static final int MAGIC = 0x48494458;
+
+	private static final int VERSION = 2;
+
+	/** magic, version, capacity, count, last uid, names hash, rebuilding */
+	private static final int HEADER_LENGTH = 32;
+
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int COUNT_OFFSET = 12;
+	private static final int LAST_UID_OFFSET = 16;
+	private static final int NAMES_OFFSET = 24;
+	private static final int REBUILDING_OFFSET = 28;
+
+	/** hash and uid */
+	private static final int SLOT_LENGTH = 16;
+
+	/** The number of slots at first, always a power of two */
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/** The table grows when more than 70% of the slots are used */
+	private static final int MAX_LOAD_PERCENT = 70;
+
+	/** The most header bytes read of a message */
+	private static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final String MESSAGE_ID = "message-id";
+
+	/** The headers whose values are kept for every message */
+	public static final String[] LISTED_HEADERS = { "Subject", "From", "Date" };
+
+	/** The most characters kept of the value of a listed header */
+	private static final int MAX_LISTED_LENGTH = 1024;
+
+	/** uid and length of a record of the listed values */
+	private static final int VALUES_RECORD_HEADER = 12;
+
+	/** Headers that are also indexed by the addresses they contain */
+	private static final Set<String> ADDRESS_HEADERS = new HashSet<String>(
+			Arrays.asList(new String[] { "from", "to", "cc", "bcc",
+					"reply-to", "sender" }));
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(HeaderIndex.class);
+
+	private File indexFile;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	/** The lower case names of the indexed headers */
+	private Set<String> headerNames;
+
+	/** The records of the values of the listed headers */
+	private File valuesFile;
+	private RandomAccessFile values;
+
+	/**
+	 * The unique ids of the messages with a record in the values file, in
+	 * increasing order, and the positions of their records
+	 */
+	private long[] valueUids = new long[256];
+	private long[] valuePositions = new long[256];
+	private int valueCount = 0;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Opens the index file, creating an empty index if it does not exist or
+	 * can not be used.
+	 *
+	 * @param headerNames
+	 *            the names of the headers to index.
+	 */
+	public HeaderIndex(File indexFile, String[] headerNames)
+			throws IOException {
+
+		this.indexFile = indexFile;
+		this.headerNames = new HashSet<String>();
+		for (int index = 0; index < headerNames.length; index++) {
+			this.headerNames.add(headerNames[index].trim().toLowerCase());
+		}
+
+		file = new RandomAccessFile(indexFile, "rw");
+		channel = file.getChannel();
+		valuesFile = new File(indexFile.getPath() + ".values");
+		try {
+			// A compaction of the values that did not finish leaves its file
+			// behind.
+			new File(valuesFile.getPath() + ".new").delete();
+			values = new RandomAccessFile(valuesFile, "rw");
+
+			int capacity = 0;
+			if (channel.size() >= HEADER_LENGTH) {
+				map(HEADER_LENGTH);
+				if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+					capacity = buffer.getInt(CAPACITY_OFFSET);
+				}
+			}
+			if (capacity == 0
+					|| channel.size() < getPosition(capacity)
+					|| buffer.getInt(NAMES_OFFSET) != getNamesHash()
+					|| buffer.getInt(REBUILDING_OFFSET) != 0) {
+				if (channel.size() > 0 && log.isInfoEnabled()) {
+					log.info("Rebuilding header index "
+							+ indexFile.getAbsolutePath());
+				}
+				clear(INITIAL_CAPACITY);
+			} else {
+				map(getPosition(capacity));
+				readValuePositions();
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/** True if values of the header are indexed. */
+	public boolean isIndexed(String headerName) {
+		return headerNames.contains(headerName.trim().toLowerCase());
+	}
+
+	/** The largest unique id of the messages indexed so far. */
+	public long getLastUid() {
+		return buffer.getLong(LAST_UID_OFFSET);
+	}
+
+	/**
+	 * Indexes the header of a message. Messages must be added in increasing
+	 * unique id order.
+	 *
+	 * @param channel
+	 *            the file or cache entry the message is stored in.
+	 * @param position
+	 *            the position of the message in the channel.
+	 * @param headerLength
+	 *            the length of the header, or 0 if it is not known.
+	 * @param mailboxIndex
+	 *            the index of the mailbox, to drop deleted messages when the
+	 *            table grows.
+	 */
+	public void add(long uid, SeekableByteChannel channel, long position,
+			long headerLength, MailboxIndex mailboxIndex) throws IOException {
+
+		if (headerLength <= 0) {
+			headerLength = MessageLayout.findHeaderLength(channel, position,
+					Math.min(channel.size() - position, MAX_HEADER_LENGTH));
+		}
+		ByteBuffer header = ByteBuffer.allocate((int) Math.min(headerLength,
+				MAX_HEADER_LENGTH));
+		channel.position(position);
+		while (header.hasRemaining()) {
+			if (channel.read(header) <= 0) {
+				break;
+			}
+		}
+		header.flip();
+
+		String[] fields = unfold(CHARSET.decode(header).toString());
+		Set<String> keys = getKeys(fields, headerNames);
+		for (String key : keys) {
+			if (getCount() + 1 > getCapacity() * MAX_LOAD_PERCENT / 100) {
+				grow(mailboxIndex);
+			}
+			insert(hash(key), uid);
+		}
+		addValues(uid, getListedValues(fields));
+		buffer.putLong(LAST_UID_OFFSET, Math.max(getLastUid(), uid));
+	}
+
+	/**
+	 * Returns the values of the listed headers of a message, in the order of
+	 * LISTED_HEADERS, with folded lines joined.
+	 *
+	 * @return the values, null for a header the message does not have, or
+	 *         null if the values of the message are not kept.
+	 */
+	public String[] getListedValues(long uid) throws IOException {
+
+		int found = Arrays.binarySearch(valueUids, 0, valueCount, uid);
+		if (found < 0) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				readValues(valuePositions[found])));
+		in.skipBytes(VALUES_RECORD_HEADER);
+		String[] listed = new String[LISTED_HEADERS.length];
+		for (int index = 0; index < listed.length; index++) {
+			if (in.readBoolean()) {
+				listed[index] = in.readUTF();
+			}
+		}
+		return listed;
+	}
+
+	/**
+	 * Returns the messages that have the header value and are not deleted,
+	 * in the order they were delivered.
+	 *
+	 * @param mailboxIndex
+	 *            the index of the mailbox, which has the sizes of the
+	 *            messages and their deleted flags.
+	 */
+	public Message[] find(String headerName, String value,
+			MailboxIndex mailboxIndex) {
+
+		return mailboxIndex.getMessages(find(headerName, value));
+	}
+
+	/**
+	 * Forces the changes made to the index to disk.
+	 */
+	public void sync() {
+		buffer.force();
+	}
+
+	public void close() throws IOException {
+		file.close();
+		if (values != null) {
+			values.close();
+		}
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Returns the unique ids of the messages that may have the header value,
+	 * in increasing order. Some of them may be deleted.
+	 */
+	private long[] find(String headerName, String value) {
+
+		String name = headerName.trim().toLowerCase();
+		long hash = hash(getKey(name, value));
+
+		long[] uids = new long[8];
+		int found = 0;
+		int mask = getCapacity() - 1;
+		for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+			int position = getPosition(slot);
+			long slotHash = buffer.getLong(position);
+			if (slotHash == 0) {
+				break;
+			}
+			if (slotHash == hash) {
+				if (found == uids.length) {
+					uids = Arrays.copyOf(uids, found * 2);
+				}
+				uids[found++] = buffer.getLong(position + 8);
+			}
+		}
+		Arrays.sort(uids, 0, found);
+
+		// A message indexed twice, after a crash, is returned once.
+		int distinct = 0;
+		for (int index = 0; index < found; index++) {
+			if (distinct == 0 || uids[distinct - 1] != uids[index]) {
+				uids[distinct++] = uids[index];
+			}
+		}
+		return Arrays.copyOf(uids, distinct);
+	}
+
+	private int getCapacity() {
+		return buffer.getInt(CAPACITY_OFFSET);
+	}
+
+	private int getCount() {
+		return buffer.getInt(COUNT_OFFSET);
+	}
+
+	private static int getPosition(int slot) {
+		return HEADER_LENGTH + slot * SLOT_LENGTH;
+	}
+
+	private void map(int size) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Empties the table and sets the number of slots.
+	 */
+	private void clear(int capacity) throws IOException {
+
+		channel.truncate(0);
+		map(getPosition(capacity));
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.putInt(COUNT_OFFSET, 0);
+		buffer.putLong(LAST_UID_OFFSET, 0);
+		buffer.putInt(NAMES_OFFSET, getNamesHash());
+		buffer.putInt(REBUILDING_OFFSET, 0);
+		values.setLength(0);
+		valueCount = 0;
+		sync();
+	}
+
+	private void insert(long hash, long uid) {
+
+		int mask = getCapacity() - 1;
+		int slot = (int) hash & mask;
+		while (buffer.getLong(getPosition(slot)) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		buffer.putLong(getPosition(slot) + 8, uid);
+		buffer.putLong(getPosition(slot), hash);
+		buffer.putInt(COUNT_OFFSET, getCount() + 1);
+	}
+
+	/**
+	 * Rehashes the entries of the messages that are not deleted into a
+	 * table of twice the size, or the same size if enough entries were
+	 * dropped. The header is flagged while the table is rebuilt in place.
+	 */
+	private void grow(MailboxIndex mailboxIndex) throws IOException {
+
+		int capacity = getCapacity();
+		long[] hashes = new long[getCount()];
+		long[] uids = new long[hashes.length];
+		int live = 0;
+		for (int slot = 0; slot < capacity; slot++) {
+			int position = getPosition(slot);
+			long hash = buffer.getLong(position);
+			long uid = buffer.getLong(position + 8);
+			if (hash == 0) {
+				continue;
+			}
+			int record = mailboxIndex.find(uid);
+			if (record != -1 && !mailboxIndex.isDeleted(record)) {
+				hashes[live] = hash;
+				uids[live++] = uid;
+			}
+		}
+		if ((long) live * 100 / capacity > MAX_LOAD_PERCENT / 2) {
+			capacity *= 2;
+		}
+
+		buffer.putInt(REBUILDING_OFFSET, 1);
+		sync();
+		long lastUid = getLastUid();
+		map(getPosition(capacity));
+		for (int position = HEADER_LENGTH; position < getPosition(capacity); position += 8) {
+			buffer.putLong(position, 0);
+		}
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.putInt(COUNT_OFFSET, 0);
+		for (int index = 0; index < live; index++) {
+			insert(hashes[index], uids[index]);
+		}
+		buffer.putLong(LAST_UID_OFFSET, lastUid);
+		buffer.putInt(REBUILDING_OFFSET, 0);
+		sync();
+
+		compactValues(mailboxIndex);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Header index " + indexFile.getAbsolutePath() + " has "
+					+ live + " entries in " + capacity + " slots.");
+		}
+	}
+
+	/**
+	 * Appends the record of the listed values of a message to the values
+	 * file. A message that was indexed again after a crash already has one.
+	 */
+	private void addValues(long uid, String[] listed) throws IOException {
+
+		if (valueCount > 0 && uid <= valueUids[valueCount - 1]) {
+			return;
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeLong(uid);
+		out.writeInt(0);
+		for (int index = 0; index < listed.length; index++) {
+			out.writeBoolean(listed[index] != null);
+			if (listed[index] != null) {
+				String value = listed[index];
+				if (value.length() > MAX_LISTED_LENGTH) {
+					value = value.substring(0, MAX_LISTED_LENGTH);
+				}
+				out.writeUTF(value);
+			}
+		}
+		out.flush();
+		byte[] bytes = record.toByteArray();
+		ByteBuffer.wrap(bytes).putInt(8, bytes.length - VALUES_RECORD_HEADER);
+
+		long position = values.length();
+		values.seek(position);
+		values.write(bytes);
+		addValuePosition(uid, position);
+	}
+
+	private void addValuePosition(long uid, long position) {
+
+		if (valueCount == valueUids.length) {
+			valueUids = Arrays.copyOf(valueUids, valueCount * 2);
+			valuePositions = Arrays.copyOf(valuePositions, valueCount * 2);
+		}
+		valueUids[valueCount] = uid;
+		valuePositions[valueCount++] = position;
+	}
+
+	/**
+	 * Returns the record of the listed values at the position, including
+	 * its uid and length.
+	 */
+	private byte[] readValues(long position) throws IOException {
+
+		values.seek(position + 8);
+		byte[] record = new byte[VALUES_RECORD_HEADER + values.readInt()];
+		values.seek(position);
+		values.readFully(record);
+		return record;
+	}
+
+	/**
+	 * Reads the positions of the records in the values file. A record that
+	 * was cut short when the server stopped is removed.
+	 */
+	private void readValuePositions() throws IOException {
+
+		long length = values.length();
+		long position = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(valuesFile), 64 * 1024));
+		try {
+			byte[] skipped = new byte[1024];
+			while (position + VALUES_RECORD_HEADER <= length) {
+				long uid = in.readLong();
+				int recordLength = in.readInt();
+				if (recordLength < 0
+						|| position + VALUES_RECORD_HEADER + recordLength > length) {
+					break;
+				}
+				if (skipped.length < recordLength) {
+					skipped = new byte[recordLength];
+				}
+				in.readFully(skipped, 0, recordLength);
+				if (valueCount == 0 || uid > valueUids[valueCount - 1]) {
+					addValuePosition(uid, position);
+				}
+				position += VALUES_RECORD_HEADER + recordLength;
+			}
+		} catch (EOFException eofe) {
+			// The file ended in the record.
+		} finally {
+			in.close();
+		}
+		if (position < length) {
+			values.setLength(position);
+		}
+	}
+
+	/**
+	 * Rewrites the values file without the records of the messages that are
+	 * deleted. The new file is written next to it and renamed over it.
+	 */
+	private void compactValues(MailboxIndex mailboxIndex) throws IOException {
+
+		File compactedFile = new File(valuesFile.getPath() + ".new");
+		long[] uids = new long[Math.max(valueCount, 256)];
+		long[] positions = new long[uids.length];
+		int live = 0;
+		RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw");
+		try {
+			compacted.setLength(0);
+			for (int index = 0; index < valueCount; index++) {
+				int record = mailboxIndex.find(valueUids[index]);
+				if (record == -1 || mailboxIndex.isDeleted(record)) {
+					continue;
+				}
+				uids[live] = valueUids[index];
+				positions[live++] = compacted.getFilePointer();
+				compacted.write(readValues(valuePositions[index]));
+			}
+			compacted.getChannel().force(false);
+		} finally {
+			compacted.close();
+		}
+		if (live == valueCount) {
+			compactedFile.delete();
+			return;
+		}
+
+		values.close();
+		boolean renamed = compactedFile.renameTo(valuesFile);
+		values = new RandomAccessFile(valuesFile, "rw");
+		if (!renamed) {
+			compactedFile.delete();
+			log.warn("Unable to replace the header values "
+					+ valuesFile.getAbsolutePath());
+			return;
+		}
+		valueUids = uids;
+		valuePositions = positions;
+		valueCount = live;
+	}
+
+	/**
+	 * Returns the values of the listed headers among the header fields, the
+	 * first one of every header.
+	 */
+	private static String[] getListedValues(String[] fields) {
+
+		String[] listed = new String[LISTED_HEADERS.length];
+		for (int index = 0; index < fields.length; index++) {
+			int colon = fields[index].indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			String name = fields[index].substring(0, colon).trim();
+			for (int header = 0; header < LISTED_HEADERS.length; header++) {
+				if (listed[header] == null
+						&& LISTED_HEADERS[header].equalsIgnoreCase(name)) {
+					listed[header] = fields[index].substring(colon + 1)
+							.trim();
+					break;
+				}
+			}
+		}
+		return listed;
+	}
+
+	/**
+	 * Returns the keys the values of the header fields are found by.
+	 *
+	 * @param headerNames
+	 *            the lower case names of the fields to include, or null for
+	 *            all of them.
+	 */
+	static Set<String> getKeys(String header, Set<String> headerNames) {
+		return getKeys(unfold(header), headerNames);
+	}
+
+	private static Set<String> getKeys(String[] fields,
+			Set<String> headerNames) {
+
+		Set<String> keys = new HashSet<String>();
+		for (int index = 0; index < fields.length; index++) {
+			int colon = fields[index].indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			String name = fields[index].substring(0, colon).trim()
+					.toLowerCase();
+			if (headerNames == null || headerNames.contains(name)) {
+				addKeys(keys, name, fields[index].substring(colon + 1));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the key a header value is looked up by.
+	 */
+	static String getKey(String name, String value) {
+
+		value = value.trim();
+		if (MESSAGE_ID.equals(name) && value.startsWith("<")
+				&& value.endsWith(">")) {
+			value = value.substring(1, value.length() - 1).trim();
+		}
+		return name + ":" + value.toLowerCase();
+	}
+
+	/**
+	 * Adds the keys a header value is found by.
+	 */
+	private static void addKeys(Set<String> keys, String name, String value) {
+
+		keys.add(getKey(name, value));
+		if (ADDRESS_HEADERS.contains(name)) {
+			StringTokenizer tokenizer = new StringTokenizer(value,
+					" \t,;<>\"()");
+			while (tokenizer.hasMoreTokens()) {
+				String token = tokenizer.nextToken();
+				if (token.indexOf('@') > 0) {
+					keys.add(getKey(name, token));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splits a header into its fields, joining the continuation lines.
+	 */
+	private static String[] unfold(String header) {
+
+		StringBuffer fields = new StringBuffer(header.length());
+		StringTokenizer lines = new StringTokenizer(header, "\r\n");
+		boolean first = true;
+		while (lines.hasMoreTokens()) {
+			String line = lines.nextToken();
+			if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+				fields.append(' ').append(line.trim());
+			} else {
+				if (!first) {
+					fields.append('\n');
+				}
+				fields.append(line);
+				first = false;
+			}
+		}
+		return fields.toString().split("\n");
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the key, never 0 as 0 marks an empty slot.
+	 */
+	private static long hash(String key) {
+
+		byte[] bytes = key.getBytes(CHARSET);
+		long hash = 0xcbf29ce484222325L;
+		for (int index = 0; index < bytes.length; index++) {
+			hash ^= bytes[index] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	private int getNamesHash() {
+		String[] names = headerNames.toArray(new String[headerNames.size()]);
+		Arrays.sort(names);
+		return Arrays.asList(names).hashCode();
+	}
+}
@@ -0,0 +1,129 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reclaims the space of deleted messages in the packed mailboxes in the
+ * background, so POP3 sessions never wait for it. The thread is started by
+ * the first packed store that is opened.
+ */
+public class MailboxCompactor implements Runnable {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** How often the stores are checked */
+	private static final long CHECK_INTERVAL = 60 * 1000;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(MailboxCompactor.class);
+
+	/** Singleton Instance */
+	private static MailboxCompactor instance = null;
+
+	private List<PackedMailboxStore> stores = new CopyOnWriteArrayList<PackedMailboxStore>();
+
+	private Thread thread = null;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized MailboxCompactor getMailboxCompactor() {
+		if (instance == null) {
+			instance = new MailboxCompactor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Adds a store to be compacted when needed.
+	 */
+	public synchronized void register(PackedMailboxStore store) {
+		stores.add(store);
+		if (thread == null) {
+			thread = new Thread(this, "MailboxCompactor");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops compacting a store, after it was closed.
+	 */
+	public void unregister(PackedMailboxStore store) {
+		stores.remove(store);
+	}
+
+	public void run() {
+
+		while (true) {
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			for (PackedMailboxStore store : stores) {
+				if (!store.needsCompaction()) {
+					continue;
+				}
+				try {
+					store.compact();
+				} catch (Throwable throwable) {
+					log.error("Unable to compact mailbox "
+							+ store.getDirectory().getAbsolutePath() + ": "
+							+ throwable, throwable);
+				}
+			}
+		}
+	}
+}
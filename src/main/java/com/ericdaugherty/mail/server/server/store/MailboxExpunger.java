@@ -0,0 +1,137 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the files of deleted messages in the background. A POP3 session
+ * only flags its deleted messages in the mailbox index when it quits, and
+ * the files are removed here a batch at a time, pausing between batches so
+ * a large expunge does not starve deliveries and other sessions of disk
+ * time. Once the last batch of a store is removed, the store drops the
+ * deleted records from its index. The thread is started by the first store
+ * that needs it.
+ * <p>
+ * Files that were not removed before a restart are removed when the store
+ * is opened again, as their messages are flagged deleted in the index.
+ */
+public class MailboxExpunger implements Runnable {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The most files removed in one batch */
+	private static final int BATCH_SIZE = 200;
+
+	/** The pause between two batches */
+	private static final long BATCH_PAUSE = 50;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(MailboxExpunger.class);
+
+	/** Singleton Instance */
+	private static MailboxExpunger instance = null;
+
+	/** The stores with files to remove */
+	private LinkedBlockingQueue<DirectoryMailboxStore> stores = new LinkedBlockingQueue<DirectoryMailboxStore>();
+
+	private Thread thread = null;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized MailboxExpunger getMailboxExpunger() {
+		if (instance == null) {
+			instance = new MailboxExpunger();
+		}
+		return instance;
+	}
+
+	/**
+	 * Queues a store that has files of deleted messages to remove. A store
+	 * that is already queued is not added again.
+	 */
+	public synchronized void schedule(DirectoryMailboxStore store) {
+		if (!stores.contains(store)) {
+			stores.add(store);
+		}
+		if (thread == null) {
+			thread = new Thread(this, "MailboxExpunger");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void run() {
+
+		while (true) {
+			DirectoryMailboxStore store;
+			try {
+				store = stores.take();
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			try {
+				if (store.expunge(BATCH_SIZE) > 0) {
+					schedule(store);
+				}
+			} catch (Throwable throwable) {
+				log.error("Unable to expunge mailbox: " + throwable, throwable);
+			}
+
+			try {
+				Thread.sleep(BATCH_PAUSE);
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+}
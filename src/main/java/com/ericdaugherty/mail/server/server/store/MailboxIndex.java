@@ -0,0 +1,523 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * A compact binary index of the messages in a mailbox. Every message has a
+ * fixed width record with its unique id, the position of its data, its
+ * length, the length of its header and its flags. Records are only ever
+ * appended, in increasing unique id order, so a message can be found with a
+ * binary search. Only the flags of a record are changed in place.
+ * <p>
+ * The header of the index holds the number of records and the number and
+ * total size of the messages that are not deleted, so the status of a
+ * mailbox is known without reading the records. It also holds a generation
+ * that is incremented by every change, so a reader can tell cheaply whether
+ * its view of the mailbox is still current. The file is memory mapped and
+ * updated in place; {@link #sync()} forces the changes to disk.
+ * <p>
+ * The body line offsets of the {@link MessageLayout} of every message are
+ * kept in a second file with the suffix ".toc", in records of the same
+ * order, so they do not slow down listing the index. Every toc record
+ * repeats the unique id of its message and is ignored if it does not match.
+ * <p>
+ * This class is not thread safe, the owner of the index must synchronize
+ * access to it.
+ */
+public class MailboxIndex {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The flag of a message that has been deleted */
+	public static final int FLAG_DELETED = 1;
+
+	/** Identifies an index file: "MIDX" */
+	private static final int MAGIC = 0x4d494458;
+
+	private static final int VERSION = 1;
+
+	/** magic and version, the part of the header every version shares */
+	private static final int VERSION_HEADER_LENGTH = 8;
+
+	/** magic, version, record count, live count, live bytes, generation */
+	private static final int HEADER_LENGTH = 32;
+
+	private static final int COUNT_OFFSET = 8;
+	private static final int LIVE_COUNT_OFFSET = 12;
+	private static final int LIVE_BYTES_OFFSET = 16;
+	private static final int GENERATION_OFFSET = 24;
+
+	/** uid, offset, length, header length and flags */
+	private static final int RECORD_LENGTH = 32;
+
+	private static final int OFFSET_OFFSET = 8;
+	private static final int LENGTH_OFFSET = 16;
+	private static final int HEADER_LENGTH_OFFSET = 24;
+	private static final int FLAGS_OFFSET = 28;
+
+	/** uid and line offsets */
+	private static final int TOC_RECORD_LENGTH = 64;
+
+	private static final String TOC_SUFFIX = ".toc";
+
+	/** The number of records room is made for at first */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	private File indexFile;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	private RandomAccessFile tocFile;
+	private MappedByteBuffer tocBuffer;
+
+	/** The number of records the mapping has room for */
+	private int capacity;
+
+	/**
+	 * The generation of the last flag change made since the index was
+	 * opened. Listings made at or after it only miss appended records.
+	 */
+	private long flagsGeneration;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Opens the index file, creating an empty index if it does not exist.
+	 */
+	public MailboxIndex(File indexFile) throws IOException {
+
+		this.indexFile = indexFile;
+		file = new RandomAccessFile(indexFile, "rw");
+		channel = file.getChannel();
+		tocFile = new RandomAccessFile(getTocFile(indexFile), "rw");
+
+		try {
+			if (channel.size() == 0) {
+				map(INITIAL_CAPACITY);
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				sync();
+			} else {
+				int version = readVersion();
+				if (version != VERSION) {
+					throw new IOException("Unsupported version " + version
+							+ " of mailbox index " + indexFile.getAbsolutePath());
+				}
+				map((int) Math.max((channel.size() - HEADER_LENGTH)
+						/ RECORD_LENGTH, INITIAL_CAPACITY));
+			}
+			flagsGeneration = getGeneration();
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	/** The number of records, including deleted messages. */
+	public int getRecordCount() {
+		return buffer.getInt(COUNT_OFFSET);
+	}
+
+	/** The number of messages that are not deleted. */
+	public int getLiveCount() {
+		return buffer.getInt(LIVE_COUNT_OFFSET);
+	}
+
+	/** The total length of the messages that are not deleted. */
+	public long getLiveBytes() {
+		return buffer.getLong(LIVE_BYTES_OFFSET);
+	}
+
+	/** The number of changes made to the index. */
+	public long getGeneration() {
+		return buffer.getLong(GENERATION_OFFSET);
+	}
+
+	/**
+	 * Sets the generation, used to carry it over to an index that replaces
+	 * this one.
+	 */
+	public void setGeneration(long generation) {
+		buffer.putLong(GENERATION_OFFSET, generation);
+	}
+
+	/**
+	 * Lists the messages that are not deleted. If messages were only
+	 * appended since the previous listing was made, the new records are
+	 * added to it instead of reading the whole index again.
+	 *
+	 * @param previous
+	 *            an earlier listing of this mailbox, or null.
+	 */
+	public Maildrop list(Maildrop previous) {
+
+		long generation = getGeneration();
+		int first = 0;
+		if (previous != null && previous.getGeneration() >= flagsGeneration
+				&& previous.getGeneration() <= generation) {
+			if (previous.getGeneration() == generation) {
+				return previous;
+			}
+			int previousCount = previous.getMessageCount();
+			if (previousCount > 0) {
+				first = find(previous.getUid(previousCount)) + 1;
+				if (first == 0) {
+					previous = null;
+				}
+			}
+		} else {
+			previous = null;
+		}
+
+		int count = getRecordCount();
+		int live = 0;
+		for (int record = first; record < count; record++) {
+			if (!isDeleted(record)) {
+				live++;
+			}
+		}
+		long[] uids = new long[live];
+		long[] sizes = new long[live];
+		int current = 0;
+		for (int record = first; record < count && current < live; record++) {
+			if (!isDeleted(record)) {
+				uids[current] = getUid(record);
+				sizes[current++] = getLength(record);
+			}
+		}
+
+		if (previous == null) {
+			return new Maildrop(generation, uids, sizes);
+		}
+		return previous.append(generation, uids, sizes);
+	}
+
+	public long getUid(int record) {
+		return buffer.getLong(getPosition(record));
+	}
+
+	public long getOffset(int record) {
+		return buffer.getLong(getPosition(record) + OFFSET_OFFSET);
+	}
+
+	public long getLength(int record) {
+		return buffer.getLong(getPosition(record) + LENGTH_OFFSET);
+	}
+
+	public int getHeaderLength(int record) {
+		return buffer.getInt(getPosition(record) + HEADER_LENGTH_OFFSET);
+	}
+
+	/**
+	 * Returns the layout of a message, or null if it is not known.
+	 */
+	public MessageLayout getLayout(int record) {
+
+		int headerLength = getHeaderLength(record);
+		if (headerLength == 0) {
+			return null;
+		}
+
+		int position = getTocPosition(record);
+		if (tocBuffer.getLong(position) != getUid(record)) {
+			return new MessageLayout(headerLength, null);
+		}
+		int count = 0;
+		while (count < MessageLayout.MAX_LINE_OFFSETS
+				&& tocBuffer.getInt(position + 8 + count * 4) != 0) {
+			count++;
+		}
+		int[] lineOffsets = new int[count];
+		for (int index = 0; index < count; index++) {
+			lineOffsets[index] = tocBuffer.getInt(position + 8 + index * 4);
+		}
+		return new MessageLayout(headerLength, lineOffsets);
+	}
+
+	public int getFlags(int record) {
+		return buffer.getInt(getPosition(record) + FLAGS_OFFSET);
+	}
+
+	public boolean isDeleted(int record) {
+		return (getFlags(record) & FLAG_DELETED) != 0;
+	}
+
+	/**
+	 * Returns a unique id larger than any in the index.
+	 */
+	public long getNextUid() {
+		int count = getRecordCount();
+		return count == 0 ? 1 : getUid(count - 1) + 1;
+	}
+
+	/**
+	 * Makes the unique id of the next record at least the one given, by
+	 * appending a deleted record of no length before it. The record is not
+	 * durable until {@link #sync()} is called.
+	 */
+	public void reserve(long uid) throws IOException {
+		if (uid > getNextUid()) {
+			append(uid - 1, 0, 0, null, FLAG_DELETED);
+		}
+	}
+
+	/**
+	 * Returns the record of the message with the unique id, or -1 if it is
+	 * not in the index.
+	 */
+	public int find(long uid) {
+
+		int low = 0;
+		int high = getRecordCount() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleUid = getUid(middle);
+			if (middleUid < uid) {
+				low = middle + 1;
+			} else if (middleUid > uid) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the messages with the unique ids that are in the index and not
+	 * deleted, with their sizes, in the order of the unique ids.
+	 */
+	public Message[] getMessages(long[] uids) {
+
+		Message[] messages = new Message[uids.length];
+		int live = 0;
+		for (int index = 0; index < uids.length; index++) {
+			int record = find(uids[index]);
+			if (record != -1 && !isDeleted(record)) {
+				Message message = new Message();
+				message.setUniqueId(String.valueOf(uids[index]));
+				message.setMessageSize(getLength(record));
+				messages[live++] = message;
+			}
+		}
+		return Arrays.copyOf(messages, live);
+	}
+
+	/**
+	 * Appends a record. The unique id must be larger than any in the index.
+	 * The record is not durable until {@link #sync()} is called.
+	 *
+	 * @param layout
+	 *            the layout of the message, or null if it is not known.
+	 */
+	public void append(long uid, long offset, long length,
+			MessageLayout layout, int recordFlags) throws IOException {
+
+		int count = getRecordCount();
+		if (count > 0 && uid <= getUid(count - 1)) {
+			throw new IllegalArgumentException("Unique id " + uid
+					+ " is not larger than the last one in the index.");
+		}
+		if (count == capacity) {
+			map(capacity * 2);
+		}
+
+		int position = getPosition(count);
+		buffer.putLong(position, uid);
+		buffer.putLong(position + OFFSET_OFFSET, offset);
+		buffer.putLong(position + LENGTH_OFFSET, length);
+		buffer.putInt(position + HEADER_LENGTH_OFFSET,
+				layout == null ? 0 : layout.getHeaderLength());
+		buffer.putInt(position + FLAGS_OFFSET, recordFlags);
+
+		int tocPosition = getTocPosition(count);
+		tocBuffer.putLong(tocPosition, uid);
+		for (int index = 0; index < MessageLayout.MAX_LINE_OFFSETS; index++) {
+			int lineOffset = 0;
+			if (layout != null && index < layout.getLineOffsetCount()) {
+				lineOffset = layout.getLineOffset(index);
+			}
+			tocBuffer.putInt(tocPosition + 8 + index * 4, lineOffset);
+		}
+
+		// The record is complete before it is counted.
+		buffer.putInt(COUNT_OFFSET, count + 1);
+		if ((recordFlags & FLAG_DELETED) == 0) {
+			updateLive(1, length);
+		}
+		setGeneration(getGeneration() + 1);
+	}
+
+	/**
+	 * Replaces the flags of a record. The change is not durable until
+	 * {@link #sync()} is called.
+	 */
+	public void setFlags(int record, int recordFlags) {
+
+		boolean wasDeleted = isDeleted(record);
+		buffer.putInt(getPosition(record) + FLAGS_OFFSET, recordFlags);
+		flagsGeneration = getGeneration() + 1;
+
+		boolean deleted = (recordFlags & FLAG_DELETED) != 0;
+		if (deleted && !wasDeleted) {
+			updateLive(-1, -getLength(record));
+		} else if (!deleted && wasDeleted) {
+			updateLive(1, getLength(record));
+		}
+		setGeneration(getGeneration() + 1);
+	}
+
+	/**
+	 * Forces the changes made to the index to disk.
+	 */
+	public void sync() {
+		tocBuffer.force();
+		buffer.force();
+	}
+
+	public void close() throws IOException {
+		try {
+			tocFile.close();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Renames a closed index and its toc file.
+	 *
+	 * @return true if both were renamed.
+	 */
+	public static boolean rename(File indexFile, File target) {
+		File tocFile = getTocFile(indexFile);
+		if (tocFile.exists() && !tocFile.renameTo(getTocFile(target))) {
+			return false;
+		}
+		return indexFile.renameTo(target);
+	}
+
+	/**
+	 * Deletes a closed index and its toc file.
+	 */
+	public static void delete(File indexFile) {
+		getTocFile(indexFile).delete();
+		indexFile.delete();
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private static int getPosition(int record) {
+		return HEADER_LENGTH + record * RECORD_LENGTH;
+	}
+
+	private static int getTocPosition(int record) {
+		return record * TOC_RECORD_LENGTH;
+	}
+
+	private static File getTocFile(File indexFile) {
+		return new File(indexFile.getPath() + TOC_SUFFIX);
+	}
+
+	private void updateLive(int count, long bytes) {
+		buffer.putInt(LIVE_COUNT_OFFSET, getLiveCount() + count);
+		buffer.putLong(LIVE_BYTES_OFFSET, getLiveBytes() + bytes);
+	}
+
+	/**
+	 * Maps the index with room for the number of records, growing the file
+	 * if needed.
+	 */
+	private void map(int records) throws IOException {
+		long size = HEADER_LENGTH + (long) records * RECORD_LENGTH;
+		long tocSize = (long) records * TOC_RECORD_LENGTH;
+		if (tocSize > Integer.MAX_VALUE) {
+			throw new IOException("Mailbox index "
+					+ indexFile.getAbsolutePath() + " is full.");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		tocBuffer = tocFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, tocSize);
+		capacity = records;
+	}
+
+	private int readVersion() throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(VERSION_HEADER_LENGTH);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("Invalid mailbox index "
+						+ indexFile.getAbsolutePath());
+			}
+		}
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Invalid mailbox index "
+					+ indexFile.getAbsolutePath());
+		}
+		return header.getInt();
+	}
+}
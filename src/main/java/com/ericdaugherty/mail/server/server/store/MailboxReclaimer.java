@@ -0,0 +1,225 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes the stores of purged mailboxes and removes their files in the
+ * background. A purge only replaces the store of a mailbox with an empty
+ * one, and the old store is handed here once no POP3 session reads it any
+ * more. Its files are removed a batch at a time, pausing between batches as
+ * the MailboxExpunger does, so removing a large mailbox does not starve
+ * deliveries and sessions of disk time. The thread is started by the first
+ * purge.
+ * <p>
+ * Files that were not removed before a restart are found and removed when
+ * the mailbox is opened again.
+ */
+public class MailboxReclaimer implements Runnable {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The most files removed in one batch */
+	private static final int BATCH_SIZE = 200;
+
+	/** The pause between two batches */
+	private static final long BATCH_PAUSE = 50;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(MailboxReclaimer.class);
+
+	/** Singleton Instance */
+	private static MailboxReclaimer instance = null;
+
+	/** The stores to close and the files to remove */
+	private LinkedBlockingQueue<Reclaim> reclaims = new LinkedBlockingQueue<Reclaim>();
+
+	private Thread thread = null;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized MailboxReclaimer getMailboxReclaimer() {
+		if (instance == null) {
+			instance = new MailboxReclaimer();
+		}
+		return instance;
+	}
+
+	/**
+	 * Queues a store to close and the files to remove after it is closed.
+	 * The directory is only listed then, so a mailbox of many files is
+	 * purged as quickly as an empty one.
+	 *
+	 * @param store
+	 *            the store, or null if it is not open.
+	 * @param file
+	 *            the file or directory to remove, or null if the store has
+	 *            no files.
+	 * @param filter
+	 *            null to remove the file, or the filter of the files in the
+	 *            directory to remove.
+	 */
+	public synchronized void schedule(MailboxStore store, File file,
+			FileFilter filter) {
+		reclaims.add(new Reclaim(store, file, filter));
+		if (thread == null) {
+			thread = new Thread(this, "MailboxReclaimer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void run() {
+
+		while (true) {
+			Reclaim reclaim;
+			try {
+				reclaim = reclaims.take();
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			try {
+				if (reclaim.store != null) {
+					reclaim.store.close();
+				}
+				File[] files = new File[] { reclaim.file };
+				if (reclaim.file == null) {
+					files = null;
+				} else if (reclaim.filter != null) {
+					files = reclaim.file.listFiles(reclaim.filter);
+				}
+				int removed = 0;
+				for (int index = 0; files != null && index < files.length; index++) {
+					removed += remove(files[index]);
+				}
+				if (files != null && log.isInfoEnabled()) {
+					log.info("Removed " + removed + " files of a purged mailbox.");
+				}
+			} catch (InterruptedException ie) {
+				return;
+			} catch (Throwable throwable) {
+				log.error("Unable to reclaim mailbox: " + throwable, throwable);
+			}
+		}
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Removes a file, or a directory and everything in it, pausing after
+	 * every batch of files.
+	 *
+	 * @return the number of files removed.
+	 */
+	private int remove(File root) throws InterruptedException {
+
+		int removed = 0;
+		ArrayDeque<File> pending = new ArrayDeque<File>();
+		ArrayDeque<File> directories = new ArrayDeque<File>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			File file = pending.pop();
+			File[] children = file.listFiles();
+			if (children != null) {
+				// A directory is removed after everything in it.
+				directories.push(file);
+				for (int index = 0; index < children.length; index++) {
+					pending.push(children[index]);
+				}
+			} else if (delete(file) && ++removed % BATCH_SIZE == 0) {
+				Thread.sleep(BATCH_PAUSE);
+			}
+		}
+		while (!directories.isEmpty()) {
+			if (delete(directories.pop())) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private boolean delete(File file) {
+		if (file.delete()) {
+			return true;
+		}
+		if (file.exists()) {
+			log.warn("Unable to delete " + file.getAbsolutePath());
+		}
+		return false;
+	}
+
+	// ***************************************************************
+	// Reclaim
+	// ***************************************************************
+
+	/**
+	 * A store to close and the files to remove.
+	 */
+	private static class Reclaim {
+
+		private MailboxStore store;
+		private File file;
+		private FileFilter filter;
+
+		public Reclaim(MailboxStore store, File file, FileFilter filter) {
+			this.store = store;
+			this.file = file;
+			this.filter = filter;
+		}
+	}
+}
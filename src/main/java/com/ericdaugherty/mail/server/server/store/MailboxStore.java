@@ -0,0 +1,173 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * Defines how the messages of a single mailbox are stored on disk. The
+ * SMTPSender delivers messages into a store, and the POP3 service lists,
+ * reads and deletes them.
+ * <p>
+ * Messages are stored in the form POP3 sends them in: every line ends with
+ * CRLF and lines starting with '.' are dot-stuffed, as they were received
+ * over SMTP. A message can therefore be sent to a client as is.
+ */
+public interface MailboxStore {
+
+	/**
+	 * Stores a new message. The prefix contains the headers added for this
+	 * recipient and is written before the message data.
+	 *
+	 * @return the stored message.
+	 */
+	public Message deliver(byte[] prefix, MessageSource source)
+			throws IOException;
+
+	/**
+	 * Returns the messages currently stored, in the order they were
+	 * delivered, together with the generation they were listed at.
+	 *
+	 * @param previous
+	 *            the last maildrop returned by this store, or null. The store
+	 *            may return it, or extend it with the messages delivered
+	 *            since, if no messages were deleted in between.
+	 */
+	public Maildrop getMaildrop(Maildrop previous);
+
+	/**
+	 * Returns a number that changes whenever a message is delivered or
+	 * deleted, so a maildrop can be reused while it is still current.
+	 */
+	public long getGeneration();
+
+	/**
+	 * Returns true if the message is still stored and not deleted.
+	 */
+	public boolean contains(Message message);
+
+	/**
+	 * Returns the messages that have the value in the header, in the order
+	 * they were delivered, using the header index.
+	 *
+	 * @return the messages, or null if the header is not indexed.
+	 */
+	public Message[] find(String headerName, String value);
+
+	/**
+	 * Returns the messages that contain all the words of the text, in the
+	 * order they were delivered, using the text index.
+	 *
+	 * @param substring
+	 *            true if the words may be parts of longer words of the
+	 *            messages.
+	 * @return the messages, or null if the text is not indexed.
+	 */
+	public Message[] search(String text, boolean substring);
+
+	/**
+	 * Returns the values of the headers in HeaderIndex.LISTED_HEADERS of the
+	 * messages, as the header index keeps them, so the messages can be
+	 * listed without reading them.
+	 *
+	 * @return the values of every message, or null for a message whose
+	 *         values are not kept.
+	 */
+	public String[][] getListedHeaders(Message[] messages);
+
+	/**
+	 * Returns the number of messages currently stored, without listing
+	 * them.
+	 */
+	public int getMessageCount();
+
+	/**
+	 * Returns the total size of the messages currently stored, without
+	 * listing them.
+	 */
+	public long getMessagesSize();
+
+	/**
+	 * Opens the data of a message for reading.
+	 */
+	public InputStream openMessage(Message message) throws IOException;
+
+	/**
+	 * Writes the data of a message to the channel without interpreting it.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public long transferMessage(Message message, WritableByteChannel target)
+			throws IOException;
+
+	/**
+	 * Writes the header and the first lines of the body of a message to the
+	 * channel, as the POP3 TOP command returns them.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public long transferTop(Message message, int lines,
+			WritableByteChannel target) throws IOException;
+
+	/**
+	 * Permanently removes the messages from the store.
+	 */
+	public void delete(Message[] messages);
+
+	/**
+	 * Returns the unique id the next message delivered gets at least.
+	 */
+	public long getNextUid();
+
+	/**
+	 * Makes the unique ids of the messages delivered from now on at least
+	 * the one given, so a store that replaces another one does not reuse
+	 * the unique ids of its messages.
+	 */
+	public void setNextUid(long uid) throws IOException;
+
+	/**
+	 * Releases the files and memory the store holds. The store is not used
+	 * once it is closed.
+	 */
+	public void close();
+}
@@ -0,0 +1,421 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * Stores the messages of a mailbox in Maildir format.
+ * <p>
+ * Messages are written to tmp/ and renamed into new/ once complete, so a
+ * message is either fully visible or not at all. The file names start with
+ * the delivery time in microseconds, which is also the unique id of the
+ * message in the index, and carry the message size as ",S=&lt;size&gt;".
+ * Deleted messages are moved to cur/ with the 'T' (trashed) flag before they
+ * are unlinked, so the deletion survives a crash in between.
+ * <p>
+ * The names of the message files are remembered once the directories have
+ * been listed, and only listed again when a message is not found.
+ */
+public class MaildirMailboxStore extends DirectoryMailboxStore {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** Separates the unique name from the flags of a message in cur/ */
+	private static final String INFO_SEPARATOR = ":2,";
+
+	/** Precedes the size of the message in the file name */
+	private static final String SIZE_FIELD = ",S=";
+
+	/** The flag of a message that has been deleted */
+	private static final char FLAG_TRASHED = 'T';
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory
+			.getLogger(MaildirMailboxStore.class);
+
+	/** The process id and host name used in the unique names */
+	private static final String PROCESS_AND_HOST = getProcessAndHost();
+
+	/** The last time used for a unique name, in microseconds */
+	private static long lastTime = 0;
+
+	private File tmpDirectory;
+	private File newDirectory;
+	private File curDirectory;
+
+	/** The message files by unique id, as last listed */
+	private Map<Long, File> messageFiles = new HashMap<Long, File>();
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Creates the store, creating the tmp, new and cur directories below the
+	 * root directory if needed.
+	 *
+	 * @param indexedHeaders
+	 *            the headers to index on delivery.
+	 * @param indexText
+	 *            true if the words of the messages are indexed on delivery.
+	 */
+	public MaildirMailboxStore(File root, String[] indexedHeaders,
+			boolean indexText) throws IOException {
+		tmpDirectory = createDirectory(root, "tmp");
+		newDirectory = createDirectory(root, "new");
+		curDirectory = createDirectory(root, "cur");
+		openIndex(new File(root, INDEX_NAME), indexedHeaders, indexText);
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public synchronized Message deliver(byte[] prefix, MessageSource source)
+			throws IOException {
+
+		long uid = createTime();
+		String uniqueName = createUniqueName(uid);
+		File tmpFile = new File(tmpDirectory, uniqueName);
+
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		long size;
+		try {
+			out.write(prefix);
+			size = prefix.length + source.transferData(out.getChannel());
+			// The message must be on disk before it shows up in new/.
+			out.getChannel().force(true);
+		} catch (IOException ioe) {
+			out.close();
+			tmpFile.delete();
+			throw ioe;
+		}
+		out.close();
+
+		File messageFile = new File(newDirectory, uniqueName + SIZE_FIELD
+				+ size);
+		if (!tmpFile.renameTo(messageFile)) {
+			tmpFile.delete();
+			throw new IOException("Unable to move " + uniqueName
+					+ " from tmp to new.");
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Delivered to: " + messageFile.getAbsolutePath());
+		}
+
+		messageFiles.put(Long.valueOf(uid), messageFile);
+		return addMessage(uid, size, getLayout(prefix, source));
+	}
+
+	// ***************************************************************
+	// Subclass Interface
+	// ***************************************************************
+
+	/**
+	 * Lists the messages in new/ and cur/. Messages that were trashed but
+	 * not yet unlinked are unlinked now.
+	 */
+	protected synchronized SortedMap<Long, File> scanMessageFiles() {
+
+		SortedMap<Long, File> files = new TreeMap<Long, File>();
+		addMessageFiles(newDirectory, files);
+		addMessageFiles(curDirectory, files);
+
+		messageFiles = new HashMap<Long, File>(files);
+		return files;
+	}
+
+	protected synchronized File getMessageFile(long uid)
+			throws FileNotFoundException {
+
+		Long key = Long.valueOf(uid);
+		File file = messageFiles.get(key);
+		if (file == null) {
+			// Another program may have moved the message, for example to cur/.
+			scanMessageFiles();
+			file = messageFiles.get(key);
+		}
+		if (file == null) {
+			throw new FileNotFoundException("Message " + uid
+					+ " is not in the Maildir.");
+		}
+		return file;
+	}
+
+	protected long getMessageFileSize(File file) {
+		long size = parseSize(file.getName());
+		return size == -1 ? file.length() : size;
+	}
+
+	protected synchronized boolean removeMessageFile(File file) {
+
+		messageFiles.remove(Long.valueOf(parseUid(getUniqueName(file.getName()))));
+		File trashed = markTrashed(file);
+		return trashed != null && trashed.delete();
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Moves a message to cur/ and adds the trashed flag. Returns the new
+	 * location, or null if the message could not be moved.
+	 */
+	private File markTrashed(File messageFile) {
+
+		String name = messageFile.getName();
+		String flags = getFlags(name);
+		if (flags.indexOf(FLAG_TRASHED) != -1) {
+			return messageFile;
+		}
+
+		// Maildir flags are kept in ASCII order.
+		char[] newFlags = (flags + FLAG_TRASHED).toCharArray();
+		Arrays.sort(newFlags);
+
+		int infoIndex = name.indexOf(INFO_SEPARATOR);
+		String baseName = infoIndex == -1 ? name : name.substring(0,
+				infoIndex);
+		File trashed = new File(curDirectory, baseName + INFO_SEPARATOR
+				+ new String(newFlags));
+
+		return messageFile.renameTo(trashed) ? trashed : null;
+	}
+
+	/**
+	 * Adds the messages in the directory by unique id. Two messages with
+	 * the same time from other programs are given consecutive ids.
+	 */
+	private void addMessageFiles(File directory, SortedMap<Long, File> files) {
+
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		for (int index = 0; index < names.length; index++) {
+			String name = names[index];
+			if (name.startsWith(".")) {
+				continue;
+			}
+			File file = new File(directory, name);
+			if (getFlags(name).indexOf(FLAG_TRASHED) != -1) {
+				file.delete();
+				continue;
+			}
+			long uid = parseUid(getUniqueName(name));
+			if (uid == -1) {
+				log.warn("Ignoring message " + name
+						+ " without a time in its name.");
+				continue;
+			}
+			while (files.containsKey(Long.valueOf(uid))) {
+				uid++;
+			}
+			files.put(Long.valueOf(uid), file);
+		}
+	}
+
+	/**
+	 * Returns the unique part of a file name, without the size and flags.
+	 */
+	private static String getUniqueName(String name) {
+
+		int end = name.length();
+		int sizeIndex = name.indexOf(',');
+		if (sizeIndex != -1) {
+			end = sizeIndex;
+		}
+		int infoIndex = name.indexOf(':');
+		if (infoIndex != -1 && infoIndex < end) {
+			end = infoIndex;
+		}
+		return name.substring(0, end);
+	}
+
+	/**
+	 * Returns the flags of a file name, or an empty string if it has none.
+	 */
+	private static String getFlags(String name) {
+
+		int infoIndex = name.indexOf(INFO_SEPARATOR);
+		if (infoIndex == -1) {
+			return "";
+		}
+		return name.substring(infoIndex + INFO_SEPARATOR.length());
+	}
+
+	/**
+	 * Returns the time to use for the next message in microseconds. It is
+	 * the unique id of the message, so it is larger than any unique id in
+	 * the index and than any time used by this process before.
+	 */
+	private long createTime() {
+
+		long time;
+		synchronized (MaildirMailboxStore.class) {
+			time = Math.max(System.currentTimeMillis() * 1000, lastTime + 1);
+			time = Math.max(time, getNextUid());
+			lastTime = time;
+		}
+		return time;
+	}
+
+	/**
+	 * Creates the unique name for a time: the time in seconds, the
+	 * microseconds, the process id and the host name.
+	 */
+	private static String createUniqueName(long time) {
+
+		String microseconds = String.valueOf(1000000 + time % 1000000)
+				.substring(1);
+		return (time / 1000000) + ".M" + microseconds + PROCESS_AND_HOST;
+	}
+
+	/**
+	 * Returns the unique id of a unique name: the time in microseconds for
+	 * names of the form &lt;seconds&gt;.M&lt;microseconds&gt;..., or only the
+	 * seconds for names written by other programs. Returns -1 if the name
+	 * does not start with a time.
+	 */
+	private static long parseUid(String uniqueName) {
+
+		int dotIndex = uniqueName.indexOf('.');
+		if (dotIndex <= 0) {
+			return -1;
+		}
+		try {
+			long uid = Long.parseLong(uniqueName.substring(0, dotIndex)) * 1000000;
+			if (uniqueName.startsWith("M", dotIndex + 1)) {
+				int end = dotIndex + 2;
+				while (end < uniqueName.length()
+						&& Character.isDigit(uniqueName.charAt(end))) {
+					end++;
+				}
+				if (end > dotIndex + 2) {
+					uid += Long.parseLong(uniqueName.substring(dotIndex + 2,
+							end)) % 1000000;
+				}
+			}
+			return uid;
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the size in a file name, or -1 if it has none.
+	 */
+	private static long parseSize(String name) {
+
+		int sizeIndex = name.indexOf(SIZE_FIELD);
+		if (sizeIndex == -1) {
+			return -1;
+		}
+		int start = sizeIndex + SIZE_FIELD.length();
+		int end = start;
+		while (end < name.length() && Character.isDigit(name.charAt(end))) {
+			end++;
+		}
+		try {
+			return Long.parseLong(name.substring(start, end));
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the "P&lt;pid&gt;.&lt;host&gt;" part of the unique names.
+	 */
+	private static String getProcessAndHost() {
+
+		String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+		int atIndex = runtimeName.indexOf('@');
+		String processId = atIndex == -1 ? "0" : runtimeName.substring(0,
+				atIndex);
+
+		String hostName;
+		try {
+			hostName = InetAddress.getLocalHost().getHostName();
+		} catch (IOException ioe) {
+			hostName = "localhost";
+		}
+		// '/' and ':' can not be used in the host name part.
+		hostName = hostName.replaceAll("/", "\\\\057").replaceAll(":",
+				"\\\\072");
+
+		return "P" + processId + "." + hostName;
+	}
+
+	/**
+	 * Returns the sub directory, creating it if it does not exist.
+	 */
+	private static File createDirectory(File root, String name) {
+
+		File directory = new File(root, name);
+		if (!directory.exists() && !directory.mkdirs()) {
+			log.error("Unable to create Maildir directory: "
+					+ directory.getAbsolutePath());
+			throw new RuntimeException("Unable to create Maildir directory: "
+					+ directory.getAbsolutePath());
+		}
+		return directory;
+	}
+}
@@ -0,0 +1,516 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * Keeps the messages of a mailbox in memory, for tests that embed the server
+ * and do not want it to touch the disk. The messages are lost when the store
+ * is dropped.
+ * <p>
+ * The data of the messages is held outside the Java heap, in chunks of a
+ * SlabAllocator, so keeping many messages does not lengthen garbage
+ * collection. The heap only holds a small entry per message with the
+ * handles of its chunks. Readers copy a chunk at a time out of the slabs
+ * under the lock of the store, so a deleted message can not be read after
+ * its chunks were reused.
+ * <p>
+ * find reads the headers of the messages, as there is no index, and the
+ * words of the messages are not indexed.
+ */
+public class MemoryMailboxStore implements MailboxStore {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** The memory the message data is stored in */
+	private SlabAllocator allocator = new SlabAllocator();
+
+	/** The stored messages by unique id, in delivery order */
+	private Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+
+	/** The unique id of the last message delivered */
+	private long lastUid = 0;
+
+	/** Changed by every delivery and deletion */
+	private long generation = 0;
+
+	/** The total size of the stored messages */
+	private long size = 0;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public synchronized Message deliver(byte[] prefix, MessageSource source)
+			throws IOException {
+
+		SlabChannel channel = new SlabChannel();
+		Entry entry;
+		try {
+			channel.write(ByteBuffer.wrap(prefix));
+			source.transferData(channel);
+			entry = channel.finish();
+		} catch (IOException ioe) {
+			channel.release();
+			throw ioe;
+		} catch (OutOfMemoryError oome) {
+			channel.release();
+			throw new IOException("Unable to allocate memory for the message: "
+					+ oome.getMessage());
+		}
+		entry.headerLength = findHeaderLength(entry);
+
+		long uid = ++lastUid;
+		entries.put(Long.valueOf(uid), entry);
+		size += entry.length;
+		generation++;
+		return createMessage(uid, entry.length);
+	}
+
+	public synchronized Maildrop getMaildrop(Maildrop previous) {
+
+		if (previous != null && previous.getGeneration() == generation) {
+			return previous;
+		}
+		long[] uids = new long[entries.size()];
+		long[] sizes = new long[uids.length];
+		int index = 0;
+		for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+			uids[index] = entry.getKey().longValue();
+			sizes[index] = entry.getValue().length;
+			index++;
+		}
+		return new Maildrop(generation, uids, sizes);
+	}
+
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	public synchronized boolean contains(Message message) {
+		return entries.containsKey(Long.valueOf(getUid(message)));
+	}
+
+	public synchronized Message[] find(String headerName, String value) {
+
+		String name = headerName.trim().toLowerCase();
+		String key = HeaderIndex.getKey(name, value);
+		Set<String> names = Collections.singleton(name);
+		List<Message> messages = new ArrayList<Message>();
+		for (Map.Entry<Long, Entry> mapEntry : entries.entrySet()) {
+			Entry entry = mapEntry.getValue();
+			String header = new String(copy(entry, entry.headerLength),
+					CHARSET);
+			if (HeaderIndex.getKeys(header, names).contains(key)) {
+				messages.add(createMessage(mapEntry.getKey().longValue(),
+						entry.length));
+			}
+		}
+		return messages.toArray(new Message[messages.size()]);
+	}
+
+	public Message[] search(String text, boolean substring) {
+		return null;
+	}
+
+	/**
+	 * The messages are held in memory, so their headers are read instead.
+	 */
+	public String[][] getListedHeaders(Message[] messages) {
+		return new String[messages.length][];
+	}
+
+	public synchronized int getMessageCount() {
+		return entries.size();
+	}
+
+	public synchronized long getMessagesSize() {
+		return size;
+	}
+
+	/**
+	 * The memory reserved outside the heap for the messages, in bytes. It
+	 * does not shrink when messages are deleted, their memory is reused.
+	 */
+	public synchronized long getReservedBytes() {
+		return allocator.getReservedBytes();
+	}
+
+	public InputStream openMessage(Message message) throws IOException {
+		return new SlabInputStream(getUid(message), getEntry(message));
+	}
+
+	public long transferMessage(Message message, WritableByteChannel target)
+			throws IOException {
+		Entry entry = getEntry(message);
+		return transfer(getUid(message), entry, entry.length, target);
+	}
+
+	public long transferTop(Message message, int lines,
+			WritableByteChannel target) throws IOException {
+
+		Entry entry = getEntry(message);
+		int length;
+		synchronized (this) {
+			length = entry.headerLength;
+			int chunk = -1;
+			ByteBuffer buffer = null;
+			for (int line = 0; line < lines && length < entry.length; line++) {
+				byte value;
+				do {
+					if (chunk != length / entry.chunkSize) {
+						chunk = length / entry.chunkSize;
+						buffer = allocator.getBuffer(entry.chunks[chunk]);
+					}
+					value = buffer.get(length % entry.chunkSize);
+					length++;
+				} while (value != '\n' && length < entry.length);
+			}
+		}
+		return transfer(getUid(message), entry, length, target);
+	}
+
+	public synchronized void delete(Message[] messages) {
+
+		for (int index = 0; index < messages.length; index++) {
+			Entry entry = entries.remove(Long.valueOf(getUid(messages[index])));
+			if (entry != null) {
+				free(entry.chunks, entry.chunks.length);
+				size -= entry.length;
+				generation++;
+			}
+		}
+	}
+
+	public synchronized long getNextUid() {
+		return lastUid + 1;
+	}
+
+	public synchronized void setNextUid(long uid) {
+		lastUid = Math.max(lastUid, uid - 1);
+	}
+
+	/**
+	 * Drops the messages. The slabs are released with the store.
+	 */
+	public synchronized void close() {
+		entries.clear();
+		size = 0;
+		generation++;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private synchronized Entry getEntry(Message message) throws IOException {
+
+		Entry entry = entries.get(Long.valueOf(getUid(message)));
+		if (entry == null) {
+			throw new IOException("Message " + message.getUniqueId()
+					+ " is not stored.");
+		}
+		return entry;
+	}
+
+	/**
+	 * Copies a chunk of the message to the buffer, if the message is still
+	 * stored, or as much of it as the buffer holds.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	private synchronized int copyChunk(long uid, Entry entry, int chunk,
+			byte[] target) throws IOException {
+
+		if (entries.get(Long.valueOf(uid)) != entry) {
+			throw new IOException("Message " + uid
+					+ " was deleted while it was read.");
+		}
+		int length = Math.min(Math.min(entry.chunkSize, target.length),
+				entry.length - chunk * entry.chunkSize);
+		allocator.getBuffer(entry.chunks[chunk]).get(target, 0, length);
+		return length;
+	}
+
+	/**
+	 * Writes the first length bytes of the message to the channel, a chunk
+	 * at a time.
+	 */
+	private long transfer(long uid, Entry entry, int length,
+			WritableByteChannel target) throws IOException {
+
+		byte[] data = new byte[Math.min(entry.chunkSize, Math.max(length, 1))];
+		long written = 0;
+		for (int chunk = 0; written < length; chunk++) {
+			int count = Math.min(copyChunk(uid, entry, chunk, data),
+					(int) (length - written));
+			ByteBuffer source = ByteBuffer.wrap(data, 0, count);
+			while (source.hasRemaining()) {
+				target.write(source);
+			}
+			written += count;
+		}
+		return written;
+	}
+
+	/**
+	 * Copies the first length bytes of a message to the heap. Used with the
+	 * lock held.
+	 */
+	private byte[] copy(Entry entry, int length) {
+
+		byte[] data = new byte[length];
+		for (int offset = 0; offset < length; offset += entry.chunkSize) {
+			allocator.getBuffer(entry.chunks[offset / entry.chunkSize]).get(
+					data, offset, Math.min(entry.chunkSize, length - offset));
+		}
+		return data;
+	}
+
+	private void free(long[] chunks, int count) {
+		for (int index = 0; index < count; index++) {
+			allocator.free(chunks[index]);
+		}
+	}
+
+	/**
+	 * Returns the length of the header including the empty line that ends
+	 * it, or the length of the message if it has no body.
+	 */
+	private int findHeaderLength(Entry entry) {
+
+		int matched = 0;
+		ByteBuffer buffer = null;
+		for (int index = 0; index < entry.length; index++) {
+			if (index % entry.chunkSize == 0) {
+				buffer = allocator.getBuffer(entry.chunks[index
+						/ entry.chunkSize]);
+			}
+			byte value = buffer.get(index % entry.chunkSize);
+			if (value == HEADER_END[matched]) {
+				matched++;
+				if (matched == HEADER_END.length) {
+					return index + 1;
+				}
+			} else {
+				matched = value == HEADER_END[0] ? 1 : 0;
+			}
+		}
+		return entry.length;
+	}
+
+	private static long getUid(Message message) {
+		return Long.parseLong(message.getUniqueId());
+	}
+
+	private static Message createMessage(long uid, long size) {
+		Message message = new Message();
+		message.setUniqueId(String.valueOf(uid));
+		message.setMessageSize(size);
+		return message;
+	}
+
+	// ***************************************************************
+	// Stored Message
+	// ***************************************************************
+
+	/**
+	 * The chunks a message is stored in. All the chunks have the same size,
+	 * which is the smallest that holds the whole message in one chunk, or
+	 * the largest if none does.
+	 */
+	private static class Entry {
+
+		private long[] chunks;
+		private int chunkSize;
+		private int length;
+		private int headerLength;
+	}
+
+	/**
+	 * Writes a message into chunks of the largest size, and moves it to a
+	 * chunk of a smaller size once it is complete if it fits one. Used with
+	 * the lock of the store held.
+	 */
+	private class SlabChannel implements WritableByteChannel {
+
+		private long[] chunks = new long[4];
+		private int count = 0;
+		private ByteBuffer current = null;
+		private long length = 0;
+
+		public int write(ByteBuffer source) throws IOException {
+
+			int total = source.remaining();
+			while (source.hasRemaining()) {
+				if (current == null || !current.hasRemaining()) {
+					if (length + SlabAllocator.getMaximumChunkSize() > Integer.MAX_VALUE) {
+						throw new IOException("Message is too large.");
+					}
+					if (count == chunks.length) {
+						long[] grown = new long[count * 2];
+						System.arraycopy(chunks, 0, grown, 0, count);
+						chunks = grown;
+					}
+					chunks[count] = allocator.allocate(SlabAllocator
+							.getMaximumChunkSize());
+					current = allocator.getBuffer(chunks[count]);
+					count++;
+				}
+				int chunk = Math.min(source.remaining(), current.remaining());
+				ByteBuffer slice = source.duplicate();
+				slice.limit(slice.position() + chunk);
+				current.put(slice);
+				source.position(source.position() + chunk);
+				length += chunk;
+			}
+			return total;
+		}
+
+		public Entry finish() {
+
+			Entry entry = new Entry();
+			entry.length = (int) length;
+			if (count == 1) {
+				long small = allocator.allocate(Math.max(entry.length, 1));
+				if (allocator.getSize(small) < allocator.getSize(chunks[0])) {
+					ByteBuffer source = allocator.getBuffer(chunks[0]);
+					source.limit(entry.length);
+					allocator.getBuffer(small).put(source);
+					allocator.free(chunks[0]);
+					chunks[0] = small;
+				} else {
+					allocator.free(small);
+				}
+			}
+			entry.chunks = new long[count];
+			System.arraycopy(chunks, 0, entry.chunks, 0, count);
+			entry.chunkSize = count == 0 ? SlabAllocator.getMaximumChunkSize()
+					: allocator.getSize(entry.chunks[0]);
+			return entry;
+		}
+
+		public void release() {
+			free(chunks, count);
+			count = 0;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Reads a message a chunk at a time.
+	 */
+	private class SlabInputStream extends InputStream {
+
+		private long uid;
+		private Entry entry;
+		private byte[] data;
+		private int chunk = 0;
+		private int position = 0;
+		private int available = 0;
+
+		public SlabInputStream(long uid, Entry entry) {
+			this.uid = uid;
+			this.entry = entry;
+			this.data = new byte[Math.min(entry.chunkSize, Math.max(
+					entry.length, 1))];
+		}
+
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return data[position++] & 0xff;
+		}
+
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int count = Math.min(length, available - position);
+			System.arraycopy(data, position, buffer, offset, count);
+			position += count;
+			return count;
+		}
+
+		private boolean fill() throws IOException {
+			if (position < available) {
+				return true;
+			}
+			if (chunk * entry.chunkSize >= entry.length) {
+				return false;
+			}
+			available = copyChunk(uid, entry, chunk++, data);
+			position = 0;
+			return true;
+		}
+	}
+}
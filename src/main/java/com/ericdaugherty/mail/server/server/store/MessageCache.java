@@ -0,0 +1,469 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+
+/**
+ * Keeps the data of recently delivered and retrieved messages in memory
+ * outside the Java heap, so a message that is retrieved again is sent
+ * without reading it from disk.
+ * <p>
+ * The memory is a single direct buffer, allocated when the first message is
+ * cached and cut into chunks of 8 KB. A message takes as many chunks as it
+ * needs, and the least recently used messages are evicted to make room.
+ * Messages larger than a quarter of the cache are not cached. A cached
+ * message is pinned while it is being sent, so its chunks are not reused
+ * under the reader.
+ * <p>
+ * The size of the cache is set by the mailbox.cachesize property; 0
+ * disables it.
+ */
+public class MessageCache {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The size of the chunks the memory is cut into */
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(MessageCache.class);
+
+	/** Singleton Instance */
+	private static MessageCache instance = null;
+
+	/** The number of chunks, 0 if the cache is disabled */
+	private int chunkCount;
+
+	/** The chunks that hold no message */
+	private ArrayDeque<ByteBuffer> freeChunks = null;
+
+	/** The cached messages, least recently used first */
+	private LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(
+			16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	protected MessageCache(long size) {
+		chunkCount = (int) Math.min(size / CHUNK_SIZE, Integer.MAX_VALUE
+				/ CHUNK_SIZE);
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized MessageCache getMessageCache() {
+		if (instance == null) {
+			instance = new MessageCache(ConfigurationManager.getInstance()
+					.getMailboxCacheSizeBytes());
+		}
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return chunkCount > 0;
+	}
+
+	/**
+	 * Returns the cached message and pins it, or null if it is not cached.
+	 * A returned entry must be given back with {@link #release(Entry)}.
+	 */
+	public synchronized Entry get(MailboxStore store, long uid) {
+
+		if (chunkCount == 0) {
+			return null;
+		}
+		Entry entry = entries.get(new Key(store, uid));
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		entry.references++;
+		return entry;
+	}
+
+	/**
+	 * Unpins an entry returned by {@link #get(MailboxStore, long)}.
+	 */
+	public synchronized void release(Entry entry) {
+
+		entry.references--;
+		if (entry.references == 0 && entry.evicted) {
+			free(entry);
+		}
+	}
+
+	/**
+	 * Reads a message from the file into the cache, unless it is already
+	 * cached or too large. The file is read without holding the lock of the
+	 * cache.
+	 */
+	public void put(MailboxStore store, long uid, FileChannel channel,
+			long position, long length) throws IOException {
+
+		if (chunkCount == 0 || length > (long) chunkCount * CHUNK_SIZE / 4) {
+			return;
+		}
+		Key key = new Key(store, uid);
+		int needed = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		ByteBuffer[] chunks = new ByteBuffer[needed];
+		synchronized (this) {
+			if (entries.containsKey(key) || !reserve(needed)) {
+				return;
+			}
+			for (int index = 0; index < needed; index++) {
+				chunks[index] = freeChunks.poll();
+			}
+		}
+
+		Entry entry = new Entry(chunks, length);
+		try {
+			long read = 0;
+			for (int index = 0; index < needed; index++) {
+				ByteBuffer chunk = chunks[index];
+				chunk.clear();
+				chunk.limit((int) Math.min(CHUNK_SIZE, length - read));
+				while (chunk.hasRemaining()) {
+					if (channel.read(chunk, position + read + chunk.position()) <= 0) {
+						throw new IOException("Unexpected end of file after "
+								+ (read + chunk.position()) + " of " + length
+								+ " bytes.");
+					}
+				}
+				read += chunk.limit();
+			}
+		} catch (IOException ioe) {
+			synchronized (this) {
+				free(entry);
+			}
+			throw ioe;
+		}
+
+		synchronized (this) {
+			if (entries.containsKey(key)) {
+				free(entry);
+			} else {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Drops a message from the cache, after it was deleted.
+	 */
+	public synchronized void remove(MailboxStore store, long uid) {
+
+		Entry entry = entries.remove(new Key(store, uid));
+		if (entry != null) {
+			evict(entry);
+		}
+	}
+
+	/**
+	 * Drops all the messages of a store from the cache, after it was closed.
+	 */
+	public synchronized void removeAll(MailboxStore store) {
+
+		Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, Entry> entry = iterator.next();
+			if (entry.getKey().store == store) {
+				iterator.remove();
+				evict(entry.getValue());
+			}
+		}
+	}
+
+	/** The number of retrievals that were served from the cache. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** The number of retrievals of messages that were not cached. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** The number of messages in the cache. */
+	public synchronized int getMessageCount() {
+		return entries.size();
+	}
+
+	/** The memory (in bytes) taken by the messages in the cache. */
+	public synchronized long getUsedBytes() {
+		int free = freeChunks == null ? chunkCount : freeChunks.size();
+		return (long) (chunkCount - free) * CHUNK_SIZE;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Evicts the least recently used messages until the number of chunks is
+	 * free.
+	 *
+	 * @return false if not enough chunks could be freed.
+	 */
+	private boolean reserve(int needed) {
+
+		if (freeChunks == null) {
+			allocate();
+		}
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (freeChunks.size() < needed && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			eldest.remove();
+			evict(entry);
+		}
+		return freeChunks.size() >= needed;
+	}
+
+	private void allocate() {
+
+		ByteBuffer memory = ByteBuffer.allocateDirect(chunkCount * CHUNK_SIZE);
+		freeChunks = new ArrayDeque<ByteBuffer>(chunkCount);
+		for (int index = 0; index < chunkCount; index++) {
+			memory.limit((index + 1) * CHUNK_SIZE);
+			memory.position(index * CHUNK_SIZE);
+			freeChunks.add(memory.slice());
+		}
+		if (log.isInfoEnabled()) {
+			log.info("Allocated " + (chunkCount * CHUNK_SIZE / 1024)
+					+ " KB for the message cache.");
+		}
+	}
+
+	/**
+	 * Frees the chunks of an entry that was removed from the map, or marks
+	 * it to be freed when it is released.
+	 */
+	private void evict(Entry entry) {
+		if (entry.references == 0) {
+			free(entry);
+		} else {
+			entry.evicted = true;
+		}
+	}
+
+	private void free(Entry entry) {
+		for (int index = 0; index < entry.chunks.length; index++) {
+			freeChunks.add(entry.chunks[index]);
+		}
+	}
+
+	// ***************************************************************
+	// Cache Entry
+	// ***************************************************************
+
+	/**
+	 * Identifies a message by its store and unique id.
+	 */
+	private static class Key {
+
+		private MailboxStore store;
+		private long uid;
+
+		public Key(MailboxStore store, long uid) {
+			this.store = store;
+			this.uid = uid;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return store == key.store && uid == key.uid;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(store) * 31
+					+ (int) (uid ^ (uid >>> 32));
+		}
+	}
+
+	/**
+	 * The data of a cached message.
+	 */
+	public static class Entry {
+
+		private ByteBuffer[] chunks;
+		private long length;
+
+		/** The number of readers, guarded by the cache */
+		private int references = 0;
+
+		/** Set when the entry was evicted while it was pinned */
+		private boolean evicted = false;
+
+		private Entry(ByteBuffer[] chunks, long length) {
+			this.chunks = chunks;
+			this.length = length;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Writes a region of the message to the target.
+		 *
+		 * @return the number of bytes written.
+		 */
+		public long transfer(long position, long count,
+				WritableByteChannel target) throws IOException {
+
+			long written = 0;
+			while (written < count) {
+				long offset = position + written;
+				ByteBuffer chunk = chunks[(int) (offset / CHUNK_SIZE)]
+						.duplicate();
+				int start = (int) (offset % CHUNK_SIZE);
+				chunk.limit((int) Math.min(CHUNK_SIZE, start + count - written));
+				chunk.position(start);
+				while (chunk.hasRemaining()) {
+					written += target.write(chunk);
+				}
+			}
+			return written;
+		}
+
+		/**
+		 * Returns a read only channel over the message, so its layout can be
+		 * scanned.
+		 */
+		public SeekableByteChannel getChannel() {
+			return new EntryChannel(this);
+		}
+	}
+
+	/**
+	 * Reads the data of an entry.
+	 */
+	private static class EntryChannel implements SeekableByteChannel {
+
+		private Entry entry;
+		private long position = 0;
+		private boolean open = true;
+
+		public EntryChannel(Entry entry) {
+			this.entry = entry;
+		}
+
+		public int read(ByteBuffer target) {
+
+			if (position >= entry.length) {
+				return -1;
+			}
+			int read = 0;
+			while (target.hasRemaining() && position < entry.length) {
+				ByteBuffer chunk = entry.chunks[(int) (position / CHUNK_SIZE)]
+						.duplicate();
+				int start = (int) (position % CHUNK_SIZE);
+				int count = (int) Math.min(Math.min(CHUNK_SIZE - start,
+						entry.length - position), target.remaining());
+				chunk.limit(start + count);
+				chunk.position(start);
+				target.put(chunk);
+				position += count;
+				read += count;
+			}
+			return read;
+		}
+
+		public int write(ByteBuffer source) {
+			throw new NonWritableChannelException();
+		}
+
+		public long position() {
+			return position;
+		}
+
+		public SeekableByteChannel position(long newPosition) {
+			position = newPosition;
+			return this;
+		}
+
+		public long size() {
+			return entry.length;
+		}
+
+		public SeekableByteChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		public void close() {
+			open = false;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.StringTokenizer;
+
+/**
+ * Where the parts of a stored message start: the length of its header and
+ * the offsets of the ends of the first 1, 2, 4 ... 2^n body lines. The layout
+ * is recorded while a message is received, so the POP3 TOP command can find
+ * the bytes it sends without reading the message line by line.
+ * <p>
+ * All offsets are counted from the start of the message. A header length of
+ * 0 means the layout is unknown.
+ */
+public class MessageLayout {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The most line offsets recorded, for up to 2^13 body lines */
+	public static final int MAX_LINE_OFFSETS = 14;
+
+	/** Bytes read at a time while scanning a message */
+	private static final int SCAN_BUFFER = 4096;
+
+	/** The most bytes read at a time while skipping body lines */
+	private static final int MAX_READ = 64 * 1024;
+
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** The length of the header, including the empty line that ends it */
+	private int headerLength;
+
+	/** The offset of the end of the first 2^index body lines */
+	private int[] lineOffsets;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	public MessageLayout(int headerLength, int[] lineOffsets) {
+		this.headerLength = headerLength;
+		this.lineOffsets = lineOffsets == null ? new int[0] : lineOffsets;
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	public int getLineOffsetCount() {
+		return lineOffsets.length;
+	}
+
+	/**
+	 * Returns the offset of the end of the first 2^index body lines.
+	 */
+	public int getLineOffset(int index) {
+		return lineOffsets[index];
+	}
+
+	/**
+	 * Returns the layout of the message with the prefix written before it.
+	 */
+	public MessageLayout shift(int prefixLength) {
+
+		int[] shifted = new int[lineOffsets.length];
+		for (int index = 0; index < shifted.length; index++) {
+			shifted[index] = lineOffsets[index] + prefixLength;
+		}
+		return new MessageLayout(headerLength == 0 ? 0 : headerLength
+				+ prefixLength, shifted);
+	}
+
+	/**
+	 * Returns the layout as a comma separated list of numbers, the header
+	 * length followed by the line offsets.
+	 */
+	public String format() {
+
+		StringBuffer buffer = new StringBuffer();
+		buffer.append(headerLength);
+		for (int index = 0; index < lineOffsets.length; index++) {
+			buffer.append(',').append(lineOffsets[index]);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Parses a layout written by format(). Returns null for an empty string.
+	 */
+	public static MessageLayout parse(String value) {
+
+		if (value == null || value.length() == 0) {
+			return null;
+		}
+		StringTokenizer tokenizer = new StringTokenizer(value, ",");
+		int headerLength = Integer.parseInt(tokenizer.nextToken());
+		int[] lineOffsets = new int[Math.min(tokenizer.countTokens(),
+				MAX_LINE_OFFSETS)];
+		for (int index = 0; index < lineOffsets.length; index++) {
+			lineOffsets[index] = Integer.parseInt(tokenizer.nextToken());
+		}
+		return new MessageLayout(headerLength, lineOffsets);
+	}
+
+	/**
+	 * Returns the number of bytes of a stored message that make up its
+	 * header and first lines of its body.
+	 * <p>
+	 * With a known layout the header is not read at all, and at most the
+	 * body lines up to the next recorded offset are read, with a single
+	 * positioned read. Without one the message is scanned from its start.
+	 *
+	 * @param layout
+	 *            the layout of the message, or null if it is unknown.
+	 * @param channel
+	 *            the file or cache entry the message is stored in.
+	 * @param position
+	 *            the position of the message in the file.
+	 * @param length
+	 *            the length of the message.
+	 * @param lines
+	 *            the number of body lines.
+	 */
+	public static long getTopLength(MessageLayout layout,
+			SeekableByteChannel channel,
+			long position, long length, int lines) throws IOException {
+
+		long headerLength;
+		if (layout != null && layout.headerLength > 0) {
+			headerLength = layout.headerLength;
+		} else {
+			headerLength = findHeaderLength(channel, position, length);
+		}
+		if (lines <= 0 || headerLength >= length) {
+			return headerLength;
+		}
+
+		// Start from the largest recorded offset that does not pass the
+		// requested line, and stop at the next one if there is one.
+		long start = headerLength;
+		int skip = lines;
+		long end = length;
+		if (layout != null && layout.headerLength > 0) {
+			int count = layout.lineOffsets.length;
+			for (int index = 0; index < count; index++) {
+				int recorded = 1 << index;
+				if (recorded == lines) {
+					return layout.lineOffsets[index];
+				}
+				if (recorded < lines) {
+					start = layout.lineOffsets[index];
+					skip = lines - recorded;
+				} else {
+					end = layout.lineOffsets[index];
+					break;
+				}
+			}
+		}
+		return skipLines(channel, position, start, end, skip);
+	}
+
+	/**
+	 * Returns the length of the header of a stored message, including the
+	 * empty line that ends it, or the length of the message if it has no
+	 * body.
+	 */
+	static int findHeaderLength(SeekableByteChannel channel, long position,
+			long length) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER);
+		int matched = 0;
+		long read = 0;
+		while (read < length && read < Integer.MAX_VALUE) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - read));
+			int count = channel.position(position + read).read(buffer);
+			if (count <= 0) {
+				break;
+			}
+			for (int index = 0; index < count; index++) {
+				byte value = buffer.get(index);
+				if (value == HEADER_END[matched]) {
+					matched++;
+					if (matched == HEADER_END.length) {
+						return (int) (read + index + 1);
+					}
+				} else {
+					matched = value == HEADER_END[0] ? 1 : 0;
+				}
+			}
+			read += count;
+		}
+		return (int) Math.min(length, Integer.MAX_VALUE);
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Returns the offset after the given number of lines, counted from the
+	 * start offset, or the end offset if there are fewer lines. A range of up
+	 * to 64 KB is read at once.
+	 */
+	private static long skipLines(SeekableByteChannel channel, long position,
+			long start, long end, int lines) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(
+				Math.min(end - start, MAX_READ), 1));
+
+		long offset = start;
+		int remaining = lines;
+		while (offset < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+			int count = channel.position(position + offset).read(buffer);
+			if (count <= 0) {
+				break;
+			}
+			for (int index = 0; index < count; index++) {
+				if (buffer.get(index) == '\n' && --remaining == 0) {
+					return offset + index + 1;
+				}
+			}
+			offset += count;
+		}
+		return end;
+	}
+}
@@ -0,0 +1,811 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * Stores the messages of a mailbox packed one after another in a few large
+ * segment files, so a mailbox with many messages does not need a file per
+ * message.
+ * <p>
+ * A {@link MailboxIndex} holds the position and length of every message.
+ * The position combines the number of the segment with the offset of the
+ * message in it, so a message is read with a single seek. Deleting a message
+ * only flags it in the index; the space is reclaimed later by the
+ * {@link MailboxCompactor}, which copies the remaining messages to new
+ * segments and replaces the index.
+ * <p>
+ * The message data is forced to disk before its index record is written, so
+ * after a crash the index never refers to incomplete data. Segments the
+ * index does not refer to are removed when the store is opened.
+ */
+public class PackedMailboxStore implements MailboxStore {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The bits of a position that hold the offset within the segment */
+	private static final int SEGMENT_SHIFT = 40;
+
+	private static final long OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final String INDEX_NAME = "index";
+
+	private static final String COMPACTED_INDEX_NAME = "index.tmp";
+
+	private static final String HEADER_INDEX_NAME = "headers";
+
+	private static final String TEXT_INDEX_NAME = "text";
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory
+			.getLogger(PackedMailboxStore.class);
+
+	private File directory;
+
+	/** The size a segment may grow to before a new one is started */
+	private long segmentSize;
+
+	private MailboxIndex index;
+
+	/** The index of the header values, null if no headers are indexed */
+	private HeaderIndex headerIndex;
+
+	/** The index of the words of the messages, null if it is disabled */
+	private TextIndex textIndex;
+
+	/** The segment new messages are appended to, -1 if none is open */
+	private int currentSegment = -1;
+	private RandomAccessFile currentFile;
+
+	private int nextSegment = 0;
+
+	/** The bytes of all messages in the segments, deleted or not */
+	private long totalBytes = 0;
+
+	private boolean compacting = false;
+
+	private boolean closed = false;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Opens the store in the directory, creating it if needed.
+	 *
+	 * @param segmentSize
+	 *            the size in bytes a segment may grow to.
+	 * @param indexedHeaders
+	 *            the headers to index on delivery.
+	 * @param indexText
+	 *            true if the words of the messages are indexed on delivery.
+	 */
+	public PackedMailboxStore(File directory, long segmentSize,
+			String[] indexedHeaders, boolean indexText) throws IOException {
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create mailbox directory "
+					+ directory.getAbsolutePath());
+		}
+
+		// A compaction that did not finish leaves its index behind.
+		MailboxIndex.delete(new File(directory, COMPACTED_INDEX_NAME));
+
+		index = new MailboxIndex(new File(directory, INDEX_NAME));
+		for (int record = 0; record < index.getRecordCount(); record++) {
+			totalBytes += index.getLength(record);
+		}
+
+		removeUnreferencedSegments();
+
+		if (indexedHeaders.length > 0) {
+			headerIndex = new HeaderIndex(new File(directory,
+					HEADER_INDEX_NAME), indexedHeaders);
+			indexNewHeaders();
+		}
+		if (indexText) {
+			textIndex = new TextIndex(new File(directory, TEXT_INDEX_NAME),
+					this);
+			indexNewText();
+		}
+
+		MailboxCompactor.getMailboxCompactor().register(this);
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public synchronized Message deliver(byte[] prefix, MessageSource source)
+			throws IOException {
+
+		FileChannel channel = getCurrentChannel();
+		long start = channel.size();
+		long length;
+		try {
+			channel.position(start);
+			ByteBuffer buffer = ByteBuffer.wrap(prefix);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			length = prefix.length + source.transferData(channel);
+			channel.force(false);
+		} catch (IOException ioe) {
+			// Drop the partially written message.
+			channel.truncate(start);
+			throw ioe;
+		}
+
+		MessageLayout layout = source.getLayout();
+		if (layout == null) {
+			layout = new MessageLayout(MessageLayout.findHeaderLength(channel,
+					start, length), null);
+		} else {
+			layout = layout.shift(prefix.length);
+		}
+		long uid = index.getNextUid();
+		index.append(uid, getPosition(currentSegment, start), length, layout,
+				0);
+		index.sync();
+		totalBytes += length;
+
+		if (headerIndex != null) {
+			try {
+				headerIndex.add(uid, channel, start,
+						layout.getHeaderLength(), index);
+				headerIndex.sync();
+			} catch (IOException ioe) {
+				log.warn("Unable to index the headers of message " + uid
+						+ ": " + ioe);
+			}
+		}
+
+		if (textIndex != null) {
+			try {
+				textIndex.add(uid, channel, start, length);
+			} catch (IOException ioe) {
+				log.warn("Unable to index the text of message " + uid + ": "
+						+ ioe);
+			}
+		}
+
+		try {
+			MessageCache.getMessageCache().put(this, uid, channel, start,
+					length);
+		} catch (IOException ioe) {
+			log.debug("Unable to cache message " + uid + ": " + ioe);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Delivered message " + uid + " to segment "
+					+ currentSegment + " at " + start);
+		}
+
+		return createMessage(index.getRecordCount() - 1);
+	}
+
+	public synchronized Maildrop getMaildrop(Maildrop previous) {
+
+		return index.list(previous);
+	}
+
+	public synchronized long getGeneration() {
+		return index.getGeneration();
+	}
+
+	public synchronized boolean contains(Message message) {
+		int record = index.find(Long.parseLong(message.getUniqueId()));
+		return record != -1 && !index.isDeleted(record);
+	}
+
+	public synchronized Message[] find(String headerName, String value) {
+		if (headerIndex == null || !headerIndex.isIndexed(headerName)) {
+			return null;
+		}
+		return headerIndex.find(headerName, value, index);
+	}
+
+	public synchronized String[][] getListedHeaders(Message[] messages) {
+
+		String[][] listed = new String[messages.length][];
+		if (headerIndex == null) {
+			return listed;
+		}
+		for (int index = 0; index < messages.length; index++) {
+			long uid = Long.parseLong(messages[index].getUniqueId());
+			try {
+				listed[index] = headerIndex.getListedValues(uid);
+			} catch (IOException ioe) {
+				log.warn("Unable to read the listed headers of message " + uid
+						+ ": " + ioe);
+			}
+		}
+		return listed;
+	}
+
+	public Message[] search(String text, boolean substring) {
+		if (textIndex == null) {
+			return null;
+		}
+		long[] uids = textIndex.search(text, substring);
+		synchronized (this) {
+			return index.getMessages(uids);
+		}
+	}
+
+	public synchronized int getMessageCount() {
+		return index.getLiveCount();
+	}
+
+	public synchronized long getMessagesSize() {
+		return index.getLiveBytes();
+	}
+
+	public synchronized InputStream openMessage(Message message)
+			throws IOException {
+
+		int record = findRecord(message);
+		long position = index.getOffset(record);
+		RandomAccessFile file = new RandomAccessFile(
+				getSegmentFile(getSegment(position)), "r");
+		return new RegionInputStream(file, position & OFFSET_MASK,
+				index.getLength(record));
+	}
+
+	public long transferMessage(Message message, WritableByteChannel target)
+			throws IOException {
+		return transfer(message, -1, target);
+	}
+
+	public long transferTop(Message message, int lines,
+			WritableByteChannel target) throws IOException {
+		return transfer(message, lines, target);
+	}
+
+	public synchronized void delete(Message[] messages) {
+
+		for (int index = 0; index < messages.length; index++) {
+			int record = this.index.find(Long.parseLong(messages[index]
+					.getUniqueId()));
+			if (record != -1) {
+				this.index.setFlags(record, this.index.getFlags(record)
+						| MailboxIndex.FLAG_DELETED);
+				MessageCache.getMessageCache().remove(this,
+						this.index.getUid(record));
+			}
+		}
+		index.sync();
+		if (textIndex != null) {
+			textIndex.scheduleMerge();
+		}
+	}
+
+	public synchronized long getNextUid() {
+		return index.getNextUid();
+	}
+
+	public synchronized void setNextUid(long uid) throws IOException {
+		index.reserve(uid);
+		index.sync();
+	}
+
+	/**
+	 * Waits for a compaction to finish and closes the segment and the
+	 * indexes.
+	 */
+	public void close() {
+
+		MailboxCompactor.getMailboxCompactor().unregister(this);
+		synchronized (this) {
+			while (compacting) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			closed = true;
+			closeCurrentSegment();
+			try {
+				index.close();
+				if (headerIndex != null) {
+					headerIndex.close();
+				}
+			} catch (IOException ioe) {
+				log.warn("Unable to close the indexes of the mailbox "
+						+ directory.getAbsolutePath() + ": " + ioe);
+			}
+			if (textIndex != null) {
+				textIndex.close();
+			}
+		}
+		MessageCache.getMessageCache().removeAll(this);
+	}
+
+	/**
+	 * Returns true if enough space is taken by deleted messages to be worth
+	 * compacting: half of the store, or a whole segment.
+	 */
+	public synchronized boolean needsCompaction() {
+		long deletedBytes = totalBytes - index.getLiveBytes();
+		return !closed && !compacting && deletedBytes > 0
+				&& (deletedBytes * 2 >= totalBytes || deletedBytes >= segmentSize);
+	}
+
+	/**
+	 * Copies the messages that are not deleted to new segments, replaces the
+	 * index and removes the old segments.
+	 * <p>
+	 * The copying is done without holding the lock of the store, so
+	 * messages can be delivered, read and deleted meanwhile. New messages
+	 * go to a fresh segment that is kept as is, and messages deleted during
+	 * the copy are flagged in the new index.
+	 */
+	public void compact() throws IOException {
+
+		int copied;
+		MailboxIndex oldIndex;
+		synchronized (this) {
+			if (compacting || closed) {
+				return;
+			}
+			compacting = true;
+			// New messages go to a segment of their own from now on.
+			closeCurrentSegment();
+			copied = index.getRecordCount();
+			oldIndex = index;
+		}
+
+		File compactedFile = new File(directory, COMPACTED_INDEX_NAME);
+		MailboxIndex compacted = null;
+		RandomAccessFile target = null;
+		try {
+			compacted = new MailboxIndex(compactedFile);
+			int targetSegment = -1;
+			long compactedBytes = 0;
+
+			for (int record = 0; record < copied; record++) {
+				long uid;
+				long position;
+				long length;
+				MessageLayout layout;
+				synchronized (this) {
+					if (oldIndex.isDeleted(record)) {
+						continue;
+					}
+					uid = oldIndex.getUid(record);
+					position = oldIndex.getOffset(record);
+					length = oldIndex.getLength(record);
+					layout = oldIndex.getLayout(record);
+				}
+
+				if (target == null || target.length() >= segmentSize) {
+					if (target != null) {
+						target.getChannel().force(false);
+						target.close();
+					}
+					synchronized (this) {
+						targetSegment = nextSegment++;
+					}
+					target = new RandomAccessFile(
+							getSegmentFile(targetSegment), "rw");
+				}
+
+				long start = target.length();
+				copy(getSegment(position), position & OFFSET_MASK, length,
+						target.getChannel(), start);
+				compacted.append(uid, getPosition(targetSegment, start),
+						length, layout, 0);
+				compactedBytes += length;
+			}
+			if (target != null) {
+				target.getChannel().force(false);
+				target.close();
+				target = null;
+			}
+
+			synchronized (this) {
+				// Carry over what changed while copying.
+				for (int record = 0; record < compacted.getRecordCount(); record++) {
+					int old = oldIndex.find(compacted.getUid(record));
+					if (oldIndex.isDeleted(old)) {
+						compacted.setFlags(record, oldIndex.getFlags(old));
+					}
+				}
+				for (int record = copied; record < oldIndex.getRecordCount(); record++) {
+					compacted.append(oldIndex.getUid(record),
+							oldIndex.getOffset(record),
+							oldIndex.getLength(record),
+							oldIndex.getLayout(record),
+							oldIndex.getFlags(record));
+					compactedBytes += oldIndex.getLength(record);
+				}
+				// Deleted last records are not copied, keep their unique ids.
+				compacted.reserve(oldIndex.getNextUid());
+				compacted.setGeneration(oldIndex.getGeneration() + 1);
+				compacted.sync();
+				compacted.close();
+				compacted = null;
+
+				File indexFile = oldIndex.getIndexFile();
+				if (!MailboxIndex.rename(compactedFile, indexFile)) {
+					throw new IOException("Unable to replace the index "
+							+ indexFile.getAbsolutePath());
+				}
+				oldIndex.close();
+				index = new MailboxIndex(indexFile);
+				totalBytes = compactedBytes;
+
+				// Readers that already opened an old segment keep reading it.
+				removeUnreferencedSegments();
+			}
+
+			if (log.isInfoEnabled()) {
+				log.info("Compacted mailbox " + directory.getAbsolutePath()
+						+ " to " + compactedBytes + " bytes.");
+			}
+		} finally {
+			if (target != null) {
+				target.close();
+			}
+			if (compacted != null) {
+				compacted.close();
+				MailboxIndex.delete(compactedFile);
+			}
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private Message createMessage(int record) {
+
+		Message message = new Message();
+		message.setUniqueId(String.valueOf(index.getUid(record)));
+		message.setMessageSize(index.getLength(record));
+		return message;
+	}
+
+	/**
+	 * Returns the channel of the segment new messages are appended to,
+	 * starting a new segment when the current one is full.
+	 */
+	private FileChannel getCurrentChannel() throws IOException {
+
+		if (currentFile != null && currentFile.length() >= segmentSize) {
+			closeCurrentSegment();
+		}
+		if (currentFile == null) {
+			currentSegment = nextSegment++;
+			currentFile = new RandomAccessFile(getSegmentFile(currentSegment),
+					"rw");
+		}
+		return currentFile.getChannel();
+	}
+
+	private void closeCurrentSegment() {
+
+		if (currentFile != null) {
+			try {
+				currentFile.close();
+			} catch (IOException ioe) {
+				log.warn("Unable to close segment " + currentSegment + ": "
+						+ ioe);
+			}
+			currentFile = null;
+			currentSegment = -1;
+		}
+	}
+
+	/**
+	 * Deletes the segment files the index does not refer to, and finds the
+	 * number to use for the next segment.
+	 */
+	private void removeUnreferencedSegments() {
+
+		Set<Integer> referenced = new HashSet<Integer>();
+		for (int record = 0; record < index.getRecordCount(); record++) {
+			referenced.add(Integer.valueOf(getSegment(index.getOffset(record))));
+		}
+		if (currentSegment != -1) {
+			referenced.add(Integer.valueOf(currentSegment));
+		}
+
+		String[] names = directory.list();
+		for (int index = 0; index < names.length; index++) {
+			if (!names[index].endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			int segment;
+			try {
+				segment = Integer.parseInt(names[index].substring(0,
+						names[index].length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException nfe) {
+				continue;
+			}
+			nextSegment = Math.max(nextSegment, segment + 1);
+			if (!referenced.contains(Integer.valueOf(segment))
+					&& !new File(directory, names[index]).delete()) {
+				log.warn("Unable to delete segment " + names[index]);
+			}
+		}
+	}
+
+	private void copy(int segment, long offset, long length,
+			FileChannel target, long targetOffset) throws IOException {
+
+		RandomAccessFile source = new RandomAccessFile(
+				getSegmentFile(segment), "r");
+		try {
+			target.position(targetOffset);
+			FileTransfer.transfer(source.getChannel(), offset, length, target);
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Writes a message, or only its header and first lines if the number of
+	 * lines is not negative, to the channel.
+	 */
+	private long transfer(Message message, int lines,
+			WritableByteChannel target) throws IOException {
+
+		MessageCache cache = MessageCache.getMessageCache();
+		MessageCache.Entry entry;
+		RandomAccessFile file = null;
+		long uid;
+		long position;
+		long length;
+		MessageLayout layout;
+		// Open the segment while holding the lock, so a compaction can not
+		// remove it in between. The transfer itself needs no lock.
+		synchronized (this) {
+			int record = findRecord(message);
+			uid = index.getUid(record);
+			position = index.getOffset(record) & OFFSET_MASK;
+			length = index.getLength(record);
+			layout = index.getLayout(record);
+			entry = cache.get(this, uid);
+			if (entry == null) {
+				file = new RandomAccessFile(getSegmentFile(getSegment(index
+						.getOffset(record))), "r");
+			}
+		}
+
+		if (entry != null) {
+			try {
+				if (lines >= 0) {
+					length = MessageLayout.getTopLength(layout,
+							entry.getChannel(), 0, length, lines);
+				}
+				return entry.transfer(0, length, target);
+			} finally {
+				cache.release(entry);
+			}
+		}
+
+		try {
+			FileChannel channel = file.getChannel();
+			if (lines >= 0) {
+				length = MessageLayout.getTopLength(layout, channel, position,
+						length, lines);
+			} else {
+				cache.put(this, uid, channel, position, length);
+			}
+			return FileTransfer.transfer(channel, position, length, target);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Adds the messages delivered since the header index was last updated
+	 * to it.
+	 */
+	private void indexNewHeaders() throws IOException {
+
+		long lastUid = headerIndex.getLastUid();
+		int count = index.getRecordCount();
+		int added = 0;
+		for (int record = 0; record < count; record++) {
+			if (index.getUid(record) <= lastUid || index.isDeleted(record)) {
+				continue;
+			}
+			long position = index.getOffset(record);
+			RandomAccessFile file = new RandomAccessFile(
+					getSegmentFile(getSegment(position)), "r");
+			try {
+				headerIndex.add(index.getUid(record), file.getChannel(),
+						position & OFFSET_MASK, index.getHeaderLength(record),
+						index);
+				added++;
+			} finally {
+				file.close();
+			}
+		}
+		headerIndex.sync();
+		if (added > 0 && log.isInfoEnabled()) {
+			log.info("Added " + added + " messages in "
+					+ directory.getAbsolutePath() + " to the header index.");
+		}
+	}
+
+	/**
+	 * Adds the messages delivered since the text index was last written to
+	 * it.
+	 */
+	private void indexNewText() throws IOException {
+
+		long lastUid = textIndex.getLastUid();
+		int count = index.getRecordCount();
+		int added = 0;
+		for (int record = 0; record < count; record++) {
+			if (index.getUid(record) <= lastUid || index.isDeleted(record)) {
+				continue;
+			}
+			long position = index.getOffset(record);
+			RandomAccessFile file = new RandomAccessFile(
+					getSegmentFile(getSegment(position)), "r");
+			try {
+				textIndex.add(index.getUid(record), file.getChannel(),
+						position & OFFSET_MASK, index.getLength(record));
+				added++;
+			} finally {
+				file.close();
+			}
+		}
+		if (added > 0 && log.isInfoEnabled()) {
+			log.info("Added " + added + " messages in "
+					+ directory.getAbsolutePath() + " to the text index.");
+		}
+	}
+
+	/**
+	 * Returns the record of a message that is not deleted.
+	 */
+	private int findRecord(Message message) throws FileNotFoundException {
+
+		int record = index.find(Long.parseLong(message.getUniqueId()));
+		if (record == -1 || index.isDeleted(record)) {
+			throw new FileNotFoundException("Message "
+					+ message.getUniqueId() + " is no longer in the mailbox.");
+		}
+		return record;
+	}
+
+	private File getSegmentFile(int segment) {
+		String name = String.valueOf(segment);
+		while (name.length() < 8) {
+			name = "0" + name;
+		}
+		return new File(directory, name + SEGMENT_SUFFIX);
+	}
+
+	private static long getPosition(int segment, long offset) {
+		return ((long) segment << SEGMENT_SHIFT) | offset;
+	}
+
+	private static int getSegment(long position) {
+		return (int) (position >>> SEGMENT_SHIFT);
+	}
+
+	// ***************************************************************
+	// Region Stream
+	// ***************************************************************
+
+	/**
+	 * Reads one message from a segment file and closes the file at the end.
+	 */
+	private static class RegionInputStream extends InputStream {
+
+		private RandomAccessFile file;
+		private long remaining;
+
+		public RegionInputStream(RandomAccessFile file, long offset,
+				long length) throws IOException {
+			this.file = file;
+			this.remaining = length;
+			file.seek(offset);
+		}
+
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int value = file.read();
+			if (value != -1) {
+				remaining--;
+			}
+			return value;
+		}
+
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = file.read(buffer, offset,
+					(int) Math.min(length, remaining));
+			if (count > 0) {
+				remaining -= count;
+			}
+			return count;
+		}
+
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
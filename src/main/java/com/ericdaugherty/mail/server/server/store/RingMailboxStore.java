@@ -0,0 +1,482 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+
+/**
+ * Keeps the most recent messages of a mailbox in a buffer of fixed size, for
+ * load tests that need to see what was received but not to keep it. The
+ * messages are written one after the other around the buffer, and the
+ * oldest ones are dropped to make room for new ones, so the memory used does
+ * not grow with the load.
+ * <p>
+ * Both the buffer and the table of messages are allocated up front. A
+ * message is dropped when its bytes or its table slot are needed, whether it
+ * was deleted or not. Deleted messages are only flagged, as their space is
+ * reused in order anyway.
+ * <p>
+ * Messages are copied out of the buffer under the lock of the store before
+ * they are written to a client, so a slow client does not hold up delivery.
+ */
+public class RingMailboxStore implements MailboxStore {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(RingMailboxStore.class);
+
+	/** The message data */
+	private byte[] buffer;
+
+	/** The position the next message is written at */
+	private int head = 0;
+
+	/** The bytes taken by the messages in the table, deleted or not */
+	private long used = 0;
+
+	/** The table of messages, used as a queue from first for count slots */
+	private long[] uids;
+	private int[] offsets;
+	private int[] lengths;
+	private int[] headerLengths;
+	private boolean[] deleted;
+
+	private int first = 0;
+	private int count = 0;
+
+	/** The unique id of the last message delivered */
+	private long lastUid = 0;
+
+	/** Changed by every delivery, deletion and drop */
+	private long generation = 0;
+
+	/** The number and total size of the messages not deleted */
+	private int liveCount = 0;
+	private long liveBytes = 0;
+
+	/** The number of messages dropped to make room */
+	private long dropped = 0;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Allocates the store.
+	 *
+	 * @param size
+	 *            the size of the buffer in bytes.
+	 * @param messages
+	 *            the maximum number of messages held.
+	 */
+	public RingMailboxStore(int size, int messages) {
+		buffer = new byte[size];
+		uids = new long[messages];
+		offsets = new int[messages];
+		lengths = new int[messages];
+		headerLengths = new int[messages];
+		deleted = new boolean[messages];
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Writes the message after the last one, dropping the oldest messages
+	 * as their space is reached.
+	 *
+	 * @throws IOException
+	 *             if the message is larger than the buffer, which is only
+	 *             known once all the other messages were dropped.
+	 */
+	public synchronized Message deliver(byte[] prefix, MessageSource source)
+			throws IOException {
+
+		if (count == uids.length) {
+			drop();
+		}
+
+		RingChannel channel = new RingChannel();
+		try {
+			channel.write(ByteBuffer.wrap(prefix));
+			source.transferData(channel);
+		} catch (IOException ioe) {
+			// Forget the part written, the space it took is free again.
+			head = channel.start;
+			used -= channel.written;
+			throw ioe;
+		}
+
+		int slot = (first + count) % uids.length;
+		long uid = ++lastUid;
+		int length = (int) channel.written;
+		uids[slot] = uid;
+		offsets[slot] = channel.start;
+		lengths[slot] = length;
+		headerLengths[slot] = findHeaderLength(channel.start, length);
+		deleted[slot] = false;
+		count++;
+
+		liveCount++;
+		liveBytes += length;
+		generation++;
+		return createMessage(uid, length);
+	}
+
+	public synchronized Maildrop getMaildrop(Maildrop previous) {
+
+		if (previous != null && previous.getGeneration() == generation) {
+			return previous;
+		}
+		long[] liveUids = new long[liveCount];
+		long[] sizes = new long[liveCount];
+		int live = 0;
+		for (int index = 0; index < count; index++) {
+			int slot = (first + index) % uids.length;
+			if (!deleted[slot]) {
+				liveUids[live] = uids[slot];
+				sizes[live] = lengths[slot];
+				live++;
+			}
+		}
+		return new Maildrop(generation, liveUids, sizes);
+	}
+
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	public synchronized boolean contains(Message message) {
+		return findSlot(getUid(message)) != -1;
+	}
+
+	/**
+	 * Reads the header of every message held, as there is no index.
+	 */
+	public synchronized Message[] find(String headerName, String value) {
+
+		String name = headerName.trim().toLowerCase();
+		String key = HeaderIndex.getKey(name, value);
+		Set<String> names = Collections.singleton(name);
+		List<Message> messages = new ArrayList<Message>();
+		for (int index = 0; index < count; index++) {
+			int slot = (first + index) % uids.length;
+			if (deleted[slot]) {
+				continue;
+			}
+			String header = new String(copy(offsets[slot],
+					headerLengths[slot]), CHARSET);
+			if (HeaderIndex.getKeys(header, names).contains(key)) {
+				messages.add(createMessage(uids[slot], lengths[slot]));
+			}
+		}
+		return messages.toArray(new Message[messages.size()]);
+	}
+
+	public Message[] search(String text, boolean substring) {
+		return null;
+	}
+
+	/**
+	 * The messages are held in memory, so their headers are read instead.
+	 */
+	public String[][] getListedHeaders(Message[] messages) {
+		return new String[messages.length][];
+	}
+
+	public synchronized int getMessageCount() {
+		return liveCount;
+	}
+
+	public synchronized long getMessagesSize() {
+		return liveBytes;
+	}
+
+	/**
+	 * The number of messages dropped to make room for new ones since the
+	 * store was created.
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	public InputStream openMessage(Message message) throws IOException {
+		return new ByteArrayInputStream(read(message, -1));
+	}
+
+	public long transferMessage(Message message, WritableByteChannel target)
+			throws IOException {
+		return write(read(message, -1), target);
+	}
+
+	public long transferTop(Message message, int lines,
+			WritableByteChannel target) throws IOException {
+		return write(read(message, lines), target);
+	}
+
+	public synchronized void delete(Message[] messages) {
+
+		for (int index = 0; index < messages.length; index++) {
+			int slot = findSlot(getUid(messages[index]));
+			if (slot != -1) {
+				deleted[slot] = true;
+				liveCount--;
+				liveBytes -= lengths[slot];
+				generation++;
+			}
+		}
+	}
+
+	public synchronized long getNextUid() {
+		return lastUid + 1;
+	}
+
+	public synchronized void setNextUid(long uid) {
+		lastUid = Math.max(lastUid, uid - 1);
+	}
+
+	/**
+	 * Drops the messages. The buffer is released with the store.
+	 */
+	public synchronized void close() {
+		first = 0;
+		count = 0;
+		used = 0;
+		liveCount = 0;
+		liveBytes = 0;
+		generation++;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Drops the oldest message from the table, freeing its space.
+	 */
+	private void drop() {
+
+		int slot = first;
+		if (!deleted[slot]) {
+			liveCount--;
+			liveBytes -= lengths[slot];
+			dropped++;
+		}
+		used -= lengths[slot];
+		first = (first + 1) % uids.length;
+		count--;
+		generation++;
+	}
+
+	/**
+	 * Returns the slot of the message if it is held and not deleted, or -1.
+	 * The unique ids increase from the first slot on, so the table is
+	 * searched by bisection.
+	 */
+	private int findSlot(long uid) {
+
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int slot = (first + middle) % uids.length;
+			if (uids[slot] < uid) {
+				low = middle + 1;
+			} else if (uids[slot] > uid) {
+				high = middle - 1;
+			} else {
+				return deleted[slot] ? -1 : slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies a message, or its header and first lines, out of the buffer.
+	 *
+	 * @param lines
+	 *            the number of body lines, or -1 for the whole message.
+	 */
+	private synchronized byte[] read(Message message, int lines)
+			throws IOException {
+
+		int slot = findSlot(getUid(message));
+		if (slot == -1) {
+			throw new IOException("Message " + message.getUniqueId()
+					+ " is no longer held.");
+		}
+		int length = lengths[slot];
+		if (lines >= 0) {
+			int top = headerLengths[slot];
+			for (int line = 0; line < lines && top < length; line++) {
+				while (top < length && byteAt(offsets[slot] + top++) != '\n') {
+				}
+			}
+			length = top;
+		}
+		return copy(offsets[slot], length);
+	}
+
+	private byte[] copy(int offset, int length) {
+
+		byte[] data = new byte[length];
+		int part = Math.min(length, buffer.length - offset);
+		System.arraycopy(buffer, offset, data, 0, part);
+		System.arraycopy(buffer, 0, data, part, length - part);
+		return data;
+	}
+
+	private byte byteAt(long position) {
+		return buffer[(int) (position % buffer.length)];
+	}
+
+	/**
+	 * Returns the length of the header including the empty line that ends
+	 * it, or the length of the message if it has no body.
+	 */
+	private int findHeaderLength(int offset, int length) {
+
+		int matched = 0;
+		for (int index = 0; index < length; index++) {
+			byte value = byteAt((long) offset + index);
+			if (value == HEADER_END[matched]) {
+				matched++;
+				if (matched == HEADER_END.length) {
+					return index + 1;
+				}
+			} else {
+				matched = value == HEADER_END[0] ? 1 : 0;
+			}
+		}
+		return length;
+	}
+
+	private static long getUid(Message message) {
+		return Long.parseLong(message.getUniqueId());
+	}
+
+	private static Message createMessage(long uid, long size) {
+		Message message = new Message();
+		message.setUniqueId(String.valueOf(uid));
+		message.setMessageSize(size);
+		return message;
+	}
+
+	private static long write(byte[] data, WritableByteChannel target)
+			throws IOException {
+
+		ByteBuffer source = ByteBuffer.wrap(data);
+		while (source.hasRemaining()) {
+			target.write(source);
+		}
+		return data.length;
+	}
+
+	// ***************************************************************
+	// Ring Writer
+	// ***************************************************************
+
+	/**
+	 * Writes a message at the head of the buffer, wrapping around its end
+	 * and dropping the oldest messages as it goes. Used with the lock of the
+	 * store held.
+	 */
+	private class RingChannel implements WritableByteChannel {
+
+		private int start = head;
+		private long written = 0;
+
+		public int write(ByteBuffer source) throws IOException {
+
+			int total = source.remaining();
+			while (source.hasRemaining()) {
+				while (used + 1 > buffer.length) {
+					if (count == 0) {
+						throw new IOException("Message is larger than the "
+								+ buffer.length + " byte buffer.");
+					}
+					if (log.isDebugEnabled()) {
+						log.debug("Dropping message " + uids[first]
+								+ " to make room.");
+					}
+					drop();
+				}
+				int chunk = (int) Math.min(Math.min(source.remaining(),
+						buffer.length - head), buffer.length - used);
+				source.get(buffer, head, chunk);
+				head = (head + chunk) % buffer.length;
+				used += chunk;
+				written += chunk;
+			}
+			return total;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out chunks of memory outside the Java heap, so a large number of
+ * messages kept in memory does not lengthen garbage collection. The heap
+ * only holds the handles of the chunks, which are longs.
+ * <p>
+ * Chunks come in a few size classes. Every class carves its chunks out of
+ * arenas of ARENA_SIZE bytes allocated with allocateDirect, and keeps the
+ * chunks that were freed in a free list for reuse. Arenas are never
+ * released, so the memory used stays at its high-water mark.
+ * <p>
+ * This class is not thread safe, the store that owns it guards it.
+ */
+class SlabAllocator {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The sizes of the chunks of the classes, smallest first */
+	private static final int[] CHUNK_SIZES = { 512, 2048, 8192, 32768,
+			131072 };
+
+	/** The size of the direct buffers the chunks are carved out of */
+	private static final int ARENA_SIZE = 1024 * 1024;
+
+	private static final int ARENA_SHIFT = 24;
+
+	private static final int CLASS_SHIFT = 48;
+
+	private static final int SLOT_MASK = (1 << ARENA_SHIFT) - 1;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	private SizeClass[] classes = new SizeClass[CHUNK_SIZES.length];
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	public SlabAllocator() {
+		for (int index = 0; index < classes.length; index++) {
+			classes[index] = new SizeClass(CHUNK_SIZES[index]);
+		}
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/** The size of the largest chunks. */
+	public static int getMaximumChunkSize() {
+		return CHUNK_SIZES[CHUNK_SIZES.length - 1];
+	}
+
+	/**
+	 * Allocates a chunk of the smallest class that holds the size, or of
+	 * the largest class if none does.
+	 *
+	 * @return the handle of the chunk.
+	 * @throws OutOfMemoryError
+	 *             if no more direct memory can be allocated.
+	 */
+	public long allocate(int size) {
+
+		int sizeClass = 0;
+		while (sizeClass < CHUNK_SIZES.length - 1
+				&& CHUNK_SIZES[sizeClass] < size) {
+			sizeClass++;
+		}
+		return ((long) sizeClass << CLASS_SHIFT)
+				| classes[sizeClass].allocate();
+	}
+
+	/**
+	 * Returns a chunk to the free list of its class.
+	 */
+	public void free(long chunk) {
+		classes[getClass(chunk)].free(chunk & ((1L << CLASS_SHIFT) - 1));
+	}
+
+	/** The size of a chunk. */
+	public int getSize(long chunk) {
+		return CHUNK_SIZES[getClass(chunk)];
+	}
+
+	/**
+	 * Returns a buffer over the chunk, from its start to its end. The
+	 * buffer shares the memory of the chunk.
+	 */
+	public ByteBuffer getBuffer(long chunk) {
+
+		SizeClass sizeClass = classes[getClass(chunk)];
+		int arena = (int) (chunk >>> ARENA_SHIFT) & SLOT_MASK;
+		int slot = (int) chunk & SLOT_MASK;
+		ByteBuffer buffer = sizeClass.arenas.get(arena).duplicate();
+		int start = slot * sizeClass.chunkSize;
+		buffer.limit(start + sizeClass.chunkSize);
+		buffer.position(start);
+		return buffer.slice();
+	}
+
+	/** The direct memory allocated for arenas, in bytes. */
+	public long getReservedBytes() {
+		long reserved = 0;
+		for (int index = 0; index < classes.length; index++) {
+			reserved += (long) classes[index].arenas.size() * ARENA_SIZE;
+		}
+		return reserved;
+	}
+
+	/** The memory of the chunks in use, in bytes. */
+	public long getUsedBytes() {
+		long used = 0;
+		for (int index = 0; index < classes.length; index++) {
+			SizeClass sizeClass = classes[index];
+			used += (long) (sizeClass.allocated - sizeClass.freeCount)
+					* sizeClass.chunkSize;
+		}
+		return used;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private static int getClass(long chunk) {
+		return (int) (chunk >>> CLASS_SHIFT);
+	}
+
+	/**
+	 * The arenas and free chunks of a size class. A chunk is identified
+	 * within its class by its arena and its slot in the arena.
+	 */
+	private static class SizeClass {
+
+		private int chunkSize;
+		private int chunksPerArena;
+		private List<ByteBuffer> arenas = new ArrayList<ByteBuffer>();
+
+		/** The number of chunks ever carved out of the arenas */
+		private int allocated = 0;
+
+		/** The freed chunks, used as a stack */
+		private long[] free = new long[64];
+		private int freeCount = 0;
+
+		public SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerArena = ARENA_SIZE / chunkSize;
+		}
+
+		public long allocate() {
+
+			if (freeCount > 0) {
+				return free[--freeCount];
+			}
+			int arena = allocated / chunksPerArena;
+			if (arena == arenas.size()) {
+				arenas.add(ByteBuffer.allocateDirect(ARENA_SIZE));
+			}
+			int slot = allocated % chunksPerArena;
+			allocated++;
+			return ((long) arena << ARENA_SHIFT) | slot;
+		}
+
+		public void free(long chunk) {
+			if (freeCount == free.length) {
+				long[] grown = new long[free.length * 2];
+				System.arraycopy(free, 0, grown, 0, freeCount);
+				free = grown;
+			}
+			free[freeCount++] = chunk;
+		}
+	}
+}
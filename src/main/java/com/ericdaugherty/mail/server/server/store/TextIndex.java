@@ -0,0 +1,1071 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+
+/**
+ * An inverted index from the words of the messages to the unique ids of the
+ * messages that contain them, so a verification code or a link can be found
+ * without reading every message of a large mailbox.
+ * <p>
+ * The text of a message, header and body, is split into terms when it is
+ * delivered: runs of letters and digits, with the ASCII letters in lower
+ * case. Quoted-printable soft line breaks and escapes are taken into
+ * account, and lines that look like base64 are skipped. New terms are
+ * collected in memory, and every {@value #FLUSH_MESSAGES} messages they are
+ * written to an immutable segment file: a sorted term dictionary with delta
+ * encoded lists of unique ids.
+ * <p>
+ * The {@link TextIndexMerger} merges segments in the background when there
+ * are too many of them, and rewrites a segment when most of its messages
+ * are deleted. Deleted messages are dropped by the merges, and searches
+ * leave out the deleted messages that are still in the segments.
+ * <p>
+ * Every segment covers a range of unique ids, which is its file name. A
+ * merged segment replaces the segments whose ranges it covers, so a merge
+ * interrupted by a crash leaves either the old segments or the new one. The
+ * terms in memory are lost when the server stops, and their messages are
+ * added again by the store when it is opened.
+ * <p>
+ * This class is thread safe. Searches and merges read the segments without
+ * holding the lock of the index.
+ */
+public class TextIndex {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** Identifies a text index segment: "TIDX" */
+	private static final int MAGIC = 0x54494458;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * magic, version, message count, term count, first uid, last uid,
+	 * dictionary offset and table offset
+	 */
+	private static final int HEADER_LENGTH = 40;
+
+	private static final int MESSAGE_COUNT_OFFSET = 8;
+	private static final int TERM_COUNT_OFFSET = 12;
+	private static final int FIRST_UID_OFFSET = 16;
+	private static final int LAST_UID_OFFSET = 24;
+	private static final int DICTIONARY_OFFSET = 32;
+	private static final int TABLE_OFFSET = 36;
+
+	/** The number of messages collected in memory before a segment is written */
+	private static final int FLUSH_MESSAGES = 1000;
+
+	/** The number of segments above which they are merged */
+	private static final int MAX_SEGMENTS = 10;
+
+	/** The number of segments merged at once */
+	private static final int MERGE_FACTOR = 4;
+
+	/** A segment is rewritten when more than half its messages are deleted */
+	private static final int MAX_DELETED_PERCENT = 50;
+
+	private static final int MIN_TERM_LENGTH = 2;
+
+	/** Longer terms are cut to this length */
+	private static final int MAX_TERM_LENGTH = 64;
+
+	/** The most bytes of a message that are indexed */
+	private static final int MAX_TEXT_LENGTH = 4 * 1024 * 1024;
+
+	/** Lines this long that only have base64 characters are not indexed */
+	private static final int BASE64_LINE_LENGTH = 60;
+
+	/** Longer lines are split */
+	private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".idx";
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/** Maps the bytes of a term to a String one to one */
+	private static final Charset TERM_CHARSET = Charset.forName("ISO-8859-1");
+
+	private static final Charset QUERY_CHARSET = Charset.forName("UTF-8");
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(TextIndex.class);
+
+	private File directory;
+
+	/** The store of the messages, to find the deleted ones when merging */
+	private MailboxStore store;
+
+	/** The segments in unique id order. The list is replaced, not changed. */
+	private List<Segment> segments;
+
+	/** The terms of the messages not written to a segment yet */
+	private Map<String, LongList> pending = new HashMap<String, LongList>();
+	private LongList pendingUids = new LongList();
+
+	/** The last unique id indexed */
+	private long lastUid = 0;
+
+	private boolean merging = false;
+
+	/** True once the store is closed, so no more segments are written */
+	private boolean closed = false;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Opens the segments in the directory, creating it if needed.
+	 *
+	 * @param store
+	 *            the store the index belongs to.
+	 */
+	public TextIndex(File directory, MailboxStore store) throws IOException {
+
+		this.directory = directory;
+		this.store = store;
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create text index directory "
+					+ directory.getAbsolutePath());
+		}
+
+		List<Segment> found = new ArrayList<Segment>();
+		File[] files = directory.listFiles();
+		for (int index = 0; index < files.length; index++) {
+			String name = files[index].getName();
+			if (name.endsWith(TEMPORARY_SUFFIX)) {
+				// A segment that was not finished.
+				files[index].delete();
+			} else if (name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					found.add(Segment.open(files[index]));
+				} catch (IOException ioe) {
+					log.warn("Removing unreadable text index segment "
+							+ files[index].getAbsolutePath() + ": " + ioe);
+					files[index].delete();
+				}
+			}
+		}
+
+		// A merged segment comes before the segments it replaced.
+		Collections.sort(found, new Comparator<Segment>() {
+			public int compare(Segment first, Segment second) {
+				if (first.firstUid != second.firstUid) {
+					return first.firstUid < second.firstUid ? -1 : 1;
+				}
+				return first.lastUid > second.lastUid ? -1
+						: (first.lastUid == second.lastUid ? 0 : 1);
+			}
+		});
+		segments = new ArrayList<Segment>();
+		for (Segment segment : found) {
+			if (segment.lastUid <= lastUid) {
+				segment.file.delete();
+				continue;
+			}
+			segments.add(segment);
+			lastUid = segment.lastUid;
+		}
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Returns the last unique id that was indexed. The messages with larger
+	 * unique ids need to be added.
+	 */
+	public synchronized long getLastUid() {
+		return lastUid;
+	}
+
+	/**
+	 * Indexes the text of a message. Messages must be added in increasing
+	 * unique id order, a message that is not newer than the last one is
+	 * ignored.
+	 *
+	 * @param channel
+	 *            the file the message is stored in.
+	 * @param position
+	 *            the position of the message in the channel.
+	 * @param length
+	 *            the length of the message.
+	 */
+	public void add(long uid, SeekableByteChannel channel, long position,
+			long length) throws IOException {
+
+		Set<String> terms = new HashSet<String>();
+		Tokenizer tokenizer = new Tokenizer(terms, MIN_TERM_LENGTH, true);
+		tokenize(channel, position, Math.min(length, MAX_TEXT_LENGTH),
+				tokenizer);
+
+		synchronized (this) {
+			if (uid <= lastUid) {
+				return;
+			}
+			for (String term : terms) {
+				LongList uids = pending.get(term);
+				if (uids == null) {
+					uids = new LongList();
+					pending.put(term, uids);
+				}
+				uids.add(uid);
+			}
+			pendingUids.add(uid);
+			lastUid = uid;
+
+			if (pendingUids.size() >= FLUSH_MESSAGES) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Returns the unique ids of the messages that contain all the words of
+	 * the query, in increasing order. Some of them may be deleted.
+	 *
+	 * @param substring
+	 *            true if every word only needs to be part of a term of the
+	 *            message, false if it must be one.
+	 */
+	public long[] search(String query, boolean substring) {
+
+		Set<String> terms = new HashSet<String>();
+		Tokenizer tokenizer = new Tokenizer(terms, substring ? 1
+				: MIN_TERM_LENGTH, false);
+		byte[] bytes = query.getBytes(QUERY_CHARSET);
+		tokenizer.line(bytes, bytes.length);
+		if (terms.isEmpty()) {
+			return new long[0];
+		}
+
+		// The segments are immutable, only the terms in memory are copied.
+		List<Segment> current;
+		Map<String, LongList> matches = new HashMap<String, LongList>();
+		synchronized (this) {
+			current = segments;
+			for (String term : terms) {
+				LongList uids = new LongList();
+				if (substring) {
+					for (Map.Entry<String, LongList> entry : pending.entrySet()) {
+						if (entry.getKey().indexOf(term) != -1) {
+							uids.addAll(entry.getValue());
+						}
+					}
+				} else if (pending.containsKey(term)) {
+					uids.addAll(pending.get(term));
+				}
+				matches.put(term, uids);
+			}
+		}
+
+		long[] result = null;
+		for (String term : terms) {
+			byte[] termBytes = term.getBytes(TERM_CHARSET);
+			LongList uids = new LongList();
+			for (Segment segment : current) {
+				segment.find(termBytes, substring, uids);
+			}
+			uids.addAll(matches.get(term));
+			long[] termUids = uids.toSortedArray();
+			result = result == null ? termUids : intersect(result, termUids);
+			if (result.length == 0) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Asks the TextIndexMerger to check the segments, after messages were
+	 * deleted.
+	 */
+	public void scheduleMerge() {
+		TextIndexMerger.getTextIndexMerger().schedule(this);
+	}
+
+	/**
+	 * Stops writing and merging segments, as the store is closed. The
+	 * terms in memory are dropped.
+	 */
+	public synchronized void close() {
+		closed = true;
+	}
+
+	/**
+	 * Writes the terms in memory to a segment.
+	 */
+	public synchronized void flush() throws IOException {
+
+		if (closed || pendingUids.size() == 0) {
+			return;
+		}
+
+		long[] uids = pendingUids.toSortedArray();
+		String[] terms = pending.keySet().toArray(new String[pending.size()]);
+		Arrays.sort(terms);
+
+		SegmentWriter writer = new SegmentWriter(directory, uids[0],
+				uids[uids.length - 1], uids);
+		Segment segment;
+		try {
+			for (int index = 0; index < terms.length; index++) {
+				writer.addTerm(terms[index].getBytes(TERM_CHARSET), pending
+						.get(terms[index]).toSortedArray());
+			}
+			segment = writer.finish();
+		} catch (IOException ioe) {
+			writer.abort();
+			throw ioe;
+		}
+
+		List<Segment> flushed = new ArrayList<Segment>(segments);
+		flushed.add(segment);
+		segments = flushed;
+		pending = new HashMap<String, LongList>();
+		pendingUids = new LongList();
+
+		if (log.isDebugEnabled()) {
+			log.debug("Wrote text index segment "
+					+ segment.file.getAbsolutePath() + " with " + uids.length
+					+ " messages and " + terms.length + " terms.");
+		}
+		if (segments.size() > MAX_SEGMENTS) {
+			scheduleMerge();
+		}
+	}
+
+	// ***************************************************************
+	// Package Interface
+	// ***************************************************************
+
+	/**
+	 * Merges the smallest adjacent segments if there are too many, or
+	 * rewrites a segment without its deleted messages. The new segment is
+	 * written without holding the lock of the index or of the store.
+	 *
+	 * @return true if there is more to merge.
+	 */
+	boolean merge() throws IOException {
+
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+		}
+
+		// Every message up to the last uid indexed is in the store, so one
+		// that is not in the maildrop is deleted.
+		long indexed = getLastUid();
+		Maildrop maildrop = store.getMaildrop(null);
+		long[] live = new long[maildrop.getMessageCount()];
+		for (int index = 0; index < live.length; index++) {
+			live[index] = maildrop.getUid(index + 1);
+		}
+
+		List<Segment> run;
+		synchronized (this) {
+			if (merging || closed) {
+				return false;
+			}
+			run = selectMerge(live, indexed);
+			if (run == null) {
+				return false;
+			}
+			merging = true;
+		}
+
+		Segment merged = null;
+		try {
+			merged = write(run, live, indexed);
+		} finally {
+			if (merged == null) {
+				synchronized (this) {
+					merging = false;
+				}
+			}
+		}
+
+		synchronized (this) {
+			List<Segment> replaced = new ArrayList<Segment>(segments);
+			int first = replaced.indexOf(run.get(0));
+			replaced.subList(first, first + run.size()).clear();
+			replaced.add(first, merged);
+			segments = replaced;
+			merging = false;
+
+			for (Segment segment : run) {
+				if (!segment.file.equals(merged.file)
+						&& !segment.file.delete()) {
+					log.warn("Unable to delete text index segment "
+							+ segment.file.getAbsolutePath());
+				}
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Merged " + run.size()
+						+ " text index segments into "
+						+ merged.file.getAbsolutePath() + " with "
+						+ merged.messageCount + " messages.");
+			}
+			return selectMerge(live, indexed) != null;
+		}
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Returns the segments to merge next, or null if none need to be.
+	 */
+	private List<Segment> selectMerge(long[] live, long indexed) {
+
+		if (segments.size() > MAX_SEGMENTS) {
+			int best = 0;
+			long bestCount = Long.MAX_VALUE;
+			for (int first = 0; first + MERGE_FACTOR <= segments.size(); first++) {
+				long count = 0;
+				for (int index = first; index < first + MERGE_FACTOR; index++) {
+					count += segments.get(index).messageCount;
+				}
+				if (count < bestCount) {
+					best = first;
+					bestCount = count;
+				}
+			}
+			return new ArrayList<Segment>(segments.subList(best, best
+					+ MERGE_FACTOR));
+		}
+
+		for (Segment segment : segments) {
+			long[] uids = segment.getUids();
+			int deleted = 0;
+			for (int index = 0; index < uids.length; index++) {
+				if (!isLive(uids[index], live, indexed)) {
+					deleted++;
+				}
+			}
+			if (deleted > 0
+					&& deleted * 100L > uids.length * (long) MAX_DELETED_PERCENT) {
+				return Collections.singletonList(segment);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a segment with the terms of the run of segments, leaving out
+	 * the deleted messages.
+	 */
+	private Segment write(List<Segment> run, long[] live, long indexed)
+			throws IOException {
+
+		LongList uids = new LongList();
+		for (Segment segment : run) {
+			long[] segmentUids = segment.getUids();
+			for (int index = 0; index < segmentUids.length; index++) {
+				if (isLive(segmentUids[index], live, indexed)) {
+					uids.add(segmentUids[index]);
+				}
+			}
+		}
+
+		SegmentWriter writer = new SegmentWriter(directory,
+				run.get(0).firstUid, run.get(run.size() - 1).lastUid,
+				uids.toSortedArray());
+		try {
+			int[] terms = new int[run.size()];
+			while (true) {
+				byte[] smallest = null;
+				for (int index = 0; index < terms.length; index++) {
+					Segment segment = run.get(index);
+					if (terms[index] < segment.termCount) {
+						byte[] term = segment.getTerm(terms[index]);
+						if (smallest == null || compare(term, smallest) < 0) {
+							smallest = term;
+						}
+					}
+				}
+				if (smallest == null) {
+					break;
+				}
+
+				LongList postings = new LongList();
+				for (int index = 0; index < terms.length; index++) {
+					Segment segment = run.get(index);
+					if (terms[index] < segment.termCount
+							&& compare(segment.getTerm(terms[index]), smallest) == 0) {
+						segment.addPostings(terms[index], postings);
+						terms[index]++;
+					}
+				}
+				LongList kept = new LongList();
+				for (int index = 0; index < postings.size(); index++) {
+					if (isLive(postings.get(index), live, indexed)) {
+						kept.add(postings.get(index));
+					}
+				}
+				if (kept.size() > 0) {
+					writer.addTerm(smallest, kept.toSortedArray());
+				}
+			}
+			return writer.finish();
+		} catch (IOException ioe) {
+			writer.abort();
+			throw ioe;
+		}
+	}
+
+	private static boolean isLive(long uid, long[] live, long indexed) {
+		return uid > indexed || Arrays.binarySearch(live, uid) >= 0;
+	}
+
+	/**
+	 * Reads the message a line at a time and passes the lines to the
+	 * tokenizer.
+	 */
+	private static void tokenize(SeekableByteChannel channel, long position,
+			long length, Tokenizer tokenizer) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(
+				Math.min(length, 64 * 1024), 1));
+		byte[] line = new byte[MAX_LINE_LENGTH];
+		int lineLength = 0;
+		long read = 0;
+		channel.position(position);
+		while (read < length) {
+			buffer.clear();
+			if (length - read < buffer.capacity()) {
+				buffer.limit((int) (length - read));
+			}
+			int count = channel.read(buffer);
+			if (count <= 0) {
+				break;
+			}
+			read += count;
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				byte value = buffer.get();
+				if (value == '\n') {
+					tokenizer.line(line, lineLength);
+					lineLength = 0;
+				} else {
+					if (lineLength == line.length) {
+						tokenizer.line(line, lineLength);
+						lineLength = 0;
+					}
+					line[lineLength++] = value;
+				}
+			}
+		}
+		tokenizer.line(line, lineLength);
+	}
+
+	/**
+	 * Returns the unique ids in both sorted arrays.
+	 */
+	private static long[] intersect(long[] first, long[] second) {
+		long[] result = new long[Math.min(first.length, second.length)];
+		int count = 0;
+		int firstIndex = 0;
+		int secondIndex = 0;
+		while (firstIndex < first.length && secondIndex < second.length) {
+			if (first[firstIndex] < second[secondIndex]) {
+				firstIndex++;
+			} else if (first[firstIndex] > second[secondIndex]) {
+				secondIndex++;
+			} else {
+				result[count++] = first[firstIndex];
+				firstIndex++;
+				secondIndex++;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Compares two terms as unsigned bytes.
+	 */
+	private static int compare(byte[] first, byte[] second) {
+		int length = Math.min(first.length, second.length);
+		for (int index = 0; index < length; index++) {
+			int difference = (first[index] & 0xff) - (second[index] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return first.length - second.length;
+	}
+
+	// ***************************************************************
+	// Tokenizer
+	// ***************************************************************
+
+	/**
+	 * Splits lines of a message or query into terms.
+	 */
+	private static class Tokenizer {
+
+		private Set<String> terms;
+		private int minLength;
+
+		/**
+		 * True if the lines are of a stored message, which may be
+		 * quoted-printable or base64, false if they are a query.
+		 */
+		private boolean encoded;
+
+		private byte[] term = new byte[MAX_TERM_LENGTH];
+		private int termLength = 0;
+
+		public Tokenizer(Set<String> terms, int minLength, boolean encoded) {
+			this.terms = terms;
+			this.minLength = minLength;
+			this.encoded = encoded;
+		}
+
+		/**
+		 * Adds the terms of a line, without its line feed. A term is only
+		 * continued on the next line after a quoted-printable soft line
+		 * break.
+		 */
+		public void line(byte[] line, int length) {
+
+			if (length > 0 && line[length - 1] == '\r') {
+				length--;
+			}
+			if (encoded && isBase64(line, length)) {
+				end();
+				return;
+			}
+			boolean softBreak = encoded && length > 0
+					&& line[length - 1] == '=';
+			if (softBreak) {
+				length--;
+			}
+
+			for (int index = 0; index < length; index++) {
+				int value = line[index] & 0xff;
+				if (encoded && value == '=' && index + 2 < length
+						&& isHexDigit(line[index + 1])
+						&& isHexDigit(line[index + 2])) {
+					// A quoted-printable escape, usually of punctuation.
+					end();
+					index += 2;
+				} else if ((value >= '0' && value <= '9')
+						|| (value >= 'a' && value <= 'z') || value >= 0x80) {
+					append(value);
+				} else if (value >= 'A' && value <= 'Z') {
+					append(value + ('a' - 'A'));
+				} else {
+					end();
+				}
+			}
+			if (!softBreak) {
+				end();
+			}
+		}
+
+		private void append(int value) {
+			if (termLength < term.length) {
+				term[termLength++] = (byte) value;
+			}
+		}
+
+		private void end() {
+			if (termLength >= minLength) {
+				terms.add(new String(term, 0, termLength, TERM_CHARSET));
+			}
+			termLength = 0;
+		}
+
+		private static boolean isHexDigit(byte value) {
+			return (value >= '0' && value <= '9')
+					|| (value >= 'A' && value <= 'F');
+		}
+
+		private static boolean isBase64(byte[] line, int length) {
+			if (length < BASE64_LINE_LENGTH) {
+				return false;
+			}
+			for (int index = 0; index < length; index++) {
+				byte value = line[index];
+				if (!((value >= 'A' && value <= 'Z')
+						|| (value >= 'a' && value <= 'z')
+						|| (value >= '0' && value <= '9') || value == '+'
+						|| value == '/' || value == '=')) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	// ***************************************************************
+	// Segments
+	// ***************************************************************
+
+	/**
+	 * A segment file, memory mapped. After the header come the unique ids of
+	 * its messages, the posting lists, the dictionary entries in term order
+	 * (term length, term, posting list offset and size) and a table with the
+	 * offset of every entry.
+	 */
+	private static class Segment {
+
+		private File file;
+		private MappedByteBuffer buffer;
+
+		private int messageCount;
+		private int termCount;
+		private long firstUid;
+		private long lastUid;
+		private int tableOffset;
+
+		public static Segment open(File file) throws IOException {
+
+			Segment segment = new Segment();
+			segment.file = file;
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				if (channel.size() < HEADER_LENGTH
+						|| channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("Invalid segment length "
+							+ channel.size());
+				}
+				segment.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			} finally {
+				randomAccessFile.close();
+			}
+
+			MappedByteBuffer buffer = segment.buffer;
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("Not a text index segment");
+			}
+			segment.messageCount = buffer.getInt(MESSAGE_COUNT_OFFSET);
+			segment.termCount = buffer.getInt(TERM_COUNT_OFFSET);
+			segment.firstUid = buffer.getLong(FIRST_UID_OFFSET);
+			segment.lastUid = buffer.getLong(LAST_UID_OFFSET);
+			segment.tableOffset = buffer.getInt(TABLE_OFFSET);
+			if (buffer.getInt(DICTIONARY_OFFSET) > segment.tableOffset
+					|| segment.tableOffset + segment.termCount * 4L != buffer
+							.capacity()) {
+				throw new IOException("Truncated text index segment");
+			}
+			return segment;
+		}
+
+		public long[] getUids() {
+			long[] uids = new long[messageCount];
+			for (int index = 0; index < uids.length; index++) {
+				uids[index] = buffer.getLong(HEADER_LENGTH + index * 8);
+			}
+			return uids;
+		}
+
+		/**
+		 * Adds the unique ids of the messages with the term, or with terms
+		 * that contain it.
+		 */
+		public void find(byte[] term, boolean substring, LongList target) {
+
+			if (substring) {
+				for (int index = 0; index < termCount; index++) {
+					if (contains(index, term)) {
+						addPostings(index, target);
+					}
+				}
+				return;
+			}
+
+			int low = 0;
+			int high = termCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int comparison = compare(getTerm(middle), term);
+				if (comparison < 0) {
+					low = middle + 1;
+				} else if (comparison > 0) {
+					high = middle - 1;
+				} else {
+					addPostings(middle, target);
+					return;
+				}
+			}
+		}
+
+		public byte[] getTerm(int term) {
+			int entry = getEntry(term);
+			byte[] bytes = new byte[buffer.get(entry) & 0xff];
+			for (int index = 0; index < bytes.length; index++) {
+				bytes[index] = buffer.get(entry + 1 + index);
+			}
+			return bytes;
+		}
+
+		public void addPostings(int term, LongList target) {
+			int entry = getEntry(term);
+			int termLength = buffer.get(entry) & 0xff;
+			int position = buffer.getInt(entry + 1 + termLength);
+			int count = buffer.getInt(entry + 5 + termLength);
+			long uid = 0;
+			for (int posting = 0; posting < count; posting++) {
+				long delta = 0;
+				int shift = 0;
+				byte value;
+				do {
+					value = buffer.get(position++);
+					delta |= (long) (value & 0x7f) << shift;
+					shift += 7;
+				} while (value < 0);
+				uid += delta;
+				target.add(uid);
+			}
+		}
+
+		private boolean contains(int term, byte[] fragment) {
+			int entry = getEntry(term);
+			int termLength = buffer.get(entry) & 0xff;
+			for (int start = 0; start + fragment.length <= termLength; start++) {
+				int index = 0;
+				while (index < fragment.length
+						&& buffer.get(entry + 1 + start + index) == fragment[index]) {
+					index++;
+				}
+				if (index == fragment.length) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int getEntry(int term) {
+			return buffer.getInt(tableOffset + term * 4);
+		}
+	}
+
+	/**
+	 * Writes a segment to a temporary file, which is renamed when it is
+	 * complete. Terms must be added in order.
+	 */
+	private static class SegmentWriter {
+
+		private File file;
+		private File temporaryFile;
+		private FileOutputStream out;
+		private DataOutputStream data;
+
+		private ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+		private DataOutputStream dictionaryData = new DataOutputStream(
+				dictionary);
+		private List<Integer> entries = new ArrayList<Integer>();
+
+		private long firstUid;
+		private long lastUid;
+		private int messageCount;
+
+		public SegmentWriter(File directory, long firstUid, long lastUid,
+				long[] uids) throws IOException {
+
+			this.firstUid = firstUid;
+			this.lastUid = lastUid;
+			this.messageCount = uids.length;
+			file = new File(directory, firstUid + "-" + lastUid
+					+ SEGMENT_SUFFIX);
+			temporaryFile = new File(directory, file.getName()
+					+ TEMPORARY_SUFFIX);
+
+			out = new FileOutputStream(temporaryFile);
+			data = new DataOutputStream(new BufferedOutputStream(out,
+					64 * 1024));
+			// The header is written last.
+			data.write(new byte[HEADER_LENGTH]);
+			for (int index = 0; index < uids.length; index++) {
+				data.writeLong(uids[index]);
+			}
+		}
+
+		public void addTerm(byte[] term, long[] uids) throws IOException {
+
+			entries.add(Integer.valueOf(dictionary.size()));
+			dictionaryData.writeByte(term.length);
+			dictionaryData.write(term);
+			dictionaryData.writeInt(data.size());
+			dictionaryData.writeInt(uids.length);
+
+			long previous = 0;
+			for (int index = 0; index < uids.length; index++) {
+				long delta = uids[index] - previous;
+				previous = uids[index];
+				while ((delta & ~0x7fL) != 0) {
+					data.writeByte((int) (delta & 0x7f) | 0x80);
+					delta >>>= 7;
+				}
+				data.writeByte((int) delta);
+			}
+		}
+
+		public Segment finish() throws IOException {
+
+			int dictionaryOffset = data.size();
+			dictionary.writeTo(data);
+			int tableOffset = data.size();
+			for (Integer entry : entries) {
+				data.writeInt(dictionaryOffset + entry.intValue());
+			}
+			data.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(messageCount);
+			header.putInt(entries.size());
+			header.putLong(firstUid);
+			header.putLong(lastUid);
+			header.putInt(dictionaryOffset);
+			header.putInt(tableOffset);
+			header.flip();
+			FileChannel channel = out.getChannel();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+			data.close();
+
+			if (!temporaryFile.renameTo(file)
+					&& !(file.delete() && temporaryFile.renameTo(file))) {
+				throw new IOException("Unable to write text index segment "
+						+ file.getAbsolutePath());
+			}
+			return Segment.open(file);
+		}
+
+		public void abort() {
+			try {
+				data.close();
+			} catch (IOException ioe) {
+				// The file is removed anyway.
+			}
+			temporaryFile.delete();
+		}
+	}
+
+	// ***************************************************************
+	// Long List
+	// ***************************************************************
+
+	/**
+	 * A growable list of unique ids, without boxing them.
+	 */
+	private static class LongList {
+
+		private long[] values = new long[4];
+		private int size = 0;
+
+		public int size() {
+			return size;
+		}
+
+		public long get(int index) {
+			return values[index];
+		}
+
+		public void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public void addAll(LongList list) {
+			for (int index = 0; index < list.size; index++) {
+				add(list.values[index]);
+			}
+		}
+
+		/**
+		 * Returns the values in increasing order, without duplicates.
+		 */
+		public long[] toSortedArray() {
+			long[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			int distinct = 0;
+			for (int index = 0; index < sorted.length; index++) {
+				if (distinct == 0 || sorted[distinct - 1] != sorted[index]) {
+					sorted[distinct++] = sorted[index];
+				}
+			}
+			return Arrays.copyOf(sorted, distinct);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the segments of the text indexes in the background, so deliveries
+ * and searches never wait for it. A text index is queued when it writes a
+ * segment and has too many, and when messages of its store are deleted.
+ * The thread is started by the first index that needs it.
+ */
+public class TextIndexMerger implements Runnable {
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(TextIndexMerger.class);
+
+	/** Singleton Instance */
+	private static TextIndexMerger instance = null;
+
+	/** The indexes to check */
+	private LinkedBlockingQueue<TextIndex> indexes = new LinkedBlockingQueue<TextIndex>();
+
+	private Thread thread = null;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized TextIndexMerger getTextIndexMerger() {
+		if (instance == null) {
+			instance = new TextIndexMerger();
+		}
+		return instance;
+	}
+
+	/**
+	 * Queues an index to be checked. An index that is already queued is not
+	 * added again.
+	 */
+	public synchronized void schedule(TextIndex index) {
+		if (!indexes.contains(index)) {
+			indexes.add(index);
+		}
+		if (thread == null) {
+			thread = new Thread(this, "TextIndexMerger");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void run() {
+
+		while (true) {
+			TextIndex index;
+			try {
+				index = indexes.take();
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			try {
+				if (index.merge()) {
+					schedule(index);
+				}
+			} catch (Throwable throwable) {
+				log.error("Unable to merge text index: " + throwable,
+						throwable);
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.server.store;
+
+//Java imports
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Removes the dot-stuffing of the stored wire form of a message while it is
+ * written to another channel, so the target receives the message as it was
+ * sent. The '.' that starts a line is dropped; every other byte is passed
+ * on unchanged.
+ */
+public class UnstuffingChannel implements WritableByteChannel {
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	private WritableByteChannel target;
+
+	/** True if the next byte written starts a line */
+	private boolean lineStart = true;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	public UnstuffingChannel(WritableByteChannel target) {
+		this.target = target;
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Writes all the bytes of the buffer, less the stuffed dots.
+	 *
+	 * @return the number of bytes consumed from the buffer.
+	 */
+	public int write(ByteBuffer source) throws IOException {
+
+		int consumed = source.remaining();
+		int limit = source.limit();
+		while (source.hasRemaining()) {
+			int start = source.position();
+			if (lineStart && source.get(start) == '.') {
+				start++;
+			}
+			int end = start;
+			while (end < limit && source.get(end) != '\n') {
+				end++;
+			}
+			lineStart = end < limit;
+			if (lineStart) {
+				end++;
+			}
+
+			ByteBuffer line = source.duplicate();
+			line.limit(end);
+			line.position(start);
+			while (line.hasRemaining()) {
+				target.write(line);
+			}
+			source.position(end);
+		}
+		return consumed;
+	}
+
+	public boolean isOpen() {
+		return target.isOpen();
+	}
+
+	public void close() throws IOException {
+		target.close();
+	}
+}
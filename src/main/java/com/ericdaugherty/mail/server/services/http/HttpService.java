@@ -0,0 +1,740 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.http;
+
+//Java imports
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.server.errors.InvalidAddressException;
+import com.ericdaugherty.mail.server.server.info.EmailAddress;
+import com.ericdaugherty.mail.server.server.info.MailboxEvictor;
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+import com.ericdaugherty.mail.server.server.info.User;
+import com.ericdaugherty.mail.server.server.store.HeaderIndex;
+import com.ericdaugherty.mail.server.server.store.MailboxStore;
+import com.ericdaugherty.mail.server.server.store.MessageCache;
+import com.ericdaugherty.mail.server.server.store.UnstuffingChannel;
+import com.ericdaugherty.mail.server.services.smtp.DeliveryNotifier;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the captured mail over HTTP, so tests can check the messages
+ * without a POP3 session. The API reads the same mailbox store the
+ * SMTPSender delivers to:
+ * <ul>
+ * <li><code>GET /messages</code> lists the messages as JSON, with their
+ * message number, unique id, size, subject, sender and date.</li>
+ * <li><code>GET /messages?header=&lt;name&gt;&amp;value=&lt;value&gt;</code>
+ * lists the messages with the header value, using the header index of the
+ * mailbox store. Only the headers of the mailbox.headerindex property can
+ * be searched.</li>
+ * <li><code>GET /messages?text=&lt;words&gt;</code> lists the messages that
+ * contain all the words, using the text index of the mailbox store, and
+ * <code>GET /messages?contains=&lt;words&gt;</code> the messages with words
+ * that contain them, to find a code or a part of a link.</li>
+ * <li><code>GET /messages/&lt;uid&gt;</code> returns the message as it was
+ * received, without the dot-stuffing of the stored form.</li>
+ * <li><code>GET /messages/await?recipient=&lt;address&gt;</code>, with
+ * <code>header=&lt;name&gt;&amp;value=&lt;value&gt;</code> or
+ * <code>subject=&lt;text&gt;</code> instead of the recipient, waits for a
+ * matching message to be delivered and returns its unique id and size. It
+ * returns 204 No Content when the <code>timeout</code>, in seconds, is up.
+ * With <code>after=&lt;uid&gt;</code> a matching message delivered after that
+ * one is returned at once. The request does not hold a thread while it
+ * waits.</li>
+ * <li><code>DELETE /messages/&lt;uid&gt;</code> deletes a message.</li>
+ * <li><code>DELETE /messages</code> purges the mailbox: all the messages
+ * are removed at once, however many there are, while POP3 sessions keep
+ * their view of the mailbox until they end.</li>
+ * <li><code>GET /stats</code> returns the hits and misses of the message
+ * cache, the number and size of the messages in it, and the number of open
+ * mailboxes.</li>
+ * </ul>
+ * With mailbox.routing, every request reads the mailbox of the address in
+ * its <code>mailbox</code> parameter, or the single mailbox without one. A
+ * mailbox no mail was delivered to reads as empty, and is not created by
+ * the request.
+ * The API has no authentication, so it is only started when the httpport
+ * property is set.
+ */
+public class HttpService implements HttpHandler {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	private static final String CONTEXT = "/messages";
+
+	private static final String AWAIT_PATH = CONTEXT + "/await";
+
+	private static final String STATS_PATH = "/stats";
+
+	/** The seconds an await request waits if it does not say */
+	private static final long DEFAULT_AWAIT_TIMEOUT = 30;
+
+	private static final long MAX_AWAIT_TIMEOUT = 300;
+
+	private static final String METHOD_GET = "GET";
+	private static final String METHOD_DELETE = "DELETE";
+
+	private static final int STATUS_OK = 200;
+	private static final int STATUS_NO_CONTENT = 204;
+	private static final int STATUS_BAD_REQUEST = 400;
+	private static final int STATUS_NOT_FOUND = 404;
+	private static final int STATUS_METHOD_NOT_ALLOWED = 405;
+	private static final int STATUS_ERROR = 500;
+
+	/** The headers listed with every message, and their JSON names */
+	private static final String[] LISTED_HEADERS = HeaderIndex.LISTED_HEADERS;
+	private static final String[] LISTED_FIELDS = { "subject", "from", "date" };
+
+	/** The messages of a mailbox that does not exist */
+	private static final Maildrop EMPTY_MAILDROP = new Maildrop(0,
+			new long[0], new long[0]);
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(HttpService.class);
+
+	private ConfigurationManager configurationManager;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	/**
+	 * Creates the service listening on the port, with a pool of threads to
+	 * handle the requests.
+	 */
+	public HttpService(int port, int threads) throws IOException {
+
+		configurationManager = ConfigurationManager.getInstance();
+
+		InetSocketAddress address;
+		if (configurationManager.getListenAddress() == null) {
+			address = new InetSocketAddress(port);
+		} else {
+			address = new InetSocketAddress(
+					configurationManager.getListenAddress(), port);
+		}
+		server = HttpServer.create(address, 0);
+		server.createContext(CONTEXT, this);
+		server.createContext(STATS_PATH, this);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	public void start() {
+		server.start();
+		if (log.isInfoEnabled())
+			log.info("HTTP API listening on port "
+					+ server.getAddress().getPort());
+	}
+
+	/**
+	 * Stops accepting requests, and waits a second for the requests being
+	 * handled.
+	 */
+	public void shutdown() {
+		log.warn("Shutting down HTTP API.");
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+
+		// An await request is answered later by the DeliveryNotifier.
+		boolean waiting = false;
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			if (path.startsWith(STATS_PATH)) {
+				if (!path.equals(STATS_PATH)) {
+					sendStatus(exchange, STATUS_NOT_FOUND);
+				} else if (METHOD_GET.equals(method)) {
+					handleStats(exchange);
+				} else {
+					sendStatus(exchange, STATUS_METHOD_NOT_ALLOWED);
+				}
+				return;
+			}
+			Map<String, String> parameters;
+			try {
+				parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+			} catch (IllegalArgumentException iae) {
+				// The query has a malformed escape.
+				sendStatus(exchange, STATUS_BAD_REQUEST);
+				return;
+			}
+			EmailAddress mailbox = getMailbox(parameters);
+			if (mailbox == null) {
+				sendStatus(exchange, STATUS_BAD_REQUEST);
+				return;
+			}
+			// The user is null if the mailbox does not exist yet.
+			User user = configurationManager.findUser(mailbox);
+			String uid = null;
+			if (path.equals(AWAIT_PATH)) {
+				if (METHOD_GET.equals(method)) {
+					waiting = handleAwait(exchange, user, mailbox, parameters);
+				} else {
+					sendStatus(exchange, STATUS_METHOD_NOT_ALLOWED);
+				}
+				return;
+			} else if (path.startsWith(CONTEXT + "/")) {
+				uid = path.substring(CONTEXT.length() + 1);
+			} else if (!path.equals(CONTEXT)) {
+				sendStatus(exchange, STATUS_NOT_FOUND);
+				return;
+			}
+
+			if (uid != null && !isUid(uid)) {
+				sendStatus(exchange, STATUS_BAD_REQUEST);
+				return;
+			}
+
+			// The store is held open for the request, so a purge or the
+			// MailboxEvictor does not close it meanwhile.
+			MailboxStore store = null;
+			if (user != null) {
+				while ((store = user.openMailbox()) == null) {
+					user = configurationManager.getReplacement(user);
+				}
+			}
+			try {
+				if (METHOD_GET.equals(method)) {
+					if (uid == null && isSearch(parameters)) {
+						handleSearch(exchange, store, parameters);
+					} else if (uid == null) {
+						handleList(exchange, user, store);
+					} else {
+						handleMessage(exchange, store, uid);
+					}
+				} else if (METHOD_DELETE.equals(method)) {
+					handleDelete(exchange, user, store, uid);
+				} else {
+					sendStatus(exchange, STATUS_METHOD_NOT_ALLOWED);
+				}
+			} finally {
+				if (store != null) {
+					user.closeMailbox(store);
+				}
+			}
+		} catch (Throwable throwable) {
+			log.error("Error handling HTTP request "
+					+ exchange.getRequestURI() + ": " + throwable, throwable);
+			try {
+				sendStatus(exchange, STATUS_ERROR);
+			} catch (IOException ioe) {
+				// The response was already started.
+			}
+		} finally {
+			if (!waiting) {
+				exchange.close();
+			}
+		}
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Writes the messages of the mailbox as a JSON object, with the values of
+	 * the listed headers the header index keeps. Only the messages whose
+	 * values are not kept are read.
+	 *
+	 * @param store
+	 *            the store opened for the request, or null if the mailbox
+	 *            does not exist.
+	 */
+	private void handleList(HttpExchange exchange, User user,
+			MailboxStore store) throws IOException {
+
+		Maildrop maildrop = store == null ? EMPTY_MAILDROP : user
+				.getMaildrop(store);
+		int count = maildrop.getMessageCount();
+		Message[] messages = new Message[count];
+		for (int number = 1; number <= count; number++) {
+			messages[number - 1] = maildrop.getMessage(number);
+		}
+		String[][] listed = count == 0 ? null : store
+				.getListedHeaders(messages);
+
+		StringBuffer json = new StringBuffer(64 + count * 160);
+		json.append("{\"count\":").append(count);
+		json.append(",\"size\":").append(maildrop.getSize());
+		json.append(",\"messages\":[");
+		for (int number = 1; number <= count; number++) {
+			if (number > 1) {
+				json.append(',');
+			}
+			json.append("{\"number\":").append(number);
+			json.append(",\"uid\":\"").append(maildrop.getUniqueId(number));
+			json.append("\",\"size\":").append(maildrop.getMessageSize(number));
+			String[] values = listed[number - 1];
+			if (values == null) {
+				values = readHeaders(store, messages[number - 1]);
+			}
+			appendHeaders(json, values);
+			json.append('}');
+		}
+		json.append("]}");
+
+		sendJson(exchange, json);
+	}
+
+	/**
+	 * Appends the values of the listed headers of a message to its JSON
+	 * object. A value is null if the message does not have the header.
+	 */
+	private static void appendHeaders(StringBuffer json, String[] values) {
+
+		for (int index = 0; index < LISTED_FIELDS.length; index++) {
+			json.append(",\"").append(LISTED_FIELDS[index]).append("\":");
+			appendString(json, values[index]);
+		}
+	}
+
+	/**
+	 * Returns the values of the listed headers of a message, with folded
+	 * lines joined. Only the header of the message is read. All the values
+	 * are null if the message was deleted meanwhile.
+	 */
+	private static String[] readHeaders(MailboxStore store, Message message)
+			throws IOException {
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+		try {
+			store.transferTop(message, 0, new UnstuffingChannel(Channels
+					.newChannel(header)));
+		} catch (IOException ioe) {
+			return new String[LISTED_HEADERS.length];
+		}
+
+		String[] values = new String[LISTED_HEADERS.length];
+		String[] lines = header.toString("UTF-8").split("\r?\n");
+		int field = -1;
+		for (int index = 0; index < lines.length; index++) {
+			String line = lines[index];
+			if (line.length() == 0) {
+				break;
+			}
+			if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+				if (field != -1) {
+					values[field] = values[field] + ' ' + line.trim();
+				}
+				continue;
+			}
+			field = -1;
+			int colon = line.indexOf(':');
+			for (int name = 0; colon > 0 && name < LISTED_HEADERS.length; name++) {
+				if (values[name] == null
+						&& LISTED_HEADERS[name].equalsIgnoreCase(line
+								.substring(0, colon).trim())) {
+					values[name] = line.substring(colon + 1).trim();
+					field = name;
+					break;
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Appends a string as a JSON string, or null.
+	 */
+	private static void appendString(StringBuffer json, String value) {
+
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int index = 0; index < value.length(); index++) {
+			char character = value.charAt(index);
+			if (character == '"' || character == '\\') {
+				json.append('\\').append(character);
+			} else if (character < ' ') {
+				String hex = Integer.toHexString(character);
+				json.append("\\u0000", 0, 6 - hex.length()).append(hex);
+			} else {
+				json.append(character);
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 * Writes the messages with a header value, or with the words of a text,
+	 * as a JSON object. The message numbers are left out, as they only have
+	 * a meaning within a maildrop.
+	 */
+	private void handleSearch(HttpExchange exchange, MailboxStore store,
+			Map<String, String> parameters) throws IOException {
+
+		Message[] messages = null;
+		if (store == null) {
+			if (parameters.containsKey("value")
+					|| !parameters.containsKey("header")) {
+				messages = new Message[0];
+			}
+		} else if (parameters.containsKey("header")
+				&& parameters.containsKey("value")) {
+			messages = store.find(parameters.get("header"),
+					parameters.get("value"));
+		} else if (parameters.containsKey("text")) {
+			messages = store.search(parameters.get("text"), false);
+		} else if (parameters.containsKey("contains")) {
+			messages = store.search(parameters.get("contains"), true);
+		}
+		if (messages == null) {
+			sendStatus(exchange, STATUS_BAD_REQUEST);
+			return;
+		}
+
+		StringBuffer json = new StringBuffer(64 + messages.length * 48);
+		json.append("{\"count\":").append(messages.length);
+		json.append(",\"messages\":[");
+		for (int index = 0; index < messages.length; index++) {
+			if (index > 0) {
+				json.append(',');
+			}
+			json.append("{\"uid\":\"").append(messages[index].getUniqueId());
+			json.append("\",\"size\":").append(
+					messages[index].getMessageSize());
+			json.append('}');
+		}
+		json.append("]}");
+
+		sendJson(exchange, json);
+	}
+
+	/**
+	 * Writes the counters of the message cache and the number of open
+	 * mailboxes as a JSON object.
+	 */
+	private void handleStats(HttpExchange exchange) throws IOException {
+
+		MessageCache cache = MessageCache.getMessageCache();
+		StringBuffer json = new StringBuffer(160);
+		json.append("{\"cache\":{\"enabled\":").append(cache.isEnabled());
+		json.append(",\"hits\":").append(cache.getHits());
+		json.append(",\"misses\":").append(cache.getMisses());
+		json.append(",\"messages\":").append(cache.getMessageCount());
+		json.append(",\"bytes\":").append(cache.getUsedBytes());
+		json.append("},\"openMailboxes\":").append(
+				MailboxEvictor.getMailboxEvictor().getOpenCount());
+		json.append('}');
+
+		sendJson(exchange, json);
+	}
+
+	/**
+	 * Registers an await request with the DeliveryNotifier.
+	 *
+	 * @param user
+	 *            the user of the mailbox, or null if it does not exist yet.
+	 * @return true if the response is sent later.
+	 */
+	private boolean handleAwait(final HttpExchange exchange, User user,
+			EmailAddress mailbox, Map<String, String> parameters)
+			throws IOException {
+
+		DeliveryNotifier.Predicate predicate;
+		long after;
+		long timeout;
+		try {
+			if (parameters.containsKey("recipient")) {
+				predicate = DeliveryNotifier.Predicate.recipient(parameters
+						.get("recipient"));
+			} else if (parameters.containsKey("header")
+					&& parameters.containsKey("value")) {
+				predicate = DeliveryNotifier.Predicate.header(
+						parameters.get("header"), parameters.get("value"));
+			} else if (parameters.containsKey("subject")) {
+				predicate = DeliveryNotifier.Predicate.subject(parameters
+						.get("subject"));
+			} else {
+				sendStatus(exchange, STATUS_BAD_REQUEST);
+				return false;
+			}
+			after = parameters.containsKey("after") ? Long
+					.parseLong(parameters.get("after")) : -1;
+			timeout = parameters.containsKey("timeout") ? Long
+					.parseLong(parameters.get("timeout"))
+					: DEFAULT_AWAIT_TIMEOUT;
+		} catch (IllegalArgumentException iae) {
+			sendStatus(exchange, STATUS_BAD_REQUEST);
+			return false;
+		}
+		timeout = Math.max(0, Math.min(timeout, MAX_AWAIT_TIMEOUT));
+		if (user == null) {
+			// Nothing was delivered to the mailbox, so only a new message can
+			// match. The user only names the mailbox and is never opened.
+			user = new User(configurationManager.getMailboxAddress(mailbox));
+			after = -1;
+		}
+
+		DeliveryNotifier.getDeliveryNotifier().register(user, predicate,
+				after, timeout * 1000, new DeliveryNotifier.Listener() {
+					public void delivered(final Message message) {
+						respond(exchange, message);
+					}
+
+					public void timedOut() {
+						respond(exchange, null);
+					}
+				});
+		return true;
+	}
+
+	/**
+	 * Answers an await request on a thread of the service, so the delivery
+	 * that completed it does not wait for the client.
+	 */
+	private void respond(final HttpExchange exchange, final Message message) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (message == null) {
+							sendStatus(exchange, STATUS_NO_CONTENT);
+						} else {
+							StringBuffer json = new StringBuffer();
+							json.append("{\"uid\":\"").append(
+									message.getUniqueId());
+							json.append("\",\"size\":").append(
+									message.getMessageSize());
+							json.append('}');
+							sendJson(exchange, json);
+						}
+					} catch (IOException ioe) {
+						log.debug("Unable to answer an await request: " + ioe);
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			// The service is shutting down.
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Writes the data of a message. The length after removing the
+	 * dot-stuffing is not known up front, so the response is chunked.
+	 */
+	private void handleMessage(HttpExchange exchange, MailboxStore store,
+			String uid) throws IOException {
+
+		if (store == null) {
+			sendStatus(exchange, STATUS_NOT_FOUND);
+			return;
+		}
+		Message message = createMessage(uid);
+		if (!store.contains(message)) {
+			sendStatus(exchange, STATUS_NOT_FOUND);
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "message/rfc822");
+		exchange.sendResponseHeaders(STATUS_OK, 0);
+		OutputStream out = new BufferedOutputStream(
+				exchange.getResponseBody(), 16 * 1024);
+		store.transferMessage(message,
+				new UnstuffingChannel(Channels.newChannel(out)));
+		out.close();
+	}
+
+	/**
+	 * Deletes a message, or purges the mailbox if no unique id is given.
+	 */
+	private void handleDelete(HttpExchange exchange, User user,
+			MailboxStore store, String uid) throws IOException {
+
+		if (user == null) {
+			// There is nothing to purge or delete.
+			sendStatus(exchange, uid == null ? STATUS_NO_CONTENT
+					: STATUS_NOT_FOUND);
+			return;
+		}
+		if (uid == null) {
+			user.purge();
+			if (log.isInfoEnabled())
+				log.info("Purged mailbox " + user.getFullUsername()
+						+ " through the HTTP API.");
+			sendStatus(exchange, STATUS_NO_CONTENT);
+			return;
+		}
+
+		Message message = createMessage(uid);
+		if (!store.contains(message)) {
+			sendStatus(exchange, STATUS_NOT_FOUND);
+			return;
+		}
+		store.delete(new Message[] { message });
+		if (log.isInfoEnabled())
+			log.info("Deleted message " + uid + " through the HTTP API.");
+		sendStatus(exchange, STATUS_NO_CONTENT);
+	}
+
+	/**
+	 * Returns the address named by the mailbox parameter, or of the single
+	 * mailbox if there is none.
+	 *
+	 * @return the address, or null if the parameter is not an address.
+	 */
+	private EmailAddress getMailbox(Map<String, String> parameters) {
+		String mailbox = parameters.get("mailbox");
+		if (mailbox == null) {
+			return configurationManager.getDefaultUser();
+		}
+		try {
+			return new EmailAddress(mailbox);
+		} catch (InvalidAddressException iae) {
+			return null;
+		}
+	}
+
+	/**
+	 * True if the parameters ask for the messages with a header value or a
+	 * text.
+	 */
+	private static boolean isSearch(Map<String, String> parameters) {
+		return parameters.containsKey("header")
+				|| parameters.containsKey("text")
+				|| parameters.containsKey("contains");
+	}
+
+	private static Message createMessage(String uid) {
+		Message message = new Message();
+		message.setUniqueId(uid);
+		return message;
+	}
+
+	/**
+	 * Returns true if the string is a unique id the stores can have issued.
+	 */
+	private static boolean isUid(String uid) {
+		if (uid.length() == 0 || uid.length() > 18) {
+			return false;
+		}
+		for (int index = 0; index < uid.length(); index++) {
+			char digit = uid.charAt(index);
+			if (digit < '0' || digit > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Splits a raw query string into its decoded parameters. The first value
+	 * of a repeated parameter is kept.
+	 */
+	private static Map<String, String> parseQuery(String query)
+			throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null) {
+			return parameters;
+		}
+		String[] pairs = query.split("&");
+		for (int index = 0; index < pairs.length; index++) {
+			int separator = pairs[index].indexOf('=');
+			if (separator <= 0) {
+				continue;
+			}
+			String name = URLDecoder.decode(
+					pairs[index].substring(0, separator), "UTF-8");
+			if (!parameters.containsKey(name)) {
+				parameters.put(name, URLDecoder.decode(
+						pairs[index].substring(separator + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	private static void sendJson(HttpExchange exchange, StringBuffer json)
+			throws IOException {
+		byte[] body = json.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		exchange.sendResponseHeaders(STATUS_OK, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Sends a response without a body.
+	 */
+	private static void sendStatus(HttpExchange exchange, int status)
+			throws IOException {
+		exchange.sendResponseHeaders(status, -1);
+	}
+}
@@ -0,0 +1,595 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.server.info.Maildrop;
+import com.ericdaugherty.mail.server.server.info.Message;
+import com.ericdaugherty.mail.server.server.info.User;
+import com.ericdaugherty.mail.server.server.store.MailboxStore;
+
+/**
+ * Tells the clients waiting for a message when one that they wait for is
+ * delivered, so tests do not need to poll the mailbox. The SMTPSender
+ * reports every message it stores, and the waiters whose {@link Predicate}
+ * the message matches are completed.
+ * <p>
+ * The waiters are kept in a map keyed by what their predicate looks for,
+ * so a delivery only checks the waiters for its own recipient, header
+ * values and subject, however many clients are waiting. The header of a
+ * delivered message is only read when somebody is waiting.
+ * <p>
+ * A waiter may also be completed by a message that was delivered before it
+ * was registered, if it gives the unique id of the last message it knows
+ * about.
+ * <p>
+ * A waiter watches a single mailbox, as the unique ids of the messages are
+ * only meaningful within their mailbox.
+ */
+public class DeliveryNotifier {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The header the SMTPSender writes the recipient of a message to */
+	public static final String DELIVERED_TO = "X-DeliveredTo";
+
+	/** The most header bytes read of a message */
+	private static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+	/** Subject fragments are keyed by their first characters, up to this many */
+	private static final int SUBJECT_KEY_LENGTH = 3;
+
+	/** The headers a recipient address is looked for in */
+	private static final Set<String> RECIPIENT_HEADERS = new HashSet<String>(
+			Arrays.asList(new String[] { DELIVERED_TO.toLowerCase(), "to",
+					"cc" }));
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(DeliveryNotifier.class);
+
+	/** The ConfigurationManager */
+	private static ConfigurationManager configurationManager = ConfigurationManager
+			.getInstance();
+
+	/** Singleton Instance */
+	private static DeliveryNotifier instance = null;
+
+	/** The waiters, keyed by what they look for */
+	private Map<String, List<Waiter>> waiters = new HashMap<String, List<Waiter>>();
+
+	/** Completes the waiters that time out */
+	private ScheduledThreadPoolExecutor timer;
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	protected DeliveryNotifier() {
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DeliveryNotifier");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized DeliveryNotifier getDeliveryNotifier() {
+		if (instance == null) {
+			instance = new DeliveryNotifier();
+		}
+		return instance;
+	}
+
+	/**
+	 * Waits for a message that matches the predicate.
+	 *
+	 * @param mailbox
+	 *            the user whose mailbox the message is delivered to.
+	 * @param after
+	 *            the unique id of the last message the caller knows about,
+	 *            so a matching message delivered after it completes the wait
+	 *            at once. -1 to only wait for new messages.
+	 * @param timeoutMilliseconds
+	 *            the maximum time to wait.
+	 * @return the message, or null if none was delivered in time.
+	 */
+	public Message await(User mailbox, Predicate predicate, long after,
+			long timeoutMilliseconds) throws InterruptedException {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Message[] delivered = new Message[1];
+		Waiter waiter = register(mailbox, predicate, after,
+				timeoutMilliseconds,
+				new Listener() {
+					public void delivered(Message message) {
+						delivered[0] = message;
+						latch.countDown();
+					}
+
+					public void timedOut() {
+						latch.countDown();
+					}
+				});
+		try {
+			latch.await();
+		} catch (InterruptedException ie) {
+			cancel(waiter);
+			throw ie;
+		}
+		return delivered[0];
+	}
+
+	/**
+	 * Registers a listener to be told when a message that matches the
+	 * predicate is delivered, or when the time is up. The listener is told
+	 * once, on the thread that delivered the message or on the timer
+	 * thread, so it should return quickly.
+	 *
+	 * @param mailbox
+	 *            the user whose mailbox the message is delivered to.
+	 * @param after
+	 *            the unique id of the last message the caller knows about,
+	 *            or -1 to only wait for new messages.
+	 * @return the waiter, which can be cancelled.
+	 */
+	public Waiter register(User mailbox, Predicate predicate, long after,
+			long timeoutMilliseconds, Listener listener) {
+
+		final Waiter waiter = new Waiter(mailbox.getFullUsername(),
+				predicate, listener);
+		waiter.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				if (finish(waiter)) {
+					waiter.listener.timedOut();
+				}
+			}
+		}, timeoutMilliseconds, TimeUnit.MILLISECONDS);
+		synchronized (this) {
+			if (!waiter.finished) {
+				List<Waiter> list = waiters.get(predicate.key);
+				if (list == null) {
+					list = new ArrayList<Waiter>();
+					waiters.put(predicate.key, list);
+				}
+				list.add(waiter);
+			}
+		}
+
+		// The waiter is registered before the mailbox is read, so a message
+		// delivered meanwhile is not missed.
+		if (after >= 0) {
+			Message message = findDelivered(mailbox, predicate, after);
+			if (message != null) {
+				complete(waiter, message);
+			}
+		}
+		return waiter;
+	}
+
+	/**
+	 * Removes a waiter without telling its listener.
+	 */
+	public void cancel(Waiter waiter) {
+		if (finish(waiter)) {
+			waiter.timeout.cancel(false);
+		}
+	}
+
+	/**
+	 * Completes the waiters for a message that was stored. Called by the
+	 * SMTPSender after every delivery.
+	 *
+	 * @param mailbox
+	 *            the user whose mailbox the message was delivered to.
+	 * @param store
+	 *            the store the message was delivered to.
+	 */
+	public void delivered(User mailbox, MailboxStore store, Message message) {
+
+		synchronized (this) {
+			if (waiters.isEmpty()) {
+				return;
+			}
+		}
+
+		List<String[]> headers;
+		try {
+			headers = readHeaders(store, message);
+		} catch (IOException ioe) {
+			log.warn("Unable to read the header of message "
+					+ message.getUniqueId() + " for the waiting clients: "
+					+ ioe);
+			return;
+		}
+
+		List<Waiter> matched = new ArrayList<Waiter>();
+		synchronized (this) {
+			for (String key : getKeys(headers)) {
+				List<Waiter> list = waiters.get(key);
+				if (list == null) {
+					continue;
+				}
+				for (Waiter waiter : list) {
+					if (waiter.mailbox.equals(mailbox.getFullUsername())
+							&& waiter.predicate.matches(headers)) {
+						matched.add(waiter);
+					}
+				}
+			}
+		}
+		for (Waiter waiter : matched) {
+			complete(waiter, message);
+		}
+	}
+
+	/**
+	 * The number of clients waiting.
+	 */
+	public synchronized int getWaiterCount() {
+		int count = 0;
+		for (List<Waiter> list : waiters.values()) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	private void complete(Waiter waiter, Message message) {
+		if (finish(waiter)) {
+			waiter.timeout.cancel(false);
+			try {
+				waiter.listener.delivered(message);
+			} catch (RuntimeException runtimeException) {
+				log.error("Error notifying a waiting client: "
+						+ runtimeException, runtimeException);
+			}
+		}
+	}
+
+	/**
+	 * Marks a waiter finished and removes it from the map.
+	 *
+	 * @return false if it was already finished.
+	 */
+	private synchronized boolean finish(Waiter waiter) {
+		if (waiter.finished) {
+			return false;
+		}
+		waiter.finished = true;
+		List<Waiter> list = waiters.get(waiter.predicate.key);
+		if (list != null && list.remove(waiter) && list.isEmpty()) {
+			waiters.remove(waiter.predicate.key);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the first message after the unique id that matches the
+	 * predicate, or null if there is none. The store is held open while it
+	 * is read, so a purge or the MailboxEvictor does not close it meanwhile.
+	 */
+	private Message findDelivered(User user, Predicate predicate, long after) {
+
+		MailboxStore store;
+		while ((store = user.openMailbox()) == null) {
+			user = configurationManager.getReplacement(user);
+		}
+		try {
+			Maildrop maildrop = user.getMaildrop(store);
+			int first = maildrop.getMessageCount() + 1;
+			while (first > 1 && maildrop.getUid(first - 1) > after) {
+				first--;
+			}
+			for (int number = first; number <= maildrop.getMessageCount(); number++) {
+				Message message = maildrop.getMessage(number);
+				try {
+					if (predicate.matches(readHeaders(store, message))) {
+						return message;
+					}
+				} catch (IOException ioe) {
+					// The message was deleted meanwhile.
+				}
+			}
+			return null;
+		} finally {
+			user.closeMailbox(store);
+		}
+	}
+
+	/**
+	 * Returns the keys of the waiters a message with the headers may
+	 * complete.
+	 */
+	private static Set<String> getKeys(List<String[]> headers) {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (String[] header : headers) {
+			keys.add(Predicate.getHeaderKey(header[0], header[1]));
+			if (RECIPIENT_HEADERS.contains(header[0])) {
+				for (String address : getAddresses(header[1])) {
+					keys.add(Predicate.getRecipientKey(address));
+				}
+			}
+			if (header[0].equals("subject")) {
+				String subject = header[1];
+				for (int start = 0; start < subject.length(); start++) {
+					for (int end = start + 1; end <= subject.length()
+							&& end - start <= SUBJECT_KEY_LENGTH; end++) {
+						keys.add(Predicate.getSubjectKey(subject.substring(
+								start, end)));
+					}
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Reads the header fields of a stored message, unfolded, as lower case
+	 * names and values.
+	 */
+	private static List<String[]> readHeaders(MailboxStore store,
+			Message message) throws IOException {
+
+		List<String[]> headers = new ArrayList<String[]>();
+		InputStream in = store.openMessage(message);
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					in, "UTF-8"));
+			StringBuffer field = null;
+			int read = 0;
+			String line;
+			while ((line = reader.readLine()) != null && line.length() > 0
+					&& read < MAX_HEADER_LENGTH) {
+				read += line.length() + 2;
+				if (field != null
+						&& (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+					field.append(' ').append(line.trim());
+					continue;
+				}
+				addHeader(headers, field);
+				field = new StringBuffer(line);
+			}
+			addHeader(headers, field);
+		} finally {
+			in.close();
+		}
+		return headers;
+	}
+
+	/**
+	 * Returns the addresses in the value of an address header.
+	 */
+	private static List<String> getAddresses(String value) {
+		List<String> addresses = new ArrayList<String>();
+		StringTokenizer tokenizer = new StringTokenizer(value, " \t,;<>\"");
+		while (tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken();
+			if (token.indexOf('@') > 0) {
+				addresses.add(token);
+			}
+		}
+		return addresses;
+	}
+
+	private static void addHeader(List<String[]> headers, StringBuffer field) {
+		if (field == null) {
+			return;
+		}
+		int colon = field.indexOf(":");
+		if (colon > 0) {
+			headers.add(new String[] {
+					field.substring(0, colon).trim().toLowerCase(),
+					field.substring(colon + 1).trim().toLowerCase() });
+		}
+	}
+
+	// ***************************************************************
+	// Predicates and Waiters
+	// ***************************************************************
+
+	/**
+	 * What a client waits for: a message to a recipient, with a header
+	 * value, or with a subject that contains a text. Names and values are
+	 * compared without case.
+	 */
+	public static class Predicate {
+
+		private static final int HEADER = 0;
+		private static final int SUBJECT = 1;
+		private static final int RECIPIENT = 2;
+
+		private int type;
+		private String key;
+		private String headerName;
+		private String value;
+
+		private Predicate(int type, String key, String headerName,
+				String value) {
+			this.type = type;
+			this.key = key;
+			this.headerName = headerName;
+			this.value = value;
+		}
+
+		/**
+		 * A message to the address, in its To or Cc header or as the
+		 * recipient it was delivered to.
+		 */
+		public static Predicate recipient(String address) {
+			String lowerAddress = address.trim().toLowerCase();
+			if (lowerAddress.indexOf('@') <= 0) {
+				throw new IllegalArgumentException("Invalid address "
+						+ address);
+			}
+			return new Predicate(RECIPIENT, getRecipientKey(lowerAddress),
+					null, lowerAddress);
+		}
+
+		/**
+		 * A message with the header value.
+		 */
+		public static Predicate header(String name, String value) {
+			String lowerName = name.trim().toLowerCase();
+			String lowerValue = value.trim().toLowerCase();
+			return new Predicate(HEADER, getHeaderKey(lowerName, lowerValue),
+					lowerName, lowerValue);
+		}
+
+		/**
+		 * A message whose subject contains the text.
+		 */
+		public static Predicate subject(String text) {
+			String lowerText = text.toLowerCase();
+			if (lowerText.length() == 0) {
+				throw new IllegalArgumentException("Empty subject text");
+			}
+			return new Predicate(SUBJECT, getSubjectKey(lowerText.substring(0,
+					Math.min(lowerText.length(), SUBJECT_KEY_LENGTH))),
+					"subject", lowerText);
+		}
+
+		private boolean matches(List<String[]> headers) {
+			for (String[] header : headers) {
+				switch (type) {
+				case RECIPIENT:
+					if (RECIPIENT_HEADERS.contains(header[0])
+							&& getAddresses(header[1]).contains(value)) {
+						return true;
+					}
+					break;
+				case SUBJECT:
+					if (header[0].equals(headerName)
+							&& header[1].indexOf(value) != -1) {
+						return true;
+					}
+					break;
+				default:
+					if (header[0].equals(headerName) && header[1].equals(value)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private static String getHeaderKey(String name, String value) {
+			return "h:" + name + ":" + value;
+		}
+
+		private static String getSubjectKey(String text) {
+			return "s:" + text;
+		}
+
+		private static String getRecipientKey(String address) {
+			return "r:" + address;
+		}
+	}
+
+	/**
+	 * Told when the message a client waits for is delivered, or when the
+	 * time is up.
+	 */
+	public interface Listener {
+
+		public void delivered(Message message);
+
+		public void timedOut();
+	}
+
+	/**
+	 * A registered client.
+	 */
+	public static class Waiter {
+
+		/** The full username of the mailbox, which outlives a purge */
+		private String mailbox;
+		private Predicate predicate;
+		private Listener listener;
+		private ScheduledFuture<?> timeout;
+
+		/** Guarded by the DeliveryNotifier */
+		private boolean finished = false;
+
+		private Waiter(String mailbox, Predicate predicate,
+				Listener listener) {
+			this.mailbox = mailbox;
+			this.predicate = predicate;
+			this.listener = listener;
+		}
+	}
+}
+// EOF
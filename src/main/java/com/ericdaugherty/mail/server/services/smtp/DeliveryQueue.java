@@ -0,0 +1,273 @@
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ *
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.File;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+
+/**
+ * Orders the messages in the SMTP spool directory by the time of their next
+ * delivery attempt.
+ * <p>
+ * The spool files are the persistent form of this queue: every message stores
+ * its scheduled delivery time and number of attempts in its envelope, so the
+ * queue is rebuilt from the spool directory once at startup and then kept up
+ * to date by the SMTPProcessor (new messages) and the SMTPSender (retries).
+ * Messages that are not yet due cost nothing until their time comes.
+ */
+public class DeliveryQueue {
+
+	// ***************************************************************
+	// Constants
+	// ***************************************************************
+
+	/** The largest exponent used for the backoff, 2^16 times the interval. */
+	private static final int MAX_BACKOFF_EXPONENT = 16;
+
+	/** Fraction of the delay that is randomized to spread out retries. */
+	private static final double JITTER = 0.25;
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(DeliveryQueue.class);
+
+	/** Singleton Instance */
+	private static DeliveryQueue instance = null;
+
+	/** The ConfigurationManager */
+	private ConfigurationManager configurationManager;
+
+	/** Spool entries ordered by their next delivery attempt */
+	private DelayQueue<Entry> queue = new DelayQueue<Entry>();
+
+	/** The spool files currently in the queue, used to avoid duplicates */
+	private Set<File> queuedFiles = Collections
+			.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	private Random random = new Random();
+
+	// ***************************************************************
+	// Constructor
+	// ***************************************************************
+
+	protected DeliveryQueue() {
+		configurationManager = ConfigurationManager.getInstance();
+	}
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * Accessor for the singleton instance for this class.
+	 */
+	public static synchronized DeliveryQueue getDeliveryQueue() {
+		if (instance == null) {
+			instance = new DeliveryQueue();
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the directory the SMTP spool files are stored in.
+	 */
+	public File getSpoolDirectory() {
+		return new File(configurationManager.getMailDirectory()
+				+ File.separator + "smtp");
+	}
+
+	/**
+	 * Rebuilds the queue from the messages found in the spool directory. This
+	 * should be called once when the delivery thread starts. Temporary files
+	 * left behind by an envelope rewrite that did not complete are removed,
+	 * as the spool file they were to replace still holds the message.
+	 */
+	public void recover() {
+
+		File smtpDirectory = getSpoolDirectory();
+		if (!smtpDirectory.exists() || !smtpDirectory.isDirectory()) {
+			return;
+		}
+
+		File[] files = smtpDirectory.listFiles();
+		int recovered = 0;
+		for (int index = 0; index < files.length; index++) {
+			String name = files[index].getName();
+			if (name.endsWith(".tmp")) {
+				log.warn("Removing incomplete spool file " + name);
+				if (!files[index].delete()) {
+					log.error("Unable to remove incomplete spool file " + name);
+				}
+				continue;
+			}
+			if (!name.startsWith("smtp") || !name.endsWith(".ser")) {
+				continue;
+			}
+			try {
+				SMTPMessage message = SMTPMessage.loadEnvelope(files[index]
+						.getAbsolutePath());
+				schedule(message);
+				recovered++;
+			} catch (Throwable throwable) {
+				log.error("Unable to recover spooled message "
+						+ files[index].getName() + ": " + throwable, throwable);
+			}
+		}
+		if (log.isInfoEnabled())
+			log.info("Recovered " + recovered
+					+ " spooled messages for delivery.");
+	}
+
+	/**
+	 * Adds a saved message to the queue using its scheduled delivery time.
+	 */
+	public void schedule(SMTPMessage message) {
+		schedule(message.getMessageLocation(), message.getScheduledDelivery()
+				.getTime());
+	}
+
+	/**
+	 * Adds a spool file to the queue. A file that is already queued is not
+	 * added again.
+	 */
+	public void schedule(File messageLocation, long nextAttempt) {
+		if (queuedFiles.add(messageLocation)) {
+			queue.put(new Entry(messageLocation, nextAttempt));
+		}
+	}
+
+	/**
+	 * Waits for the next message that is due for delivery.
+	 *
+	 * @param timeoutMilliseconds
+	 *            the maximum time to wait.
+	 * @return the spool file, or null if nothing became due in time.
+	 */
+	public File take(long timeoutMilliseconds) throws InterruptedException {
+		Entry entry = queue.poll(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+		if (entry == null) {
+			return null;
+		}
+		queuedFiles.remove(entry.messageLocation);
+		return entry.messageLocation;
+	}
+
+	/**
+	 * The number of messages waiting for delivery, due or not.
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Calculates the time of the next delivery attempt after a failed one.
+	 * The delay doubles with every attempt, starting from the delivery
+	 * interval and capped to the maximum backoff, and a random jitter keeps
+	 * messages that failed together from being retried together.
+	 *
+	 * @param deliveryAttempts
+	 *            the number of attempts made so far, at least 1.
+	 * @return the time of the next attempt in milliseconds.
+	 */
+	public long getNextAttempt(int deliveryAttempts) {
+
+		long interval = configurationManager.getDeliveryIntervealMilliseconds();
+		long maximum = configurationManager.getDeliveryMaximumBackoffMilliseconds();
+
+		int exponent = Math.min(Math.max(deliveryAttempts - 1, 0),
+				MAX_BACKOFF_EXPONENT);
+		long delay = Math.min(interval << exponent, maximum);
+
+		double jitter = (random.nextDouble() * 2 - 1) * JITTER;
+		delay += (long) (delay * jitter);
+
+		return System.currentTimeMillis() + Math.max(delay, 0);
+	}
+
+	// ***************************************************************
+	// Queue Entry
+	// ***************************************************************
+
+	/**
+	 * A spool file waiting for its next delivery attempt.
+	 */
+	private static class Entry implements Delayed {
+
+		/** Arrival order, used to keep entries due at the same time FIFO. */
+		private static final AtomicLong nextSequence = new AtomicLong();
+
+		private File messageLocation;
+		private long nextAttempt;
+		private long sequence;
+
+		public Entry(File messageLocation, long nextAttempt) {
+			this.messageLocation = messageLocation;
+			this.nextAttempt = nextAttempt;
+			this.sequence = nextSequence.getAndIncrement();
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nextAttempt - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			Entry entry = (Entry) other;
+			if (nextAttempt != entry.nextAttempt) {
+				return nextAttempt < entry.nextAttempt ? -1 : 1;
+			}
+			return sequence < entry.sequence ? -1
+					: (sequence == entry.sequence ? 0 : 1);
+		}
+	}
+}
+// EOF
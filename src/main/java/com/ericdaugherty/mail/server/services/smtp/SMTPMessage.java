@@ -1,372 +1,737 @@
-/******************************************************************************
- * This program is SMTP receiver which collect all mails to same inbox.
- * inbox is readable with pop protocol
- * NO mails are forwared.
- ******************************************************************************
- * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
- * All rights reserved.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- ******************************************************************************
- *
- * Refactored 2011 by Sampsa Sohlman for smtp receiver use
- *
- ******************************************************************************
- * For current versions and more information, please visit:
- * 
- * http://www.ericdaugherty.com/java/mail
- *
- * or contact the author at:
- * java@ericdaugherty.com
- *
- ******************************************************************************
- * This program is based on the CSRMail project written by Calvin Smith.
- * http://crsemail.sourceforge.net/
- *****************************************************************************/
-
-package com.ericdaugherty.mail.server.services.smtp;
-
-//Java imports
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
-import java.util.StringTokenizer;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
-import com.ericdaugherty.mail.server.server.errors.InvalidAddressException;
-import com.ericdaugherty.mail.server.server.info.EmailAddress;
-
-
-
-/**
- * Bean class used to store incoming SMTP message on disk (via Java Serialization)
- * for delivery by the SMTPSender thread.
- *
- * @author Eric Daugherty
- */
-public class SMTPMessage implements Serializable {
-
-    //***************************************************************
-    // Constants
-    //***************************************************************
-
-    private static final String DELIMITER = "\r\n";
-
-    private static final String FILE_VERSION = "1.0";
-
-    //***************************************************************
-    // Variables
-    //***************************************************************
-
-    /** Logger */
-    private static Logger log = LoggerFactory.getLogger( SMTPMessage.class.getName() );
-
-    /** The ConfigurationManager */
-    private static ConfigurationManager configurationManager = ConfigurationManager.getInstance();
-
-    private Date timeReceived;
-    private Date scheduledDelivery;
-    private int deliveryAttempts;
-    private EmailAddress fromAddress;
-    private List toAddresses = new ArrayList();
-    private List dataLines = new ArrayList();
-    private File messageLocation = null;
-    private long size = 0;
-
-    //***************************************************************
-    // Constructor
-    //***************************************************************
-
-    /**
-     * Initializes a new message with the current time.
-     */
-    public SMTPMessage() {
-        Date now = new Date();
-        timeReceived = now;
-        scheduledDelivery = now;
-        deliveryAttempts = 0;
-    }
-
-    //***************************************************************
-    // Public Interface
-    //***************************************************************
-
-    public Date getTimeReceived() {
-        return timeReceived;
-    }
-
-    public void setTimeReceived(Date timeReceived) {
-        this.timeReceived = timeReceived;
-    }
-
-    public Date getScheduledDelivery() {
-        return scheduledDelivery;
-    }
-
-    public void setScheduledDelivery(Date scheduledDelivery) {
-        this.scheduledDelivery = scheduledDelivery;
-    }
-
-    public int getDeliveryAttempts() {
-        return deliveryAttempts;
-    }
-
-    public void setDeliveryAttempts(int deliveryAttempts) {
-        this.deliveryAttempts = deliveryAttempts;
-    }
-
-    public EmailAddress getFromAddress(){ return fromAddress; }
-
-    public void setFromAddress(EmailAddress fromAddress){ this.fromAddress = fromAddress; }
-
-    public List getToAddresses() { return toAddresses; }
-
-    public void setToAddresses( List toAddresses ) { this.toAddresses = toAddresses; }
-
-    public void addToAddress( EmailAddress toAddress ) { toAddresses.add( toAddress ); }
-
-    public List getDataLines() { return dataLines; }
-
-    public void addDataLine( String line ) {
-        size += line.length();
-        dataLines.add( line );
-    }
-
-    public File getMessageLocation(){ return messageLocation; }
-
-    public void setMessageLocation(File messageLocation){ this.messageLocation = messageLocation; }
-
-    public long getSize() {
-        if( size == 0 )
-        {
-            Iterator i = dataLines.iterator();
-            while( i.hasNext() )
-            {
-                size += ( (String)i.next() ).length();
-            }
-        }
-
-        return size;
-    }
-
-    /**
-     * Moves the message to the 'failed' Directory.
-     */
-    public void moveToFailedFolder() throws Exception {
-        File failedDir = new File( configurationManager.getMailDirectory() + File.separator + "failed" );
-
-        // If the directory does not exist, create it.
-        if( !failedDir.exists() ) {
-            log.info( "failed directory does not exist.  Creating: " + failedDir.getAbsolutePath() );
-            if( !failedDir.mkdirs() )
-            {
-                log.error( "Error creating failed directory: " + failedDir.getAbsolutePath() + ".  No incoming mail will be accepted!" );
-                throw new Exception( "Unable to create failed Directory." );
-            }
-        }
-
-       File messageLocation = getMessageLocation();
-       String newLocation= configurationManager.getMailDirectory() + File.separator + "failed" + File.separator + messageLocation.getName();
-       if( !messageLocation.renameTo( new File(newLocation ) ) )
-       {
-           log.error( "moveToFailedFolder failed.  Message was not renamed." );
-           throw new Exception( "moveToFailedFolder failed.  Message was not renamed." );
-       }
-    }
-
-    /**
-     * Saves the message to the Mail Spool Directory.
-     */
-    public void save() throws Exception {
-
-        File smtpDirectory = new File( configurationManager.getMailDirectory() + File.separator + "smtp" );
-
-        // If the directory does not exist, create it.
-        if( !smtpDirectory.exists() ) {
-            log.info( "SMTP Mail directory does not exist.  Creating: " + smtpDirectory.getAbsolutePath() );
-            if( !smtpDirectory.mkdirs() )
-            {
-                log.error( "Error creating SMTP Mail directory: " + smtpDirectory.getAbsolutePath() + ".  No incoming mail will be accepted!" );
-                throw new Exception( "Unable to create SMTP Mail Directory." );
-            }
-        }
-
-        File messageFile = getMessageLocation();
-
-        if( messageFile == null ) {
-            messageFile = File.createTempFile( "smtp", ".ser", smtpDirectory );
-            setMessageLocation( messageFile );
-        }
-
-        FileWriter writer = new FileWriter( messageFile );
-        try
-        {
-            writer.write( FILE_VERSION );
-            writer.write( DELIMITER );
-            writer.write( getFromAddress().toString() );
-            writer.write( DELIMITER );
-            writer.write( flattenAddresses( getToAddresses() ) );
-            writer.write( DELIMITER );
-            writer.write( String.valueOf( getTimeReceived().getTime() ) );
-            writer.write( DELIMITER );
-            writer.write( String.valueOf( getScheduledDelivery().getTime() ) );
-            writer.write( DELIMITER );
-            writer.write( String.valueOf( getDeliveryAttempts() ) );
-            writer.write( DELIMITER );
-            List dataLines = getDataLines();
-            for( int index = 0; index < dataLines.size(); index++ )
-            {
-                writer.write( (String) dataLines.get( index ) );
-                writer.write( DELIMITER );
-            }
-        }
-        finally
-        {
-            try
-            {
-                if( writer != null )
-                {
-                    writer.close();
-                }
-            }
-            catch( IOException e )
-            {
-                log.warn( "Unable to close spool file for SMTPMessage " + messageLocation.getAbsolutePath() );
-            }
-        }
-    }
-
-    /**
-     * Loads an individual message from disk.
-     *
-     * @param filename the filename of the message.
-     * @throws IOException thrown if there is any IO error while reading the message.
-     */
-    public static SMTPMessage load( String filename ) throws Exception {
-
-        File messageFile = new File( filename );
-        FileReader fileReader = new FileReader( messageFile );
-        BufferedReader reader = new BufferedReader( fileReader );
-
-        try
-        {
-            String version = reader.readLine();
-            if( log.isDebugEnabled() ) log.debug( "Loading SMTP Message " + messageFile.getName() + " version " + version );
-            if( !FILE_VERSION.equals( version ) )
-            {
-                log.error( "Error loading SMTP Message.  Can not handle file version: " + version );
-                throw new IOException( "Invalid file version: " + version );
-            }
-            // Initialize a new message with the right file location
-            SMTPMessage message = new SMTPMessage();
-            message.setMessageLocation( messageFile );
-
-            // Load each variable
-            message.setFromAddress( new EmailAddress( reader.readLine() ) );
-            message.setToAddresses( inflateAddresses( reader.readLine() ) );
-            message.setTimeReceived( new Date( Long.parseLong( reader.readLine() ) ) );
-            message.setScheduledDelivery( new Date( Long.parseLong( reader.readLine() ) ) );
-            message.setDeliveryAttempts( Integer.parseInt( reader.readLine() ) );
-
-            String inputLine = reader.readLine();
-            while( inputLine != null )
-            {
-                message.addDataLine( inputLine );
-                inputLine = reader.readLine();
-            }
-
-            return message;
-        }
-        catch( InvalidAddressException invalidAddressException )
-        {
-            throw new IOException( "Unable to parse the address from the stored file." );
-        }
-        catch( NumberFormatException numberFormatException )
-        {
-            throw new IOException( "Unable to parse the data from the stored file into a number.  " + numberFormatException.toString() );
-        }
-        finally
-        {
-            if( reader != null )
-            {
-                reader.close();
-            }
-        }
-    }
-
-    /**
-     * Converts a <code>List</code> of <code>EmailAddress</code>
-     * instances into a comma delimited string.
-     *
-     * @param addresses Collection of Address instances.
-     * @return Comma delimited String of the addresses.
-     */
-    private static String flattenAddresses( Collection addresses )
-    {
-        StringBuffer toAddresses = new StringBuffer();
-        EmailAddress address;
-        Iterator addressIterator = addresses.iterator();
-        while( addressIterator.hasNext() )
-        {
-            address = (EmailAddress) addressIterator.next();
-            toAddresses.append( address.toString() );
-            toAddresses.append( "," );
-        }
-
-        // Remove the last comma.
-        toAddresses.deleteCharAt( toAddresses.length() - 1 );
-
-        return toAddresses.toString();
-    }
-
-    /**
-     * Converts a comma delimited string of addresses into a
-     * <code>List</code> of <code>EmailAddress</code> instances.
-     *
-     * @param addresses Comma delimited String of addresses.
-     * @return List of Address instances.
-     */
-    private static List inflateAddresses( String addresses )
-    {
-        StringTokenizer addressTokenizer = new StringTokenizer( addresses, "," );
-        List addressList = new ArrayList();
-        EmailAddress address;
-
-        try
-        {
-            while( addressTokenizer.hasMoreTokens() )
-            {
-                address = new EmailAddress( addressTokenizer.nextToken() );
-                addressList.add( address );
-            }
-
-            return addressList;
-        }
-        catch( InvalidAddressException invalidAddressException )
-        {
-            log.error( "Unable to parse to address read from database.  Full String is: " + addresses, invalidAddressException );
-            throw new RuntimeException( "Error parsing address.  Message Delivery Failed." );
-        }
-    }
-}
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * 
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.server.errors.InvalidAddressException;
+import com.ericdaugherty.mail.server.server.info.EmailAddress;
+import com.ericdaugherty.mail.server.server.store.MessageLayout;
+import com.ericdaugherty.mail.server.server.store.MessageSource;
+
+
+
+/**
+ * Bean class used to store incoming SMTP message on disk (via Java Serialization)
+ * for delivery by the SMTPSender thread.
+ *
+ * @author Eric Daugherty
+ */
+public class SMTPMessage implements Serializable, MessageSource {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    private static final String DELIMITER = "\r\n";
+
+    /** The current version of the spool files, which stores the message layout */
+    private static final String FILE_VERSION = "1.1";
+
+    /** The version of the spool files without the message layout */
+    private static final String FILE_VERSION_1_0 = "1.0";
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger */
+    private static Logger log = LoggerFactory.getLogger( SMTPMessage.class.getName() );
+
+    /** The ConfigurationManager */
+    private static ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+
+    private Date timeReceived;
+    private Date scheduledDelivery;
+    private int deliveryAttempts;
+    private EmailAddress fromAddress;
+    private List<EmailAddress> toAddresses = new ArrayList<EmailAddress>();
+    private List<String> dataLines = new ArrayList<String>();
+    private File messageLocation = null;
+    private long size = 0;
+
+    /** True if only the envelope has been read and the data lines are still on disk */
+    private boolean envelopeOnly = false;
+    /** The position of the first data line in the spool file */
+    private long dataOffset = 0;
+    /** The number of bytes of data stored in the spool file */
+    private long dataLength = 0;
+
+    /** The layout read from the spool file, or null if it is recorded from the data lines */
+    private MessageLayout layout = null;
+    /** The number of bytes of the data lines added, with their CRLF */
+    private int dataBytes = 0;
+    /** The length of the header of the data lines, 0 until the empty line is added */
+    private int headerLength = 0;
+    /** The number of body lines added */
+    private int bodyLines = 0;
+    /** The offsets of the ends of the first 2^n body lines */
+    private int[] lineOffsets = new int[ MessageLayout.MAX_LINE_OFFSETS ];
+    private int lineOffsetCount = 0;
+
+    //***************************************************************
+    // Constructor
+    //***************************************************************
+
+    /**
+     * Initializes a new message with the current time.
+     */
+    public SMTPMessage() {
+        Date now = new Date();
+        timeReceived = now;
+        scheduledDelivery = now;
+        deliveryAttempts = 0;
+    }
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    public Date getTimeReceived() {
+        return timeReceived;
+    }
+
+    public void setTimeReceived(Date timeReceived) {
+        this.timeReceived = timeReceived;
+    }
+
+    public Date getScheduledDelivery() {
+        return scheduledDelivery;
+    }
+
+    public void setScheduledDelivery(Date scheduledDelivery) {
+        this.scheduledDelivery = scheduledDelivery;
+    }
+
+    public int getDeliveryAttempts() {
+        return deliveryAttempts;
+    }
+
+    public void setDeliveryAttempts(int deliveryAttempts) {
+        this.deliveryAttempts = deliveryAttempts;
+    }
+
+    public EmailAddress getFromAddress(){ return fromAddress; }
+
+    public void setFromAddress(EmailAddress fromAddress){ this.fromAddress = fromAddress; }
+
+    public List<EmailAddress> getToAddresses() { return toAddresses; }
+
+    public void setToAddresses( List<EmailAddress> toAddresses ) { this.toAddresses = toAddresses; }
+
+    public void addToAddress( EmailAddress toAddress ) { toAddresses.add( toAddress ); }
+
+    /**
+     * Returns the data lines of the message.  If the message was loaded with
+     * <code>loadEnvelope()</code>, the lines are read from the spool file on
+     * the first call.
+     */
+    public List<String> getDataLines() {
+        if( envelopeOnly )
+        {
+            try
+            {
+                loadDataLines();
+            }
+            catch( IOException ioException )
+            {
+                log.error( "Unable to read the data of SMTP Message " + messageLocation.getName(), ioException );
+                throw new RuntimeException( "Error reading message data.  " + ioException.getMessage() );
+            }
+        }
+        return dataLines;
+    }
+
+    public void addDataLine( String line ) {
+        size += line.length();
+        dataLines.add( line );
+        recordLayout( line );
+    }
+
+    /**
+     * Returns the header length and body line offsets of the data, as read
+     * from the spool file or recorded while the data lines were added.
+     * Returns null if they are not known.
+     */
+    public MessageLayout getLayout() {
+        if( layout != null || envelopeOnly )
+        {
+            return layout;
+        }
+        if( headerLength == 0 )
+        {
+            return null;
+        }
+        int[] offsets = new int[ lineOffsetCount ];
+        System.arraycopy( lineOffsets, 0, offsets, 0, lineOffsetCount );
+        return new MessageLayout( headerLength, offsets );
+    }
+
+    public File getMessageLocation(){ return messageLocation; }
+
+    public void setMessageLocation(File messageLocation){ this.messageLocation = messageLocation; }
+
+    public long getSize() {
+        if( envelopeOnly )
+        {
+            return dataLength;
+        }
+        if( size == 0 )
+        {
+            Iterator<String> i = dataLines.iterator();
+            while( i.hasNext() )
+            {
+                size += i.next().length();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * True if the data lines of this message have not been read from the spool file.
+     */
+    public boolean isEnvelopeOnly() {
+        return envelopeOnly;
+    }
+
+    /**
+     * Opens a stream to the message data as stored in the spool file, every line
+     * terminated with CRLF.  The caller is responsible for closing the stream.
+     */
+    public InputStream openData() throws IOException {
+
+        if( !envelopeOnly )
+        {
+            StringBuffer data = new StringBuffer();
+            List<String> dataLines = getDataLines();
+            for( int index = 0; index < dataLines.size(); index++ )
+            {
+                data.append( dataLines.get( index ) );
+                data.append( DELIMITER );
+            }
+            return new ByteArrayInputStream( data.toString().getBytes() );
+        }
+
+        FileInputStream inputStream = new FileInputStream( messageLocation );
+        try
+        {
+            inputStream.getChannel().position( dataOffset );
+            return inputStream;
+        }
+        catch( IOException ioException )
+        {
+            inputStream.close();
+            throw ioException;
+        }
+    }
+
+    /**
+     * Writes the message data to the channel, every line terminated with CRLF.
+     * If the data is still in the spool file it is moved with
+     * <code>FileChannel.transferTo</code>, so the bytes never pass through
+     * the heap.
+     *
+     * @return the number of bytes written.
+     */
+    public long transferData( WritableByteChannel target ) throws IOException {
+
+        if( !envelopeOnly )
+        {
+            InputStream inputStream = openData();
+            try
+            {
+                long total = 0;
+                ByteBuffer buffer = ByteBuffer.allocate( 8192 );
+                int count = inputStream.read( buffer.array() );
+                while( count != -1 )
+                {
+                    buffer.clear();
+                    buffer.limit( count );
+                    while( buffer.hasRemaining() )
+                    {
+                        target.write( buffer );
+                    }
+                    total += count;
+                    count = inputStream.read( buffer.array() );
+                }
+                return total;
+            }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+
+        FileInputStream inputStream = new FileInputStream( messageLocation );
+        try
+        {
+            FileChannel source = inputStream.getChannel();
+            long position = dataOffset;
+            long end = dataOffset + dataLength;
+            while( position < end )
+            {
+                long transferred = source.transferTo( position, end - position, target );
+                if( transferred <= 0 )
+                {
+                    throw new IOException( "Spool file " + messageLocation.getName() + " was truncated." );
+                }
+                position += transferred;
+            }
+            return dataLength;
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Moves the message to the 'failed' Directory.
+     */
+    public void moveToFailedFolder() throws Exception {
+        File failedDir = new File( configurationManager.getMailDirectory() + File.separator + "failed" );
+
+        // If the directory does not exist, create it.
+        if( !failedDir.exists() ) {
+            log.info( "failed directory does not exist.  Creating: " + failedDir.getAbsolutePath() );
+            if( !failedDir.mkdirs() )
+            {
+                log.error( "Error creating failed directory: " + failedDir.getAbsolutePath() + ".  No incoming mail will be accepted!" );
+                throw new Exception( "Unable to create failed Directory." );
+            }
+        }
+
+       File messageLocation = getMessageLocation();
+       String newLocation= configurationManager.getMailDirectory() + File.separator + "failed" + File.separator + messageLocation.getName();
+       if( !messageLocation.renameTo( new File(newLocation ) ) )
+       {
+           log.error( "moveToFailedFolder failed.  Message was not renamed." );
+           throw new Exception( "moveToFailedFolder failed.  Message was not renamed." );
+       }
+    }
+
+    /**
+     * Saves the message to the Mail Spool Directory.
+     */
+    public void save() throws Exception {
+
+        File smtpDirectory = new File( configurationManager.getMailDirectory() + File.separator + "smtp" );
+
+        // If the directory does not exist, create it.
+        if( !smtpDirectory.exists() ) {
+            log.info( "SMTP Mail directory does not exist.  Creating: " + smtpDirectory.getAbsolutePath() );
+            if( !smtpDirectory.mkdirs() )
+            {
+                log.error( "Error creating SMTP Mail directory: " + smtpDirectory.getAbsolutePath() + ".  No incoming mail will be accepted!" );
+                throw new Exception( "Unable to create SMTP Mail Directory." );
+            }
+        }
+
+        File messageFile = getMessageLocation();
+
+        if( messageFile == null ) {
+            messageFile = File.createTempFile( "smtp", ".ser", smtpDirectory );
+            setMessageLocation( messageFile );
+        }
+
+        if( envelopeOnly ) {
+            saveEnvelope();
+            return;
+        }
+
+        FileWriter writer = new FileWriter( messageFile );
+        try
+        {
+            writeEnvelope( writer );
+            List<String> dataLines = getDataLines();
+            for( int index = 0; index < dataLines.size(); index++ )
+            {
+                writer.write( dataLines.get( index ) );
+                writer.write( DELIMITER );
+            }
+        }
+        finally
+        {
+            try
+            {
+                if( writer != null )
+                {
+                    writer.close();
+                }
+            }
+            catch( IOException e )
+            {
+                log.warn( "Unable to close spool file for SMTPMessage " + messageLocation.getAbsolutePath() );
+            }
+        }
+    }
+
+    /**
+     * Loads an individual message from disk.
+     *
+     * @param filename the filename of the message.
+     * @throws IOException thrown if there is any IO error while reading the message.
+     */
+    public static SMTPMessage load( String filename ) throws Exception {
+
+        SMTPMessage message = loadEnvelope( filename );
+        message.loadDataLines();
+        return message;
+    }
+
+    /**
+     * Loads only the envelope of an individual message from disk.  The data
+     * lines are left in the spool file until they are requested, so this only
+     * reads the first few hundred bytes of the file regardless of the size of
+     * the message.
+     *
+     * @param filename the filename of the message.
+     * @throws IOException thrown if there is any IO error while reading the message.
+     */
+    public static SMTPMessage loadEnvelope( String filename ) throws IOException {
+
+        File messageFile = new File( filename );
+        CountingReader reader = new CountingReader( new BufferedInputStream( new FileInputStream( messageFile ), 512 ) );
+
+        try
+        {
+            String version = reader.readLine();
+            if( log.isDebugEnabled() ) log.debug( "Loading SMTP Message " + messageFile.getName() + " version " + version );
+            if( !FILE_VERSION.equals( version ) && !FILE_VERSION_1_0.equals( version ) )
+            {
+                log.error( "Error loading SMTP Message.  Can not handle file version: " + version );
+                throw new IOException( "Invalid file version: " + version );
+            }
+            // Initialize a new message with the right file location
+            SMTPMessage message = new SMTPMessage();
+            message.setMessageLocation( messageFile );
+
+            // Load each variable
+            message.setFromAddress( new EmailAddress( reader.readLine() ) );
+            message.setToAddresses( inflateAddresses( reader.readLine() ) );
+            message.setTimeReceived( new Date( Long.parseLong( reader.readLine() ) ) );
+            message.setScheduledDelivery( new Date( Long.parseLong( reader.readLine() ) ) );
+            message.setDeliveryAttempts( Integer.parseInt( reader.readLine() ) );
+            if( FILE_VERSION.equals( version ) )
+            {
+                message.layout = MessageLayout.parse( reader.readLine() );
+            }
+
+            message.envelopeOnly = true;
+            message.dataOffset = reader.getPosition();
+            message.dataLength = messageFile.length() - message.dataOffset;
+
+            return message;
+        }
+        catch( InvalidAddressException invalidAddressException )
+        {
+            throw new IOException( "Unable to parse the address from the stored file." );
+        }
+        catch( NumberFormatException numberFormatException )
+        {
+            throw new IOException( "Unable to parse the data from the stored file into a number.  " + numberFormatException.toString() );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Writes the envelope lines of the spool file.
+     */
+    private void writeEnvelope( Writer writer ) throws IOException {
+
+        writer.write( FILE_VERSION );
+        writer.write( DELIMITER );
+        writer.write( getFromAddress().toString() );
+        writer.write( DELIMITER );
+        writer.write( flattenAddresses( getToAddresses() ) );
+        writer.write( DELIMITER );
+        writer.write( String.valueOf( getTimeReceived().getTime() ) );
+        writer.write( DELIMITER );
+        writer.write( String.valueOf( getScheduledDelivery().getTime() ) );
+        writer.write( DELIMITER );
+        writer.write( String.valueOf( getDeliveryAttempts() ) );
+        writer.write( DELIMITER );
+        MessageLayout layout = getLayout();
+        writer.write( layout == null ? "" : layout.format() );
+        writer.write( DELIMITER );
+    }
+
+    /**
+     * Records the header length and body line offsets while the data lines
+     * are added.  The offsets count the bytes the lines take in the spool
+     * file.
+     */
+    private void recordLayout( String line ) {
+
+        dataBytes += getByteLength( line ) + DELIMITER.length();
+        if( headerLength == 0 )
+        {
+            if( line.length() == 0 )
+            {
+                headerLength = dataBytes;
+            }
+            return;
+        }
+
+        bodyLines++;
+        // Record the offset after 1, 2, 4, 8 ... lines.
+        if( ( bodyLines & ( bodyLines - 1 ) ) == 0 && lineOffsetCount < lineOffsets.length )
+        {
+            lineOffsets[ lineOffsetCount++ ] = dataBytes;
+        }
+    }
+
+    /**
+     * Returns the number of bytes a line is written as.
+     */
+    private static int getByteLength( String line ) {
+        int length = line.length();
+        for( int index = 0; index < length; index++ )
+        {
+            if( line.charAt( index ) >= 0x80 )
+            {
+                return line.getBytes().length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Rewrites the envelope of a message whose data has not been read.  The
+     * new envelope and the existing data are written to a temporary file which
+     * then replaces the spool file, so the data is copied by the file system
+     * without passing through the heap.
+     */
+    private void saveEnvelope() throws IOException {
+
+        File messageFile = getMessageLocation();
+        File tempFile = new File( messageFile.getParentFile(), messageFile.getName() + ".tmp" );
+
+        FileOutputStream outputStream = new FileOutputStream( tempFile );
+        long newDataOffset;
+        try
+        {
+            Writer writer = new OutputStreamWriter( outputStream );
+            writeEnvelope( writer );
+            writer.flush();
+
+            FileChannel target = outputStream.getChannel();
+            newDataOffset = target.position();
+
+            transferData( target );
+        }
+        finally
+        {
+            outputStream.close();
+        }
+
+        if( !tempFile.renameTo( messageFile ) )
+        {
+            tempFile.delete();
+            throw new IOException( "Unable to replace spool file " + messageFile.getName() );
+        }
+        dataOffset = newDataOffset;
+    }
+
+    /**
+     * Reads the data lines of an envelope only message from the spool file.
+     */
+    private void loadDataLines() throws IOException {
+
+        if( !envelopeOnly )
+        {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( openData() ) );
+        try
+        {
+            List<String> lines = new ArrayList<String>();
+            String inputLine = reader.readLine();
+            while( inputLine != null )
+            {
+                lines.add( inputLine );
+                inputLine = reader.readLine();
+            }
+
+            envelopeOnly = false;
+            dataLines = lines;
+            size = 0;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Converts a <code>List</code> of <code>EmailAddress</code>
+     * instances into a comma delimited string.
+     *
+     * @param addresses Collection of Address instances.
+     * @return Comma delimited String of the addresses.
+     */
+    private static String flattenAddresses( Collection<EmailAddress> addresses )
+    {
+        StringBuffer toAddresses = new StringBuffer();
+        EmailAddress address;
+        Iterator<EmailAddress> addressIterator = addresses.iterator();
+        while( addressIterator.hasNext() )
+        {
+            address = addressIterator.next();
+            toAddresses.append( address.toString() );
+            toAddresses.append( "," );
+        }
+
+        // Remove the last comma.
+        toAddresses.deleteCharAt( toAddresses.length() - 1 );
+
+        return toAddresses.toString();
+    }
+
+    /**
+     * Converts a comma delimited string of addresses into a
+     * <code>List</code> of <code>EmailAddress</code> instances.
+     *
+     * @param addresses Comma delimited String of addresses.
+     * @return List of Address instances.
+     */
+    private static List<EmailAddress> inflateAddresses( String addresses )
+    {
+        StringTokenizer addressTokenizer = new StringTokenizer( addresses, "," );
+        List<EmailAddress> addressList = new ArrayList<EmailAddress>();
+        EmailAddress address;
+
+        try
+        {
+            while( addressTokenizer.hasMoreTokens() )
+            {
+                address = new EmailAddress( addressTokenizer.nextToken() );
+                addressList.add( address );
+            }
+
+            return addressList;
+        }
+        catch( InvalidAddressException invalidAddressException )
+        {
+            log.error( "Unable to parse to address read from database.  Full String is: " + addresses, invalidAddressException );
+            throw new RuntimeException( "Error parsing address.  Message Delivery Failed." );
+        }
+    }
+
+    /**
+     * Reads CRLF terminated envelope lines and keeps track of the number of
+     * bytes consumed, so the position of the data in the file is known.
+     */
+    private static class CountingReader {
+
+        private InputStream in;
+        private long position = 0;
+        private ByteArrayOutputStream line = new ByteArrayOutputStream( 128 );
+
+        public CountingReader( InputStream in ) {
+            this.in = in;
+        }
+
+        public String readLine() throws IOException {
+
+            line.reset();
+            int current = in.read();
+            if( current == -1 )
+            {
+                return null;
+            }
+            while( current != -1 )
+            {
+                position++;
+                if( current == '\n' )
+                {
+                    break;
+                }
+                if( current != '\r' )
+                {
+                    line.write( current );
+                }
+                current = in.read();
+            }
+            return line.toString();
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
 //EOF
\ No newline at end of file
@@ -1,287 +1,508 @@
-/******************************************************************************
- * This program is SMTP receiver which collect all mails to same inbox.
- * inbox is readable with pop protocol
- * NO mails are forwared.
- ******************************************************************************
- * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
- * All rights reserved.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- ******************************************************************************
- *
- * Refactored 2011 by Sampsa Sohlman for smtp receiver use
- *
- ******************************************************************************
- * For current versions and more information, please visit:
- * 
- * http://www.ericdaugherty.com/java/mail
- *
- * or contact the author at:
- * java@ericdaugherty.com
- *
- ******************************************************************************
- * This program is based on the CSRMail project written by Calvin Smith.
- * http://crsemail.sourceforge.net/
- *****************************************************************************/
-
-package com.ericdaugherty.mail.server.services.smtp;
-
-//Java imports
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.Date;
-import java.util.List;
-import java.util.Vector;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
-import com.ericdaugherty.mail.server.server.errors.NotFoundException;
-import com.ericdaugherty.mail.server.server.info.EmailAddress;
-import com.ericdaugherty.mail.server.server.info.User;
-import com.ericdaugherty.mail.server.server.services.general.DeliveryService;
-
-
-/**
- * This class (thread) is responsible for checking the disk for unsent message
- * and delivering them to the proper local address or remote smtp server.
- * <p>
- * There should be only one instance of this thread running in the system at any
- * one time.
- */
-public class SMTPSender implements Runnable {
-
-	// ***************************************************************
-	// Variables
-	// ***************************************************************
-
-	/** Logger */
-	private static Logger log = LoggerFactory.getLogger(SMTPSender.class);
-
-	/** The ConfigurationManager */
-	private static ConfigurationManager configurationManager = ConfigurationManager
-			.getInstance();
-
-	private boolean running = true;
-
-	// ***************************************************************
-	// Public Interface
-	// ***************************************************************
-
-	/**
-	 * The entrypoint for this thread. This method handles the lifecycle of this
-	 * thread.
-	 */
-	public void run() {
-
-		while (running) {
-
-			try {
-
-				log.debug("Checking for SMTP messages to deliver");
-
-				File smtpDirectory = new File(
-						configurationManager.getMailDirectory()
-								+ File.separator + "smtp");
-
-				if (smtpDirectory.exists() && smtpDirectory.isDirectory()) {
-
-					File[] files = smtpDirectory.listFiles();
-					int numFiles = files.length;
-
-					for (int index = 0; index < numFiles; index++) {
-						try {
-							deliver(SMTPMessage.load(files[index]
-									.getAbsolutePath()));
-						} catch (Throwable throwable) {
-							log.error(
-									"An error occured attempting to deliver an SMTP Message: "
-											+ throwable, throwable);
-							// Do nothing else, contine on to the next message.
-						}
-					}
-				}
-
-				// Rest the specified sleep time. If it is greater than 10
-				// seconds
-				// Wake up every 10 seconds to check to see if the thread is
-				// shutting
-				// down.
-				long sleepTime = configurationManager
-						.getDeliveryIntervealMilliseconds();
-				if (configurationManager.getDeliveryIntervealMilliseconds() < 10000) {
-					Thread.sleep(sleepTime);
-				} else {
-					long totalSleepTime = sleepTime;
-					while (totalSleepTime > 0 && running) {
-						if (totalSleepTime > 10000) {
-							totalSleepTime -= 10000;
-							Thread.sleep(10000);
-						} else {
-							Thread.sleep(totalSleepTime);
-							totalSleepTime = 0;
-						}
-					}
-				}
-			} catch (InterruptedException ie) {
-				log.error("Sleeping Thread was interrupted.");
-			} catch (Throwable throwable) {
-				log.error(
-						"An error occured attempting to deliver an SMTP Message: "
-								+ throwable, throwable);
-			}
-		}
-		log.warn("SMTPSender shut down gracefully.");
-	}
-
-	/**
-	 * Notifies this thread to stop processing and exit.
-	 */
-	public void shutdown() {
-		log.warn("Attempting to shut down SMTPSender.");
-		running = false;
-	}
-
-	// ***************************************************************
-	// Private Interface
-	// ***************************************************************
-
-	/**
-	 * This method takes a SMTPMessage and attempts to deliver it. This method
-	 * assumes that all the addresses have been validated before, and does not
-	 * perform any delivery rules.
-	 */
-	private void deliver(SMTPMessage message) {
-
-		List toAddresses = message.getToAddresses();
-		int numAddress = toAddresses.size();
-		Vector failedAddress = new Vector();
-		EmailAddress address = null;
-
-		// If the next scheduled delivery attempt is still in the future, skip.
-		if (message.getScheduledDelivery().getTime() > System
-				.currentTimeMillis()) {
-			if (log.isDebugEnabled())
-				log.debug("Skipping delivery of message "
-						+ message.getMessageLocation().getName()
-						+ " because the scheduled delivery time is still in the future: "
-						+ message.getScheduledDelivery());
-			return;
-		}
-
-		for (int index = 0; index < numAddress; index++) {
-			try {
-				address = (EmailAddress) toAddresses.get(index);
-				if (log.isDebugEnabled()) {
-					log.debug("Attempting to deliver message from: "
-							+ message.getFromAddress().getAddress() + " to: "
-							+ address);
-				}
-
-				DeliveryService deliveryService = DeliveryService
-						.getDeliveryService();
-				deliverLocalMessage(address, message);
-
-				if (log.isInfoEnabled()) {
-					log.info("Delivery complete for message "
-							+ message.getMessageLocation().getName() + " to: "
-							+ address);
-				}
-			} catch (Throwable throwable) {
-				log.error("Delivery failed for message from: "
-						+ message.getFromAddress().getAddress() + " to: "
-						+ address + " - " + throwable, throwable);
-				failedAddress.addElement(toAddresses.get(index));
-			}
-		}
-
-		// If all addresses were successful, remove the message from the spool
-		if (failedAddress.size() == 0) {
-			// Log an error if the delete fails. This will cause the message to
-			// get
-			// delivered again, but it is too late to roll back the delivery.
-			if (!message.getMessageLocation().delete()) {
-				log.error("Error removed SMTP message after delivery!  This message may be redelivered. "
-						+ message.getMessageLocation().getName());
-			}
-		}
-	}
-
-	/**
-	 * This method takes a local SMTPMessage and attempts to deliver it.
-	 */
-	private void deliverLocalMessage(EmailAddress address, SMTPMessage message)
-			throws NotFoundException {
-
-		if (log.isDebugEnabled()) {
-			log.debug("Delivering Message to local user: "
-					+ address.getAddress());
-		}
-
-		// Load the user. If the user doesn't exist, a not found exception will
-		// be thrown and the deliver() message will deal with the notification.
-		User user = configurationManager.getUser();
-
-		// The file to write to.
-		File messageFile = null;
-		// The output stream to write the message to.
-		BufferedWriter out = null;
-
-		try {
-
-			// Get the directory and create a new file.
-			File userDirectory = user.getUserDirectory();
-			messageFile = userDirectory.createTempFile("pop", ".jmsg",
-					userDirectory);
-
-			if (log.isDebugEnabled()) {
-				log.debug("Delivering to: " + messageFile.getAbsolutePath());
-			}
-
-			// Open the output stream.
-			out = new BufferedWriter(new FileWriter(messageFile));
-
-			// Get the data to write.
-			List dataLines = message.getDataLines();
-			int numDataLines = dataLines.size();
-
-			// Write the X-DeliveredTo: header
-			out.write("X-DeliveredTo: " + address.getAddress());
-			out.write("\r\n");
-
-			// Write the data.
-			for (int index = 0; index < numDataLines; index++) {
-				out.write((String) dataLines.get(index));
-				out.write("\r\n");
-			}
-		} catch (IOException ioe) {
-			log.error("Error performing local delivery.", ioe);
-			if (messageFile != null) {
-				// The message was not fully written, so delete it.
-				messageFile.delete();
-			}
-		} finally {
-			if (out != null) {
-				try {
-					// Make sure we close up the output stream.
-					out.close();
-				} catch (IOException ioe) {
-					log.error("Error closing output Stream.", ioe);
-				}
-			}
-		}
-	}
-}
+/******************************************************************************
+ * This program is SMTP receiver which collect all mails to same inbox.
+ * inbox is readable with pop protocol
+ * NO mails are forwared.
+ ******************************************************************************
+ * Copyright (C) 2001-2011, Eric Daugherty, Sampsa Sohlman
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ *
+ * Refactored 2011 by Sampsa Sohlman for smtp receiver use
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * 
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.server.info.EmailAddress;
+import com.ericdaugherty.mail.server.server.info.Message;
+import com.ericdaugherty.mail.server.server.info.User;
+import com.ericdaugherty.mail.server.server.store.MailboxStore;
+
+
+/**
+ * This class (thread) is responsible for taking the messages that are due from
+ * the DeliveryQueue and delivering them to the proper local address. Failed
+ * deliveries are retried with an exponential backoff until the delivery attempt
+ * threshold is reached.
+ * <p>
+ * The actual writing is done by a pool of delivery workers. Every recipient
+ * mailbox is always handled by the same worker, so messages to a mailbox are
+ * delivered in the order they were received, while other mailboxes are not
+ * held up by a large message. The single mailbox all unrouted mail goes to is
+ * spread over the workers by message instead, so the messages to it may be
+ * stored in a different order than they were received.
+ * <p>
+ * There should be only one instance of this thread running in the system at any
+ * one time.
+ */
+public class SMTPSender implements Runnable {
+
+	// ***************************************************************
+	// Variables
+	// ***************************************************************
+
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(SMTPSender.class);
+
+	/** The ConfigurationManager */
+	private static ConfigurationManager configurationManager = ConfigurationManager
+			.getInstance();
+
+	private volatile boolean running = true;
+
+	/** The delivery workers */
+	private DeliveryWorker[] workers;
+
+	/** The threads running the delivery workers */
+	private Thread[] workerThreads;
+
+	// ***************************************************************
+	// Public Interface
+	// ***************************************************************
+
+	/**
+	 * The entrypoint for this thread. This method handles the lifecycle of this
+	 * thread.
+	 */
+	public void run() {
+
+		DeliveryQueue deliveryQueue = DeliveryQueue.getDeliveryQueue();
+		deliveryQueue.recover();
+
+		startWorkers();
+
+		while (running) {
+
+			try {
+
+				// Wake up every 10 seconds to check to see if the thread is
+				// shutting down.
+				File messageFile = deliveryQueue.take(10000);
+				if (messageFile == null) {
+					continue;
+				}
+
+				try {
+					deliver(SMTPMessage.loadEnvelope(messageFile
+							.getAbsolutePath()));
+				} catch (Throwable throwable) {
+					log.error(
+							"An error occured attempting to deliver an SMTP Message: "
+									+ throwable, throwable);
+					// Do nothing else, contine on to the next message.
+				}
+			} catch (InterruptedException ie) {
+				log.error("Sleeping Thread was interrupted.");
+			} catch (Throwable throwable) {
+				log.error(
+						"An error occured attempting to deliver an SMTP Message: "
+								+ throwable, throwable);
+			}
+		}
+
+		stopWorkers();
+		log.warn("SMTPSender shut down gracefully.");
+	}
+
+	/**
+	 * Notifies this thread to stop processing and exit.
+	 */
+	public void shutdown() {
+		log.warn("Attempting to shut down SMTPSender.");
+		running = false;
+	}
+
+	// ***************************************************************
+	// Private Interface
+	// ***************************************************************
+
+	/**
+	 * Creates and starts the delivery worker threads.
+	 */
+	private void startWorkers() {
+
+		int threads = Math.max(configurationManager.getDeliveryThreadCount(),
+				1);
+		String threadNameBase = Thread.currentThread().getName();
+
+		workers = new DeliveryWorker[threads];
+		workerThreads = new Thread[threads];
+		for (int index = 0; index < threads; index++) {
+			workers[index] = new DeliveryWorker();
+			workerThreads[index] = new Thread(workers[index], threadNameBase
+					+ ":" + (index + 1));
+			workerThreads[index].start();
+		}
+	}
+
+	/**
+	 * Lets the workers finish the deliveries they were given and waits for
+	 * them to exit.
+	 */
+	private void stopWorkers() {
+
+		for (int index = 0; index < workers.length; index++) {
+			workers[index].shutdown();
+		}
+		for (int index = 0; index < workerThreads.length; index++) {
+			try {
+				workerThreads[index].join(10000);
+			} catch (InterruptedException ie) {
+				log.error("Was interrupted while waiting for thread to die");
+			}
+		}
+	}
+
+	/**
+	 * Returns the key that selects the worker for a delivery of the message
+	 * to the address. This is the mailbox the message is stored in, except
+	 * for the single mailbox that takes all the mail which is not routed
+	 * elsewhere. Keying that one by mailbox would hand every delivery to the
+	 * same worker, so it is keyed by message instead. Its store still
+	 * serializes the appends, but the rest of a delivery, such as loading the
+	 * message and notifying the waiting clients, runs on all the workers.
+	 */
+	private String getWorkerKey(SMTPMessage message, EmailAddress address) {
+		EmailAddress mailbox = configurationManager.getMailboxAddress(address);
+		if (mailbox.getAddress().equalsIgnoreCase(
+				configurationManager.getDefaultUser().getAddress())) {
+			return message.getMessageLocation().getName();
+		}
+		return mailbox.getAddress().toLowerCase();
+	}
+
+	/**
+	 * This method takes a SMTPMessage and hands every recipient over to the
+	 * delivery worker of its mailbox. This method assumes that all the
+	 * addresses have been validated before, and does not perform any delivery
+	 * rules.
+	 */
+	private void deliver(SMTPMessage message) {
+
+		List<EmailAddress> toAddresses = message.getToAddresses();
+		int numAddress = toAddresses.size();
+
+		// If the next scheduled delivery attempt is still in the future, put
+		// the message back in the queue.
+		if (message.getScheduledDelivery().getTime() > System
+				.currentTimeMillis()) {
+			if (log.isDebugEnabled())
+				log.debug("Postponing delivery of message "
+						+ message.getMessageLocation().getName()
+						+ " because the scheduled delivery time is still in the future: "
+						+ message.getScheduledDelivery());
+			DeliveryQueue.getDeliveryQueue().schedule(message);
+			return;
+		}
+
+		DeliveryJob job = new DeliveryJob(message, numAddress);
+
+		// A message without recipients has nothing left to deliver, so no
+		// worker would ever complete its job. Remove it from the spool now.
+		if (numAddress == 0) {
+			log.warn("Message " + message.getMessageLocation().getName()
+					+ " has no recipients and is removed from the spool.");
+			finish(job);
+			return;
+		}
+
+		for (int index = 0; index < numAddress; index++) {
+			EmailAddress address = toAddresses.get(index);
+			int worker = (getWorkerKey(message, address)
+					.hashCode() & Integer.MAX_VALUE)
+					% workers.length;
+			workers[worker].add(job, address);
+		}
+	}
+
+	/**
+	 * Delivers the message to a single address and finishes the job when this
+	 * was the last of its addresses.
+	 */
+	private void deliver(DeliveryJob job, EmailAddress address) {
+
+		SMTPMessage message = job.message;
+		boolean delivered = false;
+		try {
+			if (log.isDebugEnabled()) {
+				log.debug("Attempting to deliver message from: "
+						+ message.getFromAddress().getAddress() + " to: "
+						+ address);
+			}
+
+			deliverLocalMessage(address, message);
+			delivered = true;
+
+			if (log.isInfoEnabled()) {
+				log.info("Delivery complete for message "
+						+ message.getMessageLocation().getName() + " to: "
+						+ address);
+			}
+		} catch (Throwable throwable) {
+			log.error("Delivery failed for message from: "
+					+ message.getFromAddress().getAddress() + " to: "
+					+ address + " - " + throwable, throwable);
+		}
+
+		if (job.complete(address, delivered)) {
+			finish(job);
+		}
+	}
+
+	/**
+	 * Called once every address of the message has been attempted.
+	 */
+	private void finish(DeliveryJob job) {
+
+		SMTPMessage message = job.message;
+
+		// If all addresses were successful, remove the message from the spool
+		if (job.failedAddress.size() == 0) {
+			// Log an error if the delete fails. This will cause the message to
+			// get
+			// delivered again, but it is too late to roll back the delivery.
+			if (!message.getMessageLocation().delete()) {
+				log.error("Error removed SMTP message after delivery!  This message may be redelivered. "
+						+ message.getMessageLocation().getName());
+			}
+		} else {
+			reschedule(message, job.failedAddress);
+		}
+	}
+
+	/**
+	 * Schedules another delivery attempt for the addresses that failed, or
+	 * moves the message to the 'failed' folder once the delivery attempt
+	 * threshold is reached.
+	 */
+	private void reschedule(SMTPMessage message,
+			List<EmailAddress> failedAddress) {
+
+		int deliveryAttempts = message.getDeliveryAttempts() + 1;
+		message.setDeliveryAttempts(deliveryAttempts);
+
+		try {
+			if (deliveryAttempts >= configurationManager
+					.getDeliveryAttemptThreshold()) {
+				log.warn("Message " + message.getMessageLocation().getName()
+						+ " could not be delivered after " + deliveryAttempts
+						+ " attempts, moving it to the failed folder.");
+				message.moveToFailedFolder();
+				return;
+			}
+
+			// Only the failed addresses are retried.
+			message.setToAddresses(new ArrayList<EmailAddress>(failedAddress));
+			message.setScheduledDelivery(new Date(DeliveryQueue
+					.getDeliveryQueue().getNextAttempt(deliveryAttempts)));
+			message.save();
+
+			if (log.isInfoEnabled())
+				log.info("Delivery of message "
+						+ message.getMessageLocation().getName()
+						+ " failed, attempt " + deliveryAttempts
+						+ ", next attempt at " + message.getScheduledDelivery());
+
+			DeliveryQueue.getDeliveryQueue().schedule(message);
+		} catch (Exception e) {
+			log.error("Unable to reschedule message "
+					+ message.getMessageLocation().getName()
+					+ ".  It will be retried after a restart.", e);
+		}
+	}
+
+	/**
+	 * Delivers a message that was not spooled to all its addresses at once.
+	 * Used when the mailboxes are kept in memory, which would not outlive a
+	 * restart any more than the spool does.
+	 * <p>
+	 * Every address is attempted. The SMTP client gets a single reply for all
+	 * of them, and a retry would store the message again for the addresses
+	 * that succeeded, so the delivery only fails if it failed for all the
+	 * addresses. The addresses that failed alone are logged.
+	 */
+	public static void deliverNow(SMTPMessage message) throws IOException {
+
+		List<EmailAddress> toAddresses = message.getToAddresses();
+		IOException failure = null;
+		int delivered = 0;
+		for (int index = 0; index < toAddresses.size(); index++) {
+			EmailAddress address = toAddresses.get(index);
+			try {
+				deliverLocalMessage(address, message);
+				delivered++;
+			} catch (IOException ioe) {
+				log.error("Delivery failed for message from: "
+						+ message.getFromAddress().getAddress() + " to: "
+						+ address + " - " + ioe);
+				failure = ioe;
+			}
+		}
+		if (delivered == 0 && failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * This method takes a local SMTPMessage and attempts to deliver it.
+	 */
+	private static void deliverLocalMessage(EmailAddress address, SMTPMessage message)
+			throws IOException {
+
+		if (log.isDebugEnabled()) {
+			log.debug("Delivering Message to local user: "
+					+ address.getAddress());
+		}
+
+		// Write the X-DeliveredTo: header before the data. The store copies
+		// the data from the spool file without reading it into the heap.
+		byte[] prefix = ("X-DeliveredTo: " + address.getAddress() + "\r\n")
+				.getBytes();
+
+		// The store is held open for the delivery, so a purge or the
+		// MailboxEvictor can not close it while the message goes in. The
+		// lock of the user is not held meanwhile, so readers of the mailbox
+		// do not wait for a large message. A user whose mailbox was closed
+		// since the lookup is looked up again.
+		User user = configurationManager.getUser(address);
+		MailboxStore store;
+		while ((store = user.openDelivery()) == null) {
+			user = configurationManager.getUser(address);
+		}
+		try {
+			Message stored;
+			try {
+				stored = store.deliver(prefix, message);
+			} catch (IOException ioe) {
+				log.error("Error performing local delivery.", ioe);
+				throw ioe;
+			}
+			DeliveryNotifier.getDeliveryNotifier().delivered(user, store,
+					stored);
+		} finally {
+			user.closeDelivery();
+		}
+	}
+
+	// ***************************************************************
+	// Delivery Worker Inner Classes
+	// ***************************************************************
+
+	/**
+	 * A message that is being delivered to its addresses.
+	 */
+	private static class DeliveryJob {
+
+		private SMTPMessage message;
+		private int remaining;
+		private Vector<EmailAddress> failedAddress = new Vector<EmailAddress>();
+
+		public DeliveryJob(SMTPMessage message, int addresses) {
+			this.message = message;
+			this.remaining = addresses;
+		}
+
+		/**
+		 * Records the result for an address.
+		 *
+		 * @return true if this was the last address of the message.
+		 */
+		public synchronized boolean complete(EmailAddress address,
+				boolean delivered) {
+			if (!delivered) {
+				failedAddress.addElement(address);
+			}
+			return --remaining == 0;
+		}
+	}
+
+	/**
+	 * A single address of a job waiting for its worker.
+	 */
+	private static class DeliveryTask {
+
+		private DeliveryJob job;
+		private EmailAddress address;
+
+		public DeliveryTask(DeliveryJob job, EmailAddress address) {
+			this.job = job;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Delivers the tasks it is given one at a time, in the order they were
+	 * added.
+	 */
+	private class DeliveryWorker implements Runnable {
+
+		private BlockingQueue<DeliveryTask> tasks = new LinkedBlockingQueue<DeliveryTask>();
+
+		private volatile boolean running = true;
+
+		public void add(DeliveryJob job, EmailAddress address) {
+			tasks.add(new DeliveryTask(job, address));
+		}
+
+		/**
+		 * Stops the worker once the tasks already given to it are done.
+		 */
+		public void shutdown() {
+			running = false;
+		}
+
+		public void run() {
+			while (running || !tasks.isEmpty()) {
+				try {
+					DeliveryTask task = tasks.poll(1000, TimeUnit.MILLISECONDS);
+					if (task != null) {
+						deliver(task.job, task.address);
+					}
+				} catch (InterruptedException ie) {
+					log.error("Delivery worker was interrupted.");
+				} catch (Throwable throwable) {
+					log.error("An error occured in a delivery worker: "
+							+ throwable, throwable);
+				}
+			}
+		}
+	}
+}
 // EOF
\ No newline at end of file